@@ -0,0 +1,128 @@
+import chatbara.bench.ServerHooks;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Implementação de ServerHooks no pacote padrão, com acesso às classes do servidor.
+A saída das sessões vai para DiscardConnection e o log de comandos do servidor é descartado
+para não medir a escrita no console.
+*/
+
+public class BenchHooks implements ServerHooks {
+    private static final UserType[] TYPES = {UserType.ALUNO, UserType.PROFESSOR, UserType.TECNICO};
+
+    private final AtomicLong discarded = new AtomicLong();
+    private OfflineMessageStore offlineMessages;
+
+    private class DiscardConnection implements ChatServer.Connection {
+        @Override
+        public boolean send(byte[] data) {
+            discarded.addAndGet(data.length);
+            return true;
+        }
+
+        @Override
+        public boolean offer(byte[] data) {
+            discarded.addAndGet(data.length);
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void abort() {
+        }
+
+        @Override
+        public long pendingBytes() {
+            return 0;
+        }
+    }
+
+    @Override
+    public void start(Path dataDir) throws IOException {
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        ServerConfig config = new ServerConfig();
+        // Os benchmarks medem o custo dos comandos, não o controle de admissão
+        config.userRates.clear();
+        config.connectionRate = null;
+        offlineMessages = newStore(dataDir, config, OfflineMessageStore.SyncPolicy.NONE);
+        offlineMessages.open();
+        ChatServer.init(config, offlineMessages);
+    }
+
+    @Override
+    public void stop() throws IOException {
+        offlineMessages.close();
+    }
+
+    @Override
+    public void registerUsers(int count) {
+        for (int i = 0; i < count; i++) {
+            ChatServer.registry.register(newUser(i));
+        }
+    }
+
+    @Override
+    public Session login(String username) {
+        ChatServer.ClientSession session = new ChatServer.ClientSession(new DiscardConnection());
+        if (!session.handleCommand("LOGIN " + username + " pw")) {
+            throw new IllegalStateException("Falha no login de " + username);
+        }
+        return session::handleCommand;
+    }
+
+    @Override
+    public long discardedBytes() {
+        return discarded.get();
+    }
+
+    @Override
+    public void saveUsers(Path file) throws IOException {
+        UserStore.writeSnapshot(file, ChatServer.registry.users());
+    }
+
+    @Override
+    public int loadUsers(Path file) throws IOException {
+        return UserStore.readSnapshot(file, new UserRegistry());
+    }
+
+    @Override
+    public Mailbox openMailbox(Path dir) throws IOException {
+        OfflineMessageStore store = newStore(dir, new ServerConfig(), OfflineMessageStore.SyncPolicy.NONE);
+        store.open();
+        return new Mailbox() {
+            @Override
+            public boolean enqueue(String username, String message) throws IOException {
+                return store.enqueue(username, message);
+            }
+
+            @Override
+            public long pending() {
+                return store.totalPending();
+            }
+
+            @Override
+            public void close() throws IOException {
+                store.close();
+            }
+        };
+    }
+
+    private static UserRegistry.UserRecord newUser(int index) {
+        UserType type = TYPES[index % TYPES.length];
+        String attribute = type == UserType.ALUNO ? String.valueOf(2000 + index % 25) : type == UserType.PROFESSOR ? "Doutor" : null;
+        return new UserRegistry.UserRecord("user" + index, "pw", type, attribute);
+    }
+
+    private static OfflineMessageStore newStore(Path dir, ServerConfig config, OfflineMessageStore.SyncPolicy sync) {
+        return new OfflineMessageStore(dir.resolve("offline_mailbox"), dir, "offline_messages.txt", sync,
+                config.offlineSyncIntervalMs, config.mailboxSegmentBytes, Integer.MAX_VALUE,
+                TimeUnit.DAYS.toMillis(config.mailboxTtlDays));
+    }
+}
@@ -0,0 +1,44 @@
+package chatbara.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Tokenização e despacho de um comando pela sessão, como no laço do ClientHandler
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+    @Param({"HELP", "KILL ninguem", "COMANDO_INVALIDO a b c"})
+    public String command;
+
+    private ServerHooks hooks;
+    private ServerHooks.Session session;
+    private Path dataDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("chatbara-bench");
+        hooks = ServerHooks.load();
+        hooks.start(dataDir);
+        hooks.registerUsers(3);
+        session = hooks.login("user2");  // Tecnico, pode usar KILL
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        hooks.stop();
+        BenchFiles.deleteRecursively(dataDir);
+    }
+
+    @Benchmark
+    public boolean dispatch() {
+        return session.handle(command);
+    }
+}
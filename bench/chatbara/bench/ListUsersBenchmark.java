@@ -0,0 +1,63 @@
+package chatbara.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// LIST_USERS com o snapshot pronto, depois de uma mudança de presença e com filtro e paginação
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListUsersBenchmark {
+    @Param({"1000", "100000"})
+    public int users;
+
+    private ServerHooks hooks;
+    private ServerHooks.Session session;
+    private ServerHooks.Session toggled;
+    private Path dataDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("chatbara-bench");
+        hooks = ServerHooks.load();
+        hooks.start(dataDir);
+        hooks.registerUsers(users);
+        session = hooks.login("user0");
+        toggled = hooks.login("user1");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        hooks.stop();
+        BenchFiles.deleteRecursively(dataDir);
+    }
+
+    @Benchmark
+    public boolean cached() {
+        return session.handle("LIST_USERS");
+    }
+
+    // Cada chamada muda a presença de um usuário, forçando a atualização do snapshot
+    @Benchmark
+    public boolean afterPresenceChange() {
+        toggled.handle("LOGIN user1 pw");
+        return session.handle("LIST_USERS");
+    }
+
+    @Benchmark
+    public boolean filteredPage() {
+        return session.handle("LIST_USERS TYPE=Aluno PAGE=3 SIZE=50");
+    }
+
+    @Benchmark
+    public boolean onlineOnly() {
+        return session.handle("LIST_USERS ONLINE");
+    }
+}
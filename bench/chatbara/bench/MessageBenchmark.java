@@ -0,0 +1,62 @@
+package chatbara.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// MESSAGE de um usuário para outro, online ou offline (caixa de mensagens sem fsync)
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBenchmark {
+    private static final int OFFLINE_BATCH = 10_000;
+
+    @Param({"16", "256", "4096"})
+    public int bodyLength;
+
+    private ServerHooks hooks;
+    private ServerHooks.Session sender;
+    private Path dataDir;
+    private String toOnline;
+    private String toOffline;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("chatbara-bench");
+        hooks = ServerHooks.load();
+        hooks.start(dataDir);
+        hooks.registerUsers(3);
+        sender = hooks.login("user0");
+        hooks.login("user1");
+        String body = "x".repeat(bodyLength);
+        toOnline = "MESSAGE user1 " + body;
+        toOffline = "MESSAGE user2 " + body;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        hooks.stop();
+        BenchFiles.deleteRecursively(dataDir);
+    }
+
+    @Benchmark
+    public boolean online() {
+        return sender.handle(toOnline);
+    }
+
+    // Em lotes, para limitar o quanto a caixa offline cresce em disco durante a medição
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3, batchSize = OFFLINE_BATCH)
+    @Measurement(iterations = 5, batchSize = OFFLINE_BATCH)
+    public boolean offline() {
+        return sender.handle(toOffline);
+    }
+}
@@ -0,0 +1,68 @@
+package chatbara.bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+// Gravação e carga do user_data.txt e recuperação da caixa de mensagens offline com N registros
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PersistenceBenchmark {
+    private static final int MESSAGES_PER_USER = 100;
+
+    @Param({"10000", "100000", "1000000"})
+    public int records;
+
+    private ServerHooks hooks;
+    private Path dataDir;
+    private Path userFile;
+    private Path mailboxDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("chatbara-bench");
+        hooks = ServerHooks.load();
+        hooks.start(dataDir);
+        hooks.registerUsers(records);
+        userFile = dataDir.resolve("user_data.txt");
+        hooks.saveUsers(userFile);
+
+        mailboxDir = dataDir.resolve("mailbox");
+        try (ServerHooks.Mailbox mailbox = hooks.openMailbox(mailboxDir)) {
+            for (int i = 0; i < records; i++) {
+                mailbox.enqueue("user" + i / MESSAGES_PER_USER, "MESSAGE user0: mensagem " + i);
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        hooks.stop();
+        BenchFiles.deleteRecursively(dataDir);
+    }
+
+    @Benchmark
+    public void saveUsers() throws IOException {
+        hooks.saveUsers(userFile);
+    }
+
+    @Benchmark
+    public int loadUsers() throws IOException {
+        return hooks.loadUsers(userFile);
+    }
+
+    // Reconstrói o índice das caixas a partir dos segmentos, como na inicialização do servidor
+    @Benchmark
+    public long openMailbox() throws IOException {
+        try (ServerHooks.Mailbox mailbox = hooks.openMailbox(mailboxDir)) {
+            return mailbox.pending();
+        }
+    }
+}
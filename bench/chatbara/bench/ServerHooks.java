@@ -0,0 +1,52 @@
+package chatbara.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/*
+O JMH não aceita benchmarks no pacote padrão, e classes de um pacote nomeado não enxergam
+as do pacote padrão, onde fica o servidor. Os benchmarks usam o servidor por esta interface,
+implementada por BenchHooks (bench/BenchHooks.java, no pacote padrão).
+*/
+
+public interface ServerHooks {
+    interface Session {
+        // Retorna false quando a sessão seria encerrada
+        boolean handle(String command);
+    }
+
+    interface Mailbox extends Closeable {
+        boolean enqueue(String username, String message) throws IOException;
+
+        long pending();
+    }
+
+    static ServerHooks load() {
+        try {
+            return (ServerHooks) Class.forName("BenchHooks").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchHooks não encontrado no classpath", e);
+        }
+    }
+
+    // Inicializa o estado compartilhado do servidor com a caixa offline em dataDir
+    void start(Path dataDir) throws IOException;
+
+    void stop() throws IOException;
+
+    // Cadastra user0..user(count-1), alternando entre Aluno, Professor e Tecnico; a senha é "pw"
+    void registerUsers(int count);
+
+    // Sessão logada cuja saída é descartada (contada em discardedBytes)
+    Session login(String username);
+
+    long discardedBytes();
+
+    void saveUsers(Path file) throws IOException;
+
+    // Carrega num registro vazio e retorna quantos usuários foram lidos
+    int loadUsers(Path file) throws IOException;
+
+    Mailbox openMailbox(Path dir) throws IOException;
+}
@@ -0,0 +1,449 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Cliente assíncrono do protocolo binário, usado pelo console (ChatClient) e por bots e integrações.
+Cada comando vai num quadro com um id e devolve um CompletableFuture, completado quando chega o
+REPLY_END com o mesmo id. Assim vários pedidos ficam pendentes na mesma conexão sem esperar as
+respostas anteriores (até maxInFlight; acima disso command() espera uma resposta). As escritas
+passam por uma OutboundQueue, que junta os quadros pendentes num único write.
+
+Mensagens de outros usuários chegam ao Listener. O login é retomável (LOGIN ... RESUME): as
+mensagens são confirmadas com ACK e, se a conexão cair, o cliente reconecta com espera crescente
+e sorteada e retoma a sessão, ou faz login de novo se a retomada for recusada. Pedidos pendentes
+quando a conexão cai falham com IOException, pois não dá para saber se o servidor os executou.
+
+O cliente responde aos PINGs do servidor com PONG. Se o servidor fica HEARTBEAT_MS sem enviar
+nada, o cliente envia um PING; sem resposta no mesmo prazo, dá a conexão como morta e reconecta.
+*/
+
+final class AsyncChatClient implements Closeable {
+    static final long DEFAULT_TIMEOUT_MS = 30_000;
+    static final int DEFAULT_MAX_IN_FLIGHT = 1_024;
+    private static final long RECONNECT_BASE_MS = 500;
+    private static final long RECONNECT_MAX_MS = 30_000;
+    private static final int ACK_EVERY = 32;  // Mensagens recebidas entre dois ACKs
+    private static final long OUTBOUND_LIMIT_BYTES = 4 * 1024 * 1024;
+    private static final long HEARTBEAT_MS = 30_000;
+    private static final ExecutorService FILE_TRANSFERS = FileTransfers.transferThreads("chat-client-file");
+    private static final ScheduledExecutorService HEARTBEATS = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "chat-client-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    interface Listener {
+        // Mensagem de outro usuário ou aviso do servidor (como KILLED)
+        void onMessage(String message);
+
+        // A conexão caiu e o cliente vai tentar reconectar
+        default void onDisconnected(IOException cause) {
+        }
+
+        // resumed: a sessão foi retomada sem perder mensagens; senão o login foi refeito (ou não havia login)
+        default void onReconnected(boolean resumed) {
+        }
+    }
+
+    // Linhas da resposta a um comando; vazia quando o comando não tem resposta, como um MESSAGE entregue
+    static final class Reply {
+        final List<String> lines;
+
+        Reply(List<String> lines) {
+            this.lines = Collections.unmodifiableList(lines);
+        }
+
+        // As falhas do servidor são "<COMANDO> FAIL: ...", "RATE LIMITED: ..." ou a mensagem de comando inválido
+        boolean failed() {
+            if (lines.isEmpty()) {
+                return false;
+            }
+            String first = lines.get(0);
+            return first.contains(" FAIL") || first.startsWith("RATE LIMITED") || first.startsWith("Comando inválido");
+        }
+
+        @Override
+        public String toString() {
+            return String.join(System.lineSeparator(), lines);
+        }
+    }
+
+    private static final class Pending {
+        final CompletableFuture<Reply> future = new CompletableFuture<>();
+        final List<String> lines = new ArrayList<>(1);  // Só a thread de leitura usa
+    }
+
+    private static final class Link {
+        final Socket socket;
+        final OutboundQueue queue;
+
+        Link(Socket socket, OutboundQueue queue) {
+            this.socket = socket;
+            this.queue = queue;
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final Listener listener;
+    private final long timeoutMillis;
+    private final Semaphore inFlight;
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private volatile Link link;
+    private volatile boolean closed;  // close() ou fim da sessão (LOGOUT, KILLED): não reconecta
+    private volatile long lastReceived = System.nanoTime();
+    private ScheduledFuture<?> heartbeat;
+
+    // Sessão retomável
+    private volatile String loginCommand;
+    private volatile boolean presenceSubscribed;  // Assinatura refeita junto com o login
+    private volatile String sessionToken;
+    private volatile int lastSeq;  // Última mensagem numerada recebida
+    private int unacked;  // Só a thread de leitura usa
+
+    private AsyncChatClient(String host, int port, Listener listener, long timeoutMillis, int maxInFlight) {
+        this.host = host;
+        this.port = port;
+        this.listener = listener;
+        this.timeoutMillis = timeoutMillis;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    static AsyncChatClient connect(String host, int port, Listener listener) throws IOException {
+        return connect(host, port, listener, DEFAULT_TIMEOUT_MS, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    static AsyncChatClient connect(String host, int port, Listener listener, long timeoutMillis, int maxInFlight)
+            throws IOException {
+        AsyncChatClient client = new AsyncChatClient(host, port, listener, timeoutMillis, maxInFlight);
+        client.open();
+        client.heartbeat = HEARTBEATS.scheduleWithFixedDelay(client::checkHeartbeat,
+                HEARTBEAT_MS / 2, HEARTBEAT_MS / 2, TimeUnit.MILLISECONDS);
+        return client;
+    }
+
+    CompletableFuture<Reply> login(String username, String password) {
+        String command = "LOGIN " + username + " " + password + " RESUME";
+        return command(command).thenApply(reply -> {
+            if (!reply.failed()) {
+                loginCommand = command;
+            }
+            return reply;
+        });
+    }
+
+    // A mensagem pode ter quebras de linha
+    CompletableFuture<Reply> send(String recipient, String message) {
+        return command("MESSAGE " + recipient + " " + message);
+    }
+
+    // Linhas de usuário, sem os marcadores USERS_LIST e END_USERS_LIST
+    CompletableFuture<List<String>> listUsers() {
+        return command("LIST_USERS").thenApply(reply -> {
+            List<String> users = new ArrayList<>(reply.lines);
+            users.remove("USERS_LIST");
+            users.remove("END_USERS_LIST");
+            return users;
+        });
+    }
+
+    // Presença chega ao Listener como PRESENCE RESET, PRESENCE ONLINE <usuários> e PRESENCE OFFLINE <usuários>
+    CompletableFuture<Reply> subscribePresence() {
+        return command("SUBSCRIBE_PRESENCE").thenApply(reply -> {
+            if (!reply.failed()) {
+                presenceSubscribed = true;
+            }
+            return reply;
+        });
+    }
+
+    // SEND_FILE e o upload pela porta de dados (ver FileTransfers), fora da conexão do chat; completa com o id do arquivo
+    CompletableFuture<String> sendFile(String recipient, Path file) {
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return command("SEND_FILE " + recipient + " " + size + " " + file.getFileName()).thenApplyAsync(reply -> {
+            String[] ready = ready(reply, "SEND_FILE READY ");
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, Integer.parseInt(ready[1])));
+                 FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+                FileTransfers.reply(channel, "PUT " + ready[0]);
+                long position = Long.parseLong(ready(FileTransfers.readLine(channel), "READY ")[0]);
+                while (position < size) {
+                    position += in.transferTo(position, size - position, channel);
+                }
+                return ready(FileTransfers.readLine(channel), "DONE ")[0];
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, FILE_TRANSFERS);
+    }
+
+    // GET_FILE e o download para directory, com o nome dado pelo remetente; completa com o arquivo gravado
+    CompletableFuture<Path> downloadFile(String id, Path directory) {
+        return command("GET_FILE " + id).thenApplyAsync(reply -> {
+            String[] ready = ready(reply, "GET_FILE READY ");
+            long size = Long.parseLong(ready[2]);
+            Path target = directory.resolve(Paths.get(ready[3]).getFileName());
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, Integer.parseInt(ready[1])));
+                 FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                         StandardOpenOption.TRUNCATE_EXISTING)) {
+                FileTransfers.reply(channel, "GET " + ready[0]);
+                ready(FileTransfers.readLine(channel), "READY ");
+                ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+                long position = 0;
+                while (position < size) {
+                    long received = FileTransfers.receive(channel, out, position, size, buffer);
+                    if (received < 0) {
+                        throw new EOFException("Download de " + id + " interrompido em " + position + " de " + size + " bytes");
+                    }
+                    position += received;
+                }
+                return target;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, FILE_TRANSFERS);
+    }
+
+    // Campos depois do prefixo esperado na resposta; o último fica com o resto da linha (o nome do arquivo tem espaços)
+    private static String[] ready(Reply reply, String prefix) {
+        return ready(reply.lines.isEmpty() ? reply.toString() : reply.lines.get(0), prefix);
+    }
+
+    private static String[] ready(String line, String prefix) {
+        if (!line.startsWith(prefix)) {
+            throw new CompletionException(new IOException(line));
+        }
+        return line.substring(prefix.length()).split(" ", 4);
+    }
+
+    CompletableFuture<Reply> logout() {
+        return command("LOGOUT");
+    }
+
+    CompletableFuture<Reply> command(String line) {
+        return command(line, timeoutMillis);
+    }
+
+    // Sem resposta em timeoutMillis o futuro falha com TimeoutException; uma resposta atrasada é descartada
+    CompletableFuture<Reply> command(String line, long timeoutMillis) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Cliente fechado"));
+        }
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return CompletableFuture.failedFuture(new InterruptedIOException());
+        }
+        int requestId = nextRequestId();
+        Pending request = new Pending();
+        pending.put(requestId, request);
+        request.future.whenComplete((reply, error) -> {
+            pending.remove(requestId);
+            inFlight.release();
+        });
+        request.future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS);
+
+        Link current = link;
+        if (current == null || !current.queue.send(WireProtocol.frame(WireProtocol.COMMAND, requestId, line))) {
+            request.future.completeExceptionally(new IOException("Sem conexão com o servidor"));
+        }
+        return request.future;
+    }
+
+    // O id 0 fica para os comandos internos sem resposta esperada (ACK, PONG)
+    private int nextRequestId() {
+        int requestId;
+        do {
+            requestId = nextRequestId.incrementAndGet();
+        } while (requestId == 0);
+        return requestId;
+    }
+
+    // command() pode esperar uma vaga em maxInFlight, então o PING sai de uma thread virtual
+    private void checkHeartbeat() {
+        Link current = link;
+        if (current == null || closed || System.nanoTime() - lastReceived < TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MS)) {
+            return;
+        }
+        Thread.startVirtualThread(() -> command("PING", HEARTBEAT_MS).whenComplete((reply, error) -> {
+            if (error instanceof TimeoutException && link == current) {
+                current.queue.abort();  // A leitura falha e reconecta
+            }
+        }));
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        heartbeat.cancel(false);
+        Link current = link;
+        if (current != null) {
+            current.queue.close();
+        }
+    }
+
+    private void open() throws IOException {
+        Socket socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        OutboundQueue queue = new OutboundQueue(socket, OUTBOUND_LIMIT_BYTES);
+        queue.send(WireProtocol.PREFACE);
+        Link opened = new Link(socket, queue);
+        link = opened;
+        Thread.ofVirtual().name("chat-client-writer").start(queue);
+        Thread.ofVirtual().name("chat-client-reader").start(() -> read(opened));
+    }
+
+    private void read(Link current) {
+        IOException cause = null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(current.socket.getInputStream()));
+            WireProtocol.Frame frame;
+            while ((frame = WireProtocol.readFrame(in)) != null) {
+                handle(frame);
+            }
+        } catch (IOException e) {
+            cause = e;
+        }
+        current.queue.abort();
+        if (link == current) {
+            link = null;
+        }
+        IOException lost = cause != null ? cause : new EOFException("Conexão encerrada pelo servidor");
+        for (Pending request : pending.values()) {
+            request.future.completeExceptionally(lost);
+        }
+        if (!closed) {
+            listener.onDisconnected(lost);
+            reconnect();
+        }
+    }
+
+    private void handle(WireProtocol.Frame frame) {
+        lastReceived = System.nanoTime();
+        String payload = frame.payload;
+        switch (frame.opcode) {
+            case WireProtocol.REPLY: {
+                if (payload.startsWith("SESSION ")) {
+                    String token = payload.substring("SESSION ".length());
+                    if (!token.equals(sessionToken)) {
+                        sessionToken = token;
+                        lastSeq = 0;
+                        unacked = 0;
+                    }
+                    break;
+                }
+                if (payload.equals("LOGOUT SUCCESS")) {
+                    closed = true;
+                }
+                Pending request = pending.get(frame.requestId);
+                if (request != null) {
+                    request.lines.add(payload);
+                }
+                break;
+            }
+            case WireProtocol.REPLY_END: {
+                Pending request = pending.get(frame.requestId);
+                if (request != null) {
+                    request.future.complete(new Reply(request.lines));
+                }
+                break;
+            }
+            case WireProtocol.PUSH:
+                if (frame.requestId == 0 && payload.equals("PING")) {
+                    sendInternal("PONG");
+                    break;
+                }
+                // Mensagens numeradas já recebidas antes de uma retomada chegam de novo e são ignoradas
+                int seq = frame.requestId;
+                if (seq > 0) {
+                    if (seq <= lastSeq) {
+                        break;
+                    }
+                    lastSeq = seq;
+                    if (++unacked >= ACK_EVERY) {
+                        unacked = 0;
+                        sendInternal("ACK " + seq);
+                    }
+                }
+                if (payload.startsWith("KILLED")) {
+                    closed = true;
+                }
+                listener.onMessage(payload);
+                break;
+            default:
+                // HELLO não tem nada a tratar
+                break;
+        }
+    }
+
+    private void sendInternal(String command) {
+        Link current = link;
+        if (current != null) {
+            current.queue.send(WireProtocol.frame(WireProtocol.COMMAND, 0, command));
+        }
+    }
+
+    // Espera sorteada entre zero e um limite que dobra a cada falha, para os clientes não voltarem
+    // todos ao mesmo tempo quando o servidor reinicia
+    private void reconnect() {
+        long limit = RECONNECT_BASE_MS;
+        while (!closed) {
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+                open();
+                break;
+            } catch (IOException e) {
+                limit = Math.min(RECONNECT_MAX_MS, limit * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (closed) {
+            return;
+        }
+        try {
+            boolean resumed = false;
+            String token = sessionToken;
+            if (token != null) {
+                Reply reply = command("RESUME " + token + " " + lastSeq).get();
+                resumed = !reply.failed();
+                if (!resumed) {
+                    sessionToken = null;
+                }
+            }
+            String login = loginCommand;
+            if (!resumed && login != null) {
+                command(login).get();
+                if (presenceSubscribed) {
+                    command("SUBSCRIBE_PRESENCE").get();
+                }
+            }
+            listener.onReconnected(resumed);
+        } catch (ExecutionException e) {
+            // A nova conexão também caiu; a leitura dela reconecta de novo
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -1,22 +1,43 @@
 import java.io.*;
-import java.net.*;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
 
 /*
 Autores: Adriana Fonseca e Henrique Furtado
 */
 
+// Console do cliente, montado sobre o AsyncChatClient: cada comando digitado é enviado sem
+// esperar os anteriores, e a resposta aparece quando chega, junto com o comando a que pertence.
 public class ChatClient {
-    private static BufferedReader in;
-    private static PrintWriter out;
-    private static boolean running = true;
+    private static AsyncChatClient client;
+    private static volatile boolean running = true;
 
-    public static void main(String[] args) throws IOException {
-        Socket socket = new Socket("localhost", 12345);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
+    private static String host = ClientConnection.DEFAULT_HOST;
+    private static int port = ClientConnection.DEFAULT_PORT;
 
-        new Thread(new IncomingReader()).start();
+    public static void main(String[] args) throws IOException {
+        try {
+            // --config=<arquivo> com as linhas host=<host> e port=<porta> (ver OptionsFile)
+            for (String arg : OptionsFile.expand(args)) {
+                if (arg.equals("--binary")) {
+                    // Aceito por compatibilidade: o console sempre usa o protocolo binário
+                } else if (arg.startsWith("--host=")) {
+                    host = arg.substring("--host=".length());
+                } else if (arg.startsWith("--port=")) {
+                    port = Integer.parseInt(arg.substring("--port=".length()));
+                } else {
+                    throw new IllegalArgumentException("Opção desconhecida: " + arg);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Uso: java ChatClient [--config=<arquivo>] [--host=<host>] [--port=<porta>]");
+            return;
+        }
+        client = AsyncChatClient.connect(host, port, new ConsoleListener());
 
         Scanner scanner = new Scanner(System.in);
         while (running) {
@@ -28,77 +49,81 @@ public class ChatClient {
                 continue;
             }
 
-            out.println(command);
+            CompletableFuture<AsyncChatClient.Reply> reply = sendCommand(command);
             System.out.println("Comando enviado: " + command);
+            CompletableFuture<Void> shown = reply.handle((result, error) -> showReply(command, result, error));
 
             if (command.startsWith("LOGOUT")) {
                 running = false;
+                shown.join();
             }
         }
 
-        socket.close();
+        client.close();
         scanner.close();
     }
 
+    // "\n" digitado no console vira uma quebra de linha na mensagem
+    private static CompletableFuture<AsyncChatClient.Reply> sendCommand(String command) {
+        String[] tokens = command.trim().split("\\s+");
+        if (tokens.length == 3 && tokens[0].equals("LOGIN")) {
+            return client.login(tokens[1], tokens[2]);
+        }
+        // SEND_FILE <destinatário> <caminho> e GET_FILE <id>: o console faz a transferência e grava no diretório atual
+        if (tokens.length == 3 && tokens[0].equals("SEND_FILE")) {
+            return client.sendFile(tokens[1], Paths.get(tokens[2]))
+                    .thenApply(id -> new AsyncChatClient.Reply(List.of("SEND_FILE SUCCESS: Arquivo " + id + " enviado.")));
+        }
+        if (tokens.length == 2 && tokens[0].equals("GET_FILE")) {
+            return client.downloadFile(tokens[1], Paths.get("."))
+                    .thenApply(file -> new AsyncChatClient.Reply(List.of("GET_FILE SUCCESS: Gravado em " + file + ".")));
+        }
+        return client.command(command.replace("\\n", "\n"));
+    }
+
     private static boolean isAdminCommand(String command) {
         return command.startsWith("REGISTER") || command.startsWith("KILL");
     }
 
-    private static class IncomingReader implements Runnable {
-        @Override
-        public void run() {
-            try {
-                String message;
-                while (running && (message = in.readLine()) != null) {
-                    if (message.equals("USERS_LIST")) {
-                        System.out.println("Lista de usuários cadastrados:");
-                        while (!(message = in.readLine()).equals("END_USERS_LIST")) {
-                            System.out.println(message);
-                        }
-                    } else if (message.startsWith("HELP:")) {
-                        System.out.println("Comandos disponíveis:");
-                        while (!(message = in.readLine()).equals("")) {
-                            System.out.println(message);
-                        }
-                    } else if (message.startsWith("KILLED")) {
-                        System.out.println(message);
-                        running = false;
-                        break;
-                    } else {
-                        System.out.println(message);
-                    }
-
-                    if (message.startsWith("LOGOUT SUCCESS")) {
-                        running = false;
-                        break;
-                    }
-                }
-            } catch (SocketException e) {
-                System.out.println("Conexão fechada: " + e.getMessage());
-            } catch (IOException e) {
-                System.err.println("Erro de conexão: " + e.getMessage());
-                attemptReconnect();
+    private static Void showReply(String command, AsyncChatClient.Reply reply, Throwable error) {
+        if (error != null) {
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof TimeoutException) {
+                System.out.println("Sem resposta do servidor para: " + command);
+            } else {
+                System.out.println("Falha ao enviar " + command + ": " + cause.getMessage());
             }
+            return null;
         }
+        for (String line : reply.lines) {
+            if (line.equals("USERS_LIST")) {
+                System.out.println("Lista de usuários cadastrados:");
+            } else if (line.equals("HELP:")) {
+                System.out.println("Comandos disponíveis:");
+            } else if (!line.equals("END_USERS_LIST")) {
+                System.out.println(line);
+            }
+        }
+        return null;
+    }
 
-        private void attemptReconnect() {
-            while (running) {
-                try {
-                    System.out.println("Tentando reconectar...");
-                    Socket socket = new Socket("localhost", 12345);
-                    in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                    out = new PrintWriter(socket.getOutputStream(), true);
-                    new Thread(new IncomingReader()).start();
-                    break;
-                } catch (IOException e) {
-                    System.err.println("Falha na reconexão, tentando novamente em 5 segundos...");
-                    try {
-                        Thread.sleep(5000);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                    }
-                }
+    private static class ConsoleListener implements AsyncChatClient.Listener {
+        @Override
+        public void onMessage(String message) {
+            System.out.println(message);
+            if (message.startsWith("KILLED")) {
+                running = false;
             }
         }
+
+        @Override
+        public void onDisconnected(IOException cause) {
+            System.err.println("Erro de conexão: " + cause.getMessage() + ". Tentando reconectar...");
+        }
+
+        @Override
+        public void onReconnected(boolean resumed) {
+            System.out.println(resumed ? "Sessão retomada." : "Reconectado ao servidor.");
+        }
     }
 }
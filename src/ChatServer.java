@@ -1,6 +1,15 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /*
 Autores: Adriana Fonseca e Henrique Furtado
@@ -8,317 +17,1491 @@ Autores: Adriana Fonseca e Henrique Furtado
 
 public class ChatServer {
     private static final String USER_DATA_FILE = "user_data.txt";
+    private static final String USER_DATA_LOG = "user_data.log";
     private static final String OFFLINE_MESSAGES_FILE = "offline_messages.txt";
+    private static final String OFFLINE_MAILBOX_DIR = "offline_mailbox";
+    private static final String HISTORY_DIR = "history";
+    private static final String FILES_DIR = "files";
+    private static final String GROUPS_FILE = "groups.txt";
+    private static final int OFFLINE_PAGE_SIZE = 100;
+    private static final int LIST_PAGE_SIZE = 50;
+    private static final int MAX_LIST_PAGE_SIZE = 500;
+    // Um LIST_USERS de uma sessão vai para a fila de saída nesses pedaços, cada um esperando a conexão aceitar dados
+    private static final int LIST_CHUNK_BYTES = 64 * 1024;
+    private static final int LIST_CHUNK_LINES = 256;
+    private static final int HISTORY_PAGE_SIZE = 20;
+    private static final DateTimeFormatter HISTORY_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+    private static final String INVALID_COMMAND = "Comando inválido. Digite HELP para ver a lista de comandos disponíveis.";
 
-    private static Map<String, Socket> onlineUsers = new HashMap<>();
-    private static Map<String, List<String>> offlineMessages = new HashMap<>();
-    private static Map<String, String[]> userCredentials = new HashMap<>();
-    private static Map<String, String> userAttributes = new HashMap<>();  // Novo mapa para atributos adicionais
-    private static Set<String> serverLoggedInUsers = new HashSet<>();  // Usuários logados no console do servidor
+    private static ServerConfig config;
+
+    // Compartilhados por todas as sessões e pelo console
+    static final UserRegistry registry = new UserRegistry();
+    private static OfflineMessageStore offlineMessages;
+    private static GroupRegistry groups;
+    private static FanOut fanOut;
+    private static UserStore userStore;
+    private static ClusterNode cluster;  // null fora de um cluster
+    private static MessageHistory history;  // null com --history-days=0
+    private static FileTransfers files;  // null sem --file-port
+    private static RateLimiter limiter;
+    private static PresenceFeed presence;
+    // Sessões retomáveis pelo token (ver ReplayBuffer), inclusive as que perderam a conexão e aguardam RESUME
+    private static final Map<String, ClientSession> resumable = new ConcurrentHashMap<>();
+    // Prazos de todas as sessões (inatividade e espera pelo RESUME): ticks de 100 ms, uma volta a cada ~102 s
+    private static final TimingWheel TIMERS = new TimingWheel("session-timers", 100, 1024);
+    static final ServerMetrics metrics = new ServerMetrics();
 
     public static void main(String[] args) throws IOException {
+        try {
+            config = ServerConfig.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(ServerConfig.USAGE);
+            return;
+        }
+        Files.createDirectories(config.dataDir);
+        Log.start(config.log);
+
+        init(config, new OfflineMessageStore(config.dataDir.resolve(OFFLINE_MAILBOX_DIR), config.dataDir, OFFLINE_MESSAGES_FILE,
+                config.offlineSync, config.offlineSyncIntervalMs, config.mailboxSegmentBytes,
+                config.mailboxQuota, TimeUnit.DAYS.toMillis(config.mailboxTtlDays)));
         loadUserData();
         loadOfflineMessages();
-
-        ServerSocket serverSocket = new ServerSocket(12345);
-        System.out.println("Servidor iniciado...");
+        groups.load();
+        if (config.historyDays > 0) {
+            startHistory();
+        }
+        if (config.filePort > 0) {
+            startFiles();
+        }
+        if (config.clusterPort > 0) {
+            startCluster();
+        }
+        if (config.metricsPort > 0) {
+            metrics.serve(config.metricsPort);
+            System.out.println("Métricas em http://localhost:" + config.metricsPort + "/metrics");
+        }
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             try {
-                saveUserData();
-                saveOfflineMessages();
+                userStore.close();
+                offlineMessages.close();
+                if (history != null) {
+                    history.close();
+                }
+                if (files != null) {
+                    files.close();
+                }
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error(Log.Category.STORAGE, "Falha ao gravar os dados ao encerrar", e);
             }
+            Log.close();
         }));
 
         new Thread(new CommandHandler()).start();  // Thread para aceitar comandos do console
 
-        while (true) {
-            Socket clientSocket = serverSocket.accept();
-            new ClientHandler(clientSocket).start();
+        if (config.mode == ServerConfig.Mode.NIO) {
+            new NioServer(config).run();
+        } else {
+            runBlockingServer(config);
         }
     }
 
-    private static class ClientHandler extends Thread {
+    // Estado compartilhado pelas sessões, separado de main para os benchmarks (bench/) usarem o servidor sem sockets
+    static void init(ServerConfig serverConfig, OfflineMessageStore store) {
+        config = serverConfig;
+        offlineMessages = store;
+        groups = new GroupRegistry(config.dataDir.resolve(GROUPS_FILE));
+        fanOut = new FanOut(config.fanOutThreads, ChatServer::deliverTo);
+        limiter = new RateLimiter(config);
+        presence = new PresenceFeed(registry, TIMERS);
+        registry.setStatusListener(presence::changed);
+
+        metrics.gauge("sessions_online", "Sessões online", registry::onlineCount);
+        metrics.gauge("offline_backlog_messages", "Mensagens offline pendentes", store::totalPending);
+        metrics.gauge("offline_backlog_messages_by_user", "Maiores caixas offline", "user",
+                () -> store.largestMailboxes(ServerMetrics.TOP_ENTRIES));
+        metrics.gauge("session_timers", "Prazos pendentes na timing wheel das sessões", TIMERS::size);
+        metrics.gauge("sessions_resumable", "Sessões retomáveis (incluindo as que aguardam RESUME)", resumable::size);
+        metrics.gauge("presence_subscribers", "Sessões com SUBSCRIBE_PRESENCE", presence::subscribers);
+        metrics.gauge("outbound_queue_bytes", "Bytes nas filas de saída", ChatServer::outboundQueueBytes);
+        metrics.gauge("outbound_queue_bytes_by_user", "Maiores filas de saída", "user", ChatServer::outboundQueues);
+        metrics.flush("offline_mailbox", store.syncLatency);
+        metrics.flush("groups", groups.saveLatency);
+        metrics.gauge("rate_limited_by_scope", "Comandos recusados por limite de taxa", "scope", limiter::rejectedByScope);
+        metrics.gauge("rate_limited_by_user", "Usuários com mais comandos recusados", "user", limiter::rejectedByUser);
+        metrics.gauge("listen_overflows", "Conexões descartadas pelo kernel com a fila de accept cheia (todo o sistema)",
+                () -> ServerListener.kernelCounter("ListenOverflows"));
+        metrics.gauge("listen_drops", "Conexões descartadas pelo kernel antes do accept (todo o sistema)",
+                () -> ServerListener.kernelCounter("ListenDrops"));
+        metrics.gauge("log_dropped", "Linhas de log descartadas com o buffer cheio", Log::dropped);
+        metrics.gauge("log_sampled", "Linhas de log omitidas pela amostragem", Log::sampled);
+    }
+
+    // Mensagens diretas gravadas para os comandos HISTORY e SEARCH (ver MessageHistory)
+    private static void startHistory() throws IOException {
+        history = new MessageHistory(config.dataDir.resolve(HISTORY_DIR), config.historyDays);
+        history.open();
+        metrics.gauge("history_messages", "Mensagens no histórico", history::records);
+        metrics.gauge("history_bytes", "Bytes das partições do histórico", history::bytes);
+        metrics.gauge("history_partitions", "Partições do histórico", history::partitionCount);
+        metrics.gauge("history_dropped", "Mensagens fora do histórico com a fila de gravação cheia", history::dropped);
+    }
+
+    // Arquivos do SEND_FILE, recebidos e entregues pela porta de dados
+    private static void startFiles() throws IOException {
+        files = new FileTransfers(config.dataDir.resolve(FILES_DIR), config.filePort, config.maxFileMegabytes * 1024L * 1024,
+                config.fileRetentionDays, file -> deliverTo(file.recipient, new Push(file.notice())));
+        files.open();
+        files.start();
+        metrics.gauge("files_stored", "Arquivos disponíveis para download", files::fileCount);
+        metrics.gauge("file_transfers_active", "Conexões abertas na porta de dados", files::activeTransfers);
+        metrics.gauge("file_bytes_received", "Bytes recebidos em uploads", files.bytesReceived::sum);
+        metrics.gauge("file_bytes_sent", "Bytes enviados em downloads", files.bytesSent::sum);
+        System.out.println("Arquivos na porta " + config.filePort);
+    }
+
+    // Presença e cadastros replicados, mensagens e KILL encaminhados entre os nós (ver ClusterNode)
+    private static void startCluster() throws IOException {
+        cluster = new ClusterNode(config, registry, new ClusterEvents());
+        registry.setPresenceListener(cluster::publish);
+        cluster.start();
+        metrics.gauge("cluster_peers_connected", "Nós do cluster conectados", cluster::connectedPeers);
+        metrics.gauge("sessions_remote", "Sessões online em outros nós", registry::remoteCount);
+        System.out.println("Nó " + cluster.nodeId() + " do cluster na porta " + config.clusterPort);
+    }
+
+    private static long outboundQueueBytes() {
+        long total = 0;
+        for (ClientSession session : registry.onlineSessions()) {
+            total += session.pendingBytes();
+        }
+        return total;
+    }
+
+    // Só as sessões com dados pendentes
+    private static Map<String, Long> outboundQueues() {
+        Map<String, Long> queues = new HashMap<>();
+        for (ClientSession session : registry.onlineSessions()) {
+            long pending = session.pendingBytes();
+            if (pending > 0 && session.username != null) {
+                queues.put(session.username, pending);
+            }
+        }
+        return queues;
+    }
+
+    // Modos thread e virtual: uma thread (de plataforma ou virtual) por sessão, com admissão limitada.
+    // Conexões aceitas esperam numa fila limitada por uma vaga; com a fila cheia, são recusadas.
+    private static void runBlockingServer(ServerConfig config) throws IOException {
+        ServerListener listener = new ServerListener(config);
+        listener.open();
+        Thread.Builder sessionThreads = config.mode == ServerConfig.Mode.VIRTUAL
+                ? Thread.ofVirtual().name("session-", 0)
+                : Thread.ofPlatform().name("session-", 0);
+        Semaphore sessionPermits = new Semaphore(config.maxSessions);
+        BlockingQueue<Socket> acceptQueue = new ArrayBlockingQueue<>(config.acceptQueue);
+        Thread admission = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket clientSocket = acceptQueue.take();
+                    sessionPermits.acquire();
+                    sessionThreads.start(new ClientHandler(clientSocket, sessionPermits::release));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }, "admission");
+        admission.setDaemon(true);
+        admission.start();
+
+        System.out.println("Servidor iniciado (modo " + config.mode.name().toLowerCase()
+                + ", até " + config.maxSessions + " sessões, fila de " + config.acceptQueue + ", " + listener.describe() + ")...");
+
+        // O ClientHandler usa o Socket do canal, que continua bloqueante
+        listener.run(channel -> {
+            Socket clientSocket = channel.socket();
+            if (!acceptQueue.offer(clientSocket)) {
+                metrics.rejected.increment();
+                rejectConnection(clientSocket);
+                Log.warn(Log.Category.CONNECTION, "Conexão recusada, servidor lotado (total: " + metrics.rejected.sum() + ")");
+            }
+        });
+    }
+
+    private static void rejectConnection(Socket socket) {
+        try (socket) {
+            socket.setSoLinger(true, 0);
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println("SERVER BUSY: Servidor lotado, tente novamente mais tarde.");
+        } catch (IOException e) {
+            // ignorado: a conexão está sendo recusada
+        }
+    }
+
+    // Canal de saída de uma sessão, independente do modelo de I/O (socket bloqueante ou NIO).
+    // Os dados já chegam codificados no protocolo da sessão (linhas de texto ou quadros binários).
+    interface Connection {
+        // Respostas aos comandos da própria sessão e entregas já controladas por isWritable();
+        // sempre enfileira e retorna false só se a conexão já foi fechada
+        boolean send(byte[] data);
+
+        // Entrega vinda de outra sessão ou do console; nunca bloqueia e falha com a fila de saída cheia
+        boolean offer(byte[] data);
+
+        // Entrega da própria sessão (backlog offline) com as garantias de send(), mas recuperável por abortUnsent()
+        default boolean sendDelivery(byte[] data) {
+            return send(data);
+        }
+
+        // Fecha depois de enviar o que já está na fila
+        void close();
+
+        // Fecha imediatamente, descartando a fila
+        void abort();
+
+        // Como abort(), devolvendo as entregas (offer e sendDelivery) que ainda não foram escritas
+        default List<byte[]> abortUnsent() {
+            abort();
+            return List.of();
+        }
+
+        // Bytes ainda não escritos no socket
+        long pendingBytes();
+
+        // Falso quando a saída acumulou dados demais e quem escreve em volume deve esperar
+        default boolean isWritable() {
+            return true;
+        }
+
+        // Executa a tarefa quando isWritable() voltar a ser verdadeiro
+        default void onWritable(Runnable task) {
+            task.run();
+        }
+
+        // Bloqueia até isWritable(); só na thread que processa os comandos da sessão, nunca num event loop.
+        // Retorna false se a conexão foi fechada
+        default boolean awaitWritable() {
+            return true;
+        }
+    }
+
+    private static class ClientHandler implements Runnable {
         private Socket socket;
-        private String username;
-        private BufferedReader in;
-        private PrintWriter out;
+        private Runnable onExit;
 
-        public ClientHandler(Socket socket) {
+        public ClientHandler(Socket socket, Runnable onExit) {
             this.socket = socket;
+            this.onExit = onExit;
         }
 
         @Override
         public void run() {
+            SocketConnection connection = null;
+            ClientSession session = null;
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new PrintWriter(socket.getOutputStream(), true);
+                BufferedInputStream input = new BufferedInputStream(socket.getInputStream());
+                connection = new SocketConnection(socket, config.outboundQueueBytes);
+                session = new ClientSession(connection);
+                session.startIdleCheck();
 
-                while (true) {
-                    String command = in.readLine();
-                    if (command == null) {
-                        break;
+                // O primeiro byte decide o protocolo: o preâmbulo binário começa com um byte que nenhum comando de texto usa
+                input.mark(1);
+                if (input.read() == WireProtocol.PREFACE[0]) {
+                    if (WireProtocol.readPreface(input)) {
+                        session.startBinary();
+                        readFrames(new DataInputStream(input), session);
                     }
-                    System.out.println("Recebido comando: " + command);  // Log de depuração
-                    if (command.startsWith("HELP")) {
-                        handleHelp(out);
-                    } else if (command.startsWith("LOGIN")) {
-                        handleLogin(command, out);
-                    } else {
-                        if (this.username == null) {
-                            out.println("AUTH FAIL: Você deve estar autenticado para executar comandos.");
-                            continue;
-                        }
+                } else {
+                    input.reset();
+                    readLines(new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8)), session);
+                }
+            } catch (SocketException | ClosedChannelException e) {
+                // Os sockets vêm de um ServerSocketChannel: lido depois de fechado, dá ClosedChannelException
+                Log.debug(Log.Category.CONNECTION, "Socket fechado: " + e);
+            } catch (IOException e) {
+                Log.error(Log.Category.CONNECTION, "Erro na conexão", e);
+            } finally {
+                if (session != null) {
+                    session.closed();
+                }
+                if (connection != null) {
+                    connection.close();
+                } else {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        Log.error(Log.Category.CONNECTION, "Erro ao fechar o socket", e);
+                    }
+                }
+                onExit.run();
+            }
+        }
 
-                        if (command.startsWith("REGISTER")) {
-                            handleRegister(command, out);
-                        } else if (command.startsWith("MESSAGE")) {
-                            handleMessage(command, out);
-                        } else if (command.startsWith("LOGOUT")) {
-                            handleLogout(out);
-                            break;
-                        } else if (command.startsWith("LIST_USERS")) {
-                            handleListUsers(out);
-                        } else if (command.startsWith("KILL")) {
-                            handleKill(command, out);
-                        } else {
-                            handleInvalidCommand(out);
-                        }
+        private void readLines(BufferedReader in, ClientSession session) throws IOException {
+            while (true) {
+                String command = in.readLine();
+                if (command == null || !session.handleCommand(command)) {
+                    return;
+                }
+            }
+        }
+
+        private void readFrames(DataInputStream in, ClientSession session) throws IOException {
+            while (true) {
+                WireProtocol.Frame frame = WireProtocol.readFrame(in);
+                if (frame == null || !session.handleFrame(frame)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Socket bloqueante com uma OutboundQueue escrita por uma thread virtual dedicada
+    private static class SocketConnection implements Connection {
+        private final OutboundQueue queue;
+
+        SocketConnection(Socket socket, long outboundLimit) throws IOException {
+            this.queue = new OutboundQueue(socket, outboundLimit);
+            Thread.ofVirtual().name("writer-" + socket.getPort()).start(queue);
+        }
+
+        @Override
+        public boolean send(byte[] data) {
+            return queue.send(data);
+        }
+
+        @Override
+        public boolean offer(byte[] data) {
+            return queue.offer(data);
+        }
+
+        @Override
+        public void close() {
+            queue.close();
+        }
+
+        @Override
+        public boolean sendDelivery(byte[] data) {
+            return queue.sendDelivery(data);
+        }
+
+        @Override
+        public void abort() {
+            queue.abort();
+        }
+
+        @Override
+        public List<byte[]> abortUnsent() {
+            return queue.abortUnsent();
+        }
+
+        @Override
+        public long pendingBytes() {
+            return queue.pendingBytes();
+        }
+
+        @Override
+        public boolean isWritable() {
+            return queue.pendingBytes() < config.outboundQueueBytes / 2;
+        }
+
+        // A tarefa escreve na própria fila, então não pode rodar na thread escritora
+        @Override
+        public void onWritable(Runnable task) {
+            queue.onDrained(() -> Thread.startVirtualThread(task));
+        }
+
+        @Override
+        public boolean awaitWritable() {
+            try {
+                return queue.awaitBelow(config.outboundQueueBytes / 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    // Estado e comandos de um cliente conectado; usado tanto pelo ClientHandler quanto pelo NioServer
+    static class ClientSession {
+        // Comandos aceitos antes do login
+        private static final CommandEngine<ClientSession> PUBLIC_COMMANDS = new CommandEngine<ClientSession>(metrics)
+                .on("HELP", (session, command) -> session.handleHelp())
+                .on("LOGIN", ClientSession::handleLogin)
+                .on("RESUME", ClientSession::handleResume)
+                .on("PING", (session, command) -> session.handlePing())
+                .on("PONG", (session, command) -> true);  // Resposta ao PING do servidor; basta ter chegado
+        private static final CommandEngine<ClientSession> COMMANDS = new CommandEngine<ClientSession>(metrics)
+                .on("REGISTER", ClientSession::handleRegister)
+                .on("MESSAGE", ClientSession::handleMessage)
+                .on("LOGOUT", (session, command) -> session.handleLogout())
+                .on("LIST_USERS", ClientSession::handleListUsers)
+                .on("KILL", ClientSession::handleKill)
+                .on("GROUP_CREATE", ClientSession::handleGroupCreate)
+                .on("GROUP_JOIN", ClientSession::handleGroupJoin)
+                .on("GROUP_LEAVE", ClientSession::handleGroupLeave)
+                .on("GROUP_MESSAGE", ClientSession::handleGroupMessage)
+                .on("BROADCAST", ClientSession::handleBroadcast)
+                .on("HISTORY", ClientSession::handleHistory)
+                .on("SEARCH", ClientSession::handleSearch)
+                .on("SEND_FILE", ClientSession::handleSendFile)
+                .on("GET_FILE", ClientSession::handleGetFile)
+                .on("SUBSCRIBE_PRESENCE", (session, command) -> session.handleSubscribePresence())
+                .on("UNSUBSCRIBE_PRESENCE", (session, command) -> session.handleUnsubscribePresence())
+                .on("ACK", ClientSession::handleAck);
+        // Comandos que não esperam pelo disco nem por outras sessões; no modo nio só eles rodam no event loop
+        private static final Set<String> INLINE_COMMANDS = Set.of("HELP", "PING", "PONG");
+
+        private final Connection connection;
+        private PrintWriter out;  // Usado apenas pela thread que processa os comandos da sessão
+        private final CommandEngine.Line command = new CommandEngine.Line();
+        private volatile String username;
+
+        // Protocolo binário: as respostas de cada comando levam o id do pedido em andamento
+        private volatile boolean binary;
+        private int requestId;
+
+        // Pedidos pendentes de entrega do backlog offline; só uma entrega roda por vez
+        private final AtomicInteger drainRequests = new AtomicInteger();
+        // Com a política SPILL, enquanto houver backlog as entregas vão para a caixa offline para manter a ordem
+        private volatile boolean spilling;
+
+        // Sessão retomável: mensagens numeradas e guardadas até o ACK do cliente
+        private volatile ReplayBuffer replay;
+        private volatile boolean retired;  // Assumida por outra conexão com RESUME
+        private final AtomicBoolean drainWaitingAck = new AtomicBoolean();  // Backlog parado com o buffer de replay cheio
+
+        // Inatividade, no relógio da TIMERS: qualquer comando (inclusive PONG) conta como sinal de vida
+        private volatile long lastActivity = TIMERS.now();
+        private volatile long lastPing;
+        private volatile TimingWheel.Timeout idleCheck;
+        private volatile boolean idleCheckStopped;
+
+        // Limites de taxa (ver RateLimiter); null quando o limite está desativado
+        private final TokenBucket connectionBucket = limiter.newConnectionBucket();
+        private final TokenBucket loginFailures = limiter.newLoginFailureBucket();
+        private TokenBucket userBucket;  // Do usuário logado, compartilhado com as outras sessões dele
+
+        ClientSession(Connection connection) {
+            this.connection = connection;
+            this.out = new PrintWriter(new OutboundQueue.EncodingWriter(connection::send), true);
+        }
+
+        // Chamado pelo transporte ao receber o preâmbulo binário, antes de qualquer comando
+        void startBinary() {
+            binary = true;
+            out = new PrintWriter(new OutboundQueue.EncodingWriter(this::sendReply), true);
+            connection.send(WireProtocol.frame(WireProtocol.HELLO, 0, String.valueOf(WireProtocol.VERSION)));
+        }
+
+        // Retorna false quando a sessão deve ser encerrada
+        boolean handleFrame(WireProtocol.Frame frame) {
+            if (frame.opcode != WireProtocol.COMMAND) {
+                Log.warn(Log.Category.CONNECTION, "Quadro desconhecido (opcode " + frame.opcode + "), encerrando a conexão.");
+                return false;
+            }
+            requestId = frame.requestId;
+            boolean keepOpen = handleCommand(frame.payload);
+            connection.send(WireProtocol.frame(WireProtocol.REPLY_END, requestId, ""));
+            return keepOpen;
+        }
+
+        // Cada println vira um quadro REPLY, sem o separador de linha
+        private void sendReply(byte[] line) {
+            int length = line.length;
+            while (length > 0 && (line[length - 1] == '\n' || line[length - 1] == '\r')) {
+                length--;
+            }
+            connection.send(WireProtocol.frame(WireProtocol.REPLY, requestId, line, 0, length));
+        }
+
+        // Codifica uma linha que não é resposta a um comando da sessão
+        private byte[] encodePush(String line) {
+            return binary ? WireProtocol.frame(WireProtocol.PUSH, 0, line) : encodeLine(line);
+        }
+
+        private byte[] encodePush(Push push) {
+            return binary ? push.frame() : push.text();
+        }
+
+        // Numa sessão retomável: no binário a sequência vai no id do PUSH, no texto como prefixo "#<seq> "
+        private byte[] encodePush(int seq, String line) {
+            return binary ? WireProtocol.frame(WireProtocol.PUSH, seq, line) : encodeLine("#" + seq + " " + line);
+        }
+
+        // Se o comando (uma linha, ou o payload de um quadro) pode rodar no event loop do modo nio
+        static boolean runsInline(String text) {
+            int end = text.indexOf(' ');
+            return INLINE_COMMANDS.contains(end < 0 ? text : text.substring(0, end));
+        }
+
+        // Retorna false quando a sessão deve ser encerrada
+        boolean handleCommand(String text) {
+            lastActivity = TIMERS.now();
+            command.parse(text);
+            // Só o verbo: o resto da linha pode ter senhas e mensagens
+            if (Log.enabled(Log.Level.DEBUG, Log.Category.COMMAND) && command.count() > 0) {
+                Log.debug(Log.Category.COMMAND, "Comando " + command.token(0) + (username != null ? " de " + username : ""));
+            }
+            if (!isExemptFromRateLimit(command)) {
+                String limited = limiter.admit(connectionBucket, username != null ? userBucket : null, username);
+                if (limited != null) {
+                    out.println(limited);
+                    return true;
+                }
+            }
+            CommandEngine.Handler<ClientSession> handler = PUBLIC_COMMANDS.lookup(command);
+            if (handler == null) {
+                if (this.username == null) {
+                    metrics.invalidCommands.increment();
+                    out.println("AUTH FAIL: Você deve estar autenticado para executar comandos.");
+                    return true;
+                }
+                handler = COMMANDS.lookup(command);
+            }
+            if (handler == null) {
+                metrics.invalidCommands.increment();
+                out.println(INVALID_COMMAND);
+                return true;
+            }
+            return handler.handle(this, command);
+        }
+
+        // Confirmações e PONG são enviados pela biblioteca do cliente e recusá-los quebraria a retomada e o heartbeat;
+        // LOGOUT só libera recursos
+        private static boolean isExemptFromRateLimit(CommandEngine.Line command) {
+            return command.count() > 0
+                    && (command.tokenEquals(0, "ACK") || command.tokenEquals(0, "PONG") || command.tokenEquals(0, "LOGOUT"));
+        }
+
+        // Retorna false se a mensagem foi descartada por causa de um cliente lento
+        boolean deliver(Push push) {
+            String line = push.line;
+            ReplayBuffer resume = replay;
+            if (resume == null && retired) {
+                return redeliver(push);
+            }
+            if (spilling) {
+                return spill(line);
+            }
+            if (resume != null ? offerNumbered(resume, line) : connection.offer(encodePush(push))) {
+                return true;
+            }
+            if (retired) {
+                return redeliver(push);
+            }
+            String user = username;
+            if (user != null && !registry.isOnline(user, this)) {
+                return enqueueOffline(user, line);  // A sessão saiu depois de ser encontrada pelo remetente
+            }
+            switch (config.slowConsumer) {
+                case DROP:
+                    return false;
+                case SPILL:
+                    spilling = true;
+                    return spill(line);
+                default:
+                    Log.warn(Log.Category.CONNECTION, "Desconectando " + user + ": cliente não está lendo as mensagens.");
+                    disconnectSlow(user);
+                    return enqueueOffline(user, line);
+            }
+        }
+
+        // --slow-consumer=disconnect: derruba a conexão levando para a caixa offline, antes da entrega que não coube,
+        // o que ainda estava na fila de saída; numa sessão retomável, o que o cliente não confirmou (como expire())
+        private void disconnectSlow(String user) {
+            ReplayBuffer resume = replay;
+            if (resume != null) {
+                resume.lock.lock();
+                try {
+                    if (replay == resume) {
+                        end(resume);
+                        return;
                     }
+                } finally {
+                    resume.lock.unlock();
                 }
-            } catch (SocketException e) {
-                System.out.println("Socket fechado: " + e.getMessage());
+            }
+            if (!registry.logout(user, this)) {
+                connection.abort();
+                return;
+            }
+            moveUnsentOffline(user);
+        }
+
+        // Entrega numerada; sem conexão, guarda no buffer até o RESUME ou, com ele cheio, na caixa offline
+        private boolean offerNumbered(ReplayBuffer resume, String line) {
+            resume.lock.lock();
+            try {
+                if (retired) {
+                    return false;
+                }
+                if (resume.detached) {
+                    if (resume.hasRoom(1)) {
+                        resume.add(resume.nextSeq(), line);
+                        return true;
+                    }
+                    spilling = true;
+                    return enqueueOffline(username, line);
+                }
+                int seq = resume.nextSeq();
+                if (!connection.offer(encodePush(seq, line))) {
+                    return false;
+                }
+                resume.add(seq, line);
+                return true;
+            } finally {
+                resume.lock.unlock();
+            }
+        }
+
+        // Respostas e backlog da própria sessão; false se a conexão foi fechada
+        private boolean sendPush(String line) {
+            ReplayBuffer resume = replay;
+            if (resume == null) {
+                return connection.sendDelivery(encodePush(line));
+            }
+            resume.lock.lock();
+            try {
+                if (resume.detached || retired) {
+                    return false;
+                }
+                int seq = resume.nextSeq();
+                if (!connection.send(encodePush(seq, line))) {
+                    return false;
+                }
+                resume.add(seq, line);
+                return true;
+            } finally {
+                resume.lock.unlock();
+            }
+        }
+
+        // Avisos de presença (PresenceFeed): fora da sequência da sessão retomável e nunca levados à caixa offline
+        boolean offerUntracked(Push push) {
+            return connection.offer(encodePush(push));
+        }
+
+        // O remetente encontrou esta sessão logo antes de ela ser assumida por um RESUME
+        private boolean redeliver(Push push) {
+            ClientSession current = registry.session(username);
+            return current != null && current != this ? current.deliver(push) : enqueueOffline(username, push.line);
+        }
+
+        void kill() {
+            kill("KILLED: Você foi desconectado pelo técnico.");
+        }
+
+        void kill(String notice) {
+            endResumable();
+            connection.offer(encodePush(notice));
+            connection.close();
+        }
+
+        String username() {
+            return username;
+        }
+
+        private boolean spill(String line) {
+            if (!enqueueOffline(username, line)) {
+                return false;
+            }
+            sendOfflineMessages();
+            return true;
+        }
+
+        private static boolean enqueueOffline(String user, String line) {
+            try {
+                return offlineMessages.enqueue(user, line);
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error(Log.Category.STORAGE, "Falha ao gravar mensagem offline para " + user, e);
+                return false;
+            }
+        }
+
+        long pendingBytes() {
+            return connection.pendingBytes();
+        }
+
+        // Chamado pelo transporte quando a conexão é aceita. O prazo é verificado de forma preguiçosa: cada comando
+        // só atualiza lastActivity, e quando a verificação vence ela é reagendada para o novo prazo, em vez de
+        // cancelar e agendar um timer por comando
+        void startIdleCheck() {
+            if (config.heartbeatSeconds > 0 || config.idleTimeoutSeconds > 0) {
+                scheduleIdleCheck(TIMERS.now());
+            }
+        }
+
+        private void scheduleIdleCheck(long now) {
+            long last = lastActivity;
+            long next = Long.MAX_VALUE;
+            if (config.heartbeatSeconds > 0) {
+                next = Math.max(last, lastPing) + config.heartbeatSeconds * 1000L;
+            }
+            if (config.idleTimeoutSeconds > 0) {
+                next = Math.min(next, last + config.idleTimeoutSeconds * 1000L);
+            }
+            idleCheck = TIMERS.schedule(this::checkIdle, next - now, TimeUnit.MILLISECONDS);
+            if (idleCheckStopped) {
+                idleCheck.cancel();  // closed() rodou enquanto a verificação era reagendada
+            }
+        }
+
+        // Na thread da TIMERS: PING depois de --heartbeat-seconds em silêncio, fim da sessão depois de --idle-timeout-seconds
+        private void checkIdle() {
+            if (idleCheckStopped) {
+                return;
+            }
+            long now = TIMERS.now();
+            long idle = now - lastActivity;
+            if (config.idleTimeoutSeconds > 0 && idle >= config.idleTimeoutSeconds * 1000L) {
+                Thread.startVirtualThread(this::reap);
+                return;
+            }
+            if (config.heartbeatSeconds > 0 && now - Math.max(lastActivity, lastPing) >= config.heartbeatSeconds * 1000L) {
+                lastPing = now;
+                connection.send(encodePush("PING"));  // Fora da sequência da sessão retomável e nunca levado à caixa offline
+            }
+            scheduleIdleCheck(now);
+        }
+
+        private void stopIdleCheck() {
+            idleCheckStopped = true;
+            TimingWheel.Timeout check = idleCheck;
+            if (check != null) {
+                check.cancel();
+            }
+        }
+
+        // O cliente sumiu sem fechar a conexão (queda de rede, máquina desligada). Uma sessão retomável segue o
+        // caminho normal da conexão perdida e espera o RESUME; nas outras, as entregas ainda na fila de saída
+        // vão para a caixa offline, e as seguintes também, porque a sessão sai do registro antes
+        private void reap() {
+            metrics.idleSessions.increment();
+            String user = username;
+            Log.info(Log.Category.CONNECTION, "Encerrando sessão inativa" + (user != null ? " de " + user : ""));
+            if (user == null || replay != null || retired || !registry.logout(user, this)) {
+                connection.abort();
+                return;
+            }
+            moveUnsentOffline(user);
+        }
+
+        // Fecha a conexão de uma sessão já fora do registro, levando as entregas não escritas para a caixa offline
+        private void moveUnsentOffline(String user) {
+            int moved = 0;
+            for (byte[] data : connection.abortUnsent()) {
+                if (enqueueOffline(user, decodePush(data))) {
+                    moved++;
+                }
+            }
+            if (moved > 0) {
+                Log.info(Log.Category.CONNECTION, moved + " mensagens não enviadas a " + user + " foram para a caixa offline");
+            }
+        }
+
+        // Inverso de encodePush(String) para uma entrega sem número de sequência
+        private String decodePush(byte[] data) {
+            if (binary) {
+                return WireProtocol.decode(data, 4, data.length - 4).payload;
+            }
+            int length = data.length;
+            while (length > 0 && (data[length - 1] == '\n' || data[length - 1] == '\r')) {
+                length--;
+            }
+            return new String(data, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // Chamado pelo transporte quando a conexão termina; uma sessão retomável continua online esperando o RESUME
+        // Numa sessão sem RESUME, o que ainda não foi escrito (entregas e páginas do backlog offline, que já saíram
+        // da caixa) volta para a caixa offline, como em reap()
+        void closed() {
+            stopIdleCheck();
+            String user = username;
+            if (user == null || (replay != null && detach())) {
+                return;
+            }
+            if (registry.logout(user, this) && replay == null && !retired) {
+                moveUnsentOffline(user);
+            }
+            endResumable();
+        }
+
+        private boolean detach() {
+            ReplayBuffer resume = replay;
+            if (resume == null) {
+                return false;
+            }
+            resume.lock.lock();
+            try {
+                if (replay != resume || !registry.isOnline(username, this)) {
+                    return false;
+                }
+                resume.detached = true;
+                // expire() grava na caixa offline, o que não deve prender a thread da timing wheel
+                resume.expiry = TIMERS.schedule(() -> Thread.startVirtualThread(this::expire),
+                        config.resumeGraceSeconds, TimeUnit.SECONDS);
+                Log.debug(Log.Category.CONNECTION, "Sessão de " + username + " aguardando RESUME");
+                return true;
+            } finally {
+                resume.lock.unlock();
+            }
+        }
+
+        // Fim da espera pelo RESUME, ou login novo do mesmo usuário: o que o cliente não confirmou vai para a caixa offline
+        private boolean expire() {
+            ReplayBuffer resume = replay;
+            if (resume == null) {
+                return false;
+            }
+            resume.lock.lock();
+            try {
+                if (replay != resume || !resume.detached) {
+                    return false;
+                }
+                end(resume);
+                return true;
+            } finally {
+                resume.lock.unlock();
+            }
+        }
+
+        // Chamado com o lock do buffer
+        private void end(ReplayBuffer resume) {
+            resume.detached = false;
+            if (resume.expiry != null) {
+                resume.expiry.cancel();
+            }
+            resumable.remove(resume.token, this);
+            for (String line : resume.drain()) {
+                enqueueOffline(username, line);
+            }
+            replay = null;
+            registry.logout(username, this);
+            connection.abort();
+        }
+
+        // LOGOUT, KILL ou login com outro usuário: as mensagens não confirmadas já foram enviadas e são descartadas
+        private void endResumable() {
+            ReplayBuffer resume = replay;
+            if (resume == null) {
+                return;
+            }
+            resume.lock.lock();
+            try {
+                if (replay == resume) {
+                    resume.detached = false;
+                    if (resume.expiry != null) {
+                        resume.expiry.cancel();
+                    }
+                    resumable.remove(resume.token, this);
+                    replay = null;
+                }
             } finally {
-                if (username != null) {
-                    onlineUsers.remove(username);
+                resume.lock.unlock();
+            }
+        }
+
+        // Passa o usuário, o buffer e o backlog para a conexão que enviou o RESUME
+        private boolean handOver(ClientSession next, int lastSeq) {
+            ReplayBuffer resume = replay;
+            if (resume == null) {
+                return false;
+            }
+            resume.lock.lock();
+            try {
+                if (replay != resume) {
+                    return false;
+                }
+                List<ReplayBuffer.Entry> missed = resume.after(lastSeq);
+                if (missed == null) {
+                    end(resume);  // Faltam mensagens já descartadas: o novo login recebe tudo pela caixa offline
+                    return false;
+                }
+                if (!presence.resume(username, this, next)) {
+                    return false;
+                }
+                resume.ack(lastSeq);
+                resume.detached = false;
+                if (resume.expiry != null) {
+                    resume.expiry.cancel();
                 }
-                try {
-                    socket.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                next.userBucket = userBucket;
+                next.username = username;
+                next.spilling = spilling;
+                next.replay = resume;
+                resumable.put(resume.token, next);
+                retired = true;
+                replay = null;
+                connection.abort();  // Conexão meio aberta que o servidor ainda não tinha percebido
+
+                next.out.println("RESUME SUCCESS");
+                for (ReplayBuffer.Entry entry : missed) {
+                    next.connection.send(next.encodePush(entry.seq, entry.line));
                 }
+            } finally {
+                resume.lock.unlock();
             }
+            next.sendOfflineMessages();
+            return true;
         }
 
-        private void handleRegister(String command, PrintWriter out) {
-            if (!userCredentials.get(this.username)[1].equals("Tecnico")) {
+        private boolean handleRegister(CommandEngine.Line command) {
+            if (registry.type(this.username) != UserType.TECNICO) {
                 out.println("REGISTER FAIL: Apenas técnicos podem registrar novos usuários.");
-                return;
+            } else {
+                registerUser(command, out);
             }
+            return true;
+        }
 
-            String[] tokens = command.split(" ");
-            if (tokens.length < 4) {
-                out.println("REGISTER FAIL: Formato inválido. Use: REGISTER <username> <password> <tipo> [<titulação>/ <ano de ingresso>]");
-                return;
+        private boolean handleLogin(CommandEngine.Line command) {
+            if (command.count() < 3) {
+                out.println("LOGIN FAIL: Formato inválido. Use: LOGIN <username> <password>");
+                return true;
             }
-            String username = tokens[1];
-            String password = tokens[2];
-            String userType = tokens[3];
-
-            if (userCredentials.containsKey(username)) {
-                out.println("REGISTER FAIL: Usuário já registrado.");
-                return;
+            String username = command.token(1);
+            String password = command.token(2);
+            boolean wantsResume = command.count() > 3 && command.tokenEquals(3, "RESUME");
+            String limited = limiter.admitLogin(loginFailures, username);
+            if (limited != null) {
+                out.println(limited);
+                return true;
             }
-
-            String attribute = null;
-            switch (userType) {
-                case "Professor":
-                    if (tokens.length < 5) {
-                        out.println("REGISTER FAIL: Professores devem fornecer a titulação.");
-                        return;
+            String previous = this.username;
+            if (previous != null && !previous.equals(username)) {
+                endResumable();
+                this.username = null;
+                registry.logout(previous, this);
+            }
+            UserRegistry.LoginResult result = registry.login(username, password, this);
+            if (result == UserRegistry.LoginResult.ALREADY_ONLINE) {
+                // A sessão existente só esperava um RESUME que não vai chegar (o cliente perdeu o token)
+                ClientSession current = registry.session(username);
+                if (current != null && current != this && current.expire()) {
+                    result = registry.login(username, password, this);
+                }
+            }
+            switch (result) {
+                case SUCCESS:
+                    userBucket = limiter.userBucket(username, registry.type(username));
+                    this.username = username;
+                    out.println("LOGIN SUCCESS");
+                    if (wantsResume) {
+                        startResumable();
                     }
-                    attribute = tokens[4];
-                    break;
-                case "Aluno":
-                    if (tokens.length < 5) {
-                        out.println("REGISTER FAIL: Alunos devem fornecer o ano de ingresso.");
-                        return;
+                    sendOfflineMessages();
+                    if (cluster != null) {
+                        cluster.requestBacklog(username);
                     }
-                    attribute = tokens[4];
                     break;
-                case "Tecnico":
-                    // Técnico não tem atributo adicional
+                case ALREADY_ONLINE:
+                    out.println("LOGIN FAIL: Usuário já está online.");
                     break;
                 default:
-                    out.println("REGISTER FAIL: Tipo de usuário inválido. Use: Tecnico, Professor ou Aluno.");
-                    return;
+                    limiter.loginFailed(loginFailures, username, registry.exists(username));
+                    out.println("LOGIN FAIL: Usuário ou senha inválidos.");
+            }
+            return true;
+        }
+
+        private boolean handleMessage(CommandEngine.Line command) {
+            if (command.count() < 3) {
+                out.println("MESSAGE FAIL: Formato inválido. Use: MESSAGE <recipient> <message>");
+                return true;
+            }
+            String recipient = command.token(1);
+            // Só cadastrados ganham caixa offline e registro no histórico; o tamanho é conferido antes da busca
+            if (recipient.length() > UserDirectory.MAX_FIELD_BYTES || !registry.exists(recipient)) {
+                out.println("MESSAGE FAIL: Usuário não encontrado.");
+                return true;
+            }
+            String message = command.rest(2);
+            if (Log.enabled(Log.Level.DEBUG, Log.Category.MESSAGE)) {
+                Log.debug(Log.Category.MESSAGE, "Mensagem de " + username + " para " + recipient + " (" + message.length() + " caracteres)");
             }
 
-            userCredentials.put(username, new String[]{password, userType});
-            userAttributes.put(username, attribute);
-            offlineMessages.put(username, new ArrayList<>());
-            out.println("REGISTER SUCCESS");
+            String line = "MESSAGE " + username + ": " + message;
+            boolean accepted = true;
+            ClientSession recipientSession = registry.session(recipient);
+            if (recipientSession != null) {
+                if (!recipientSession.deliver(new Push(line))) {
+                    out.println("MESSAGE FAIL: " + recipient + " não está conseguindo receber mensagens no momento.");
+                    accepted = false;
+                }
+            } else if (cluster == null || !cluster.route(recipient, line)) {
+                try {
+                    if (!offlineMessages.enqueue(recipient, line)) {
+                        out.println("MESSAGE FAIL: A caixa de mensagens de " + recipient + " está cheia.");
+                        accepted = false;
+                    }
+                } catch (IOException e) {
+                    Log.error(Log.Category.STORAGE, "Falha ao gravar mensagem offline para " + recipient, e);
+                    accepted = false;
+                }
+            }
+            if (accepted && history != null) {
+                history.record(username, recipient, message);
+            }
+            return true;
+        }
 
+        // SEND_FILE <destinatário> <bytes> <nome>: só reserva o upload; o conteúdo vai pela porta de dados (ver FileTransfers)
+        private boolean handleSendFile(CommandEngine.Line command) {
+            if (files == null) {
+                out.println("SEND_FILE FAIL: Transferência de arquivos desativada no servidor.");
+                return true;
+            }
+            if (command.count() < 4) {
+                out.println("SEND_FILE FAIL: Formato inválido. Use: SEND_FILE <recipient> <bytes> <nome>");
+                return true;
+            }
+            String recipient = command.token(1);
+            long size;
             try {
-                saveUserData();
-            } catch (IOException e) {
-                e.printStackTrace();
+                size = Long.parseLong(command.token(2));
+            } catch (NumberFormatException e) {
+                size = -1;
+            }
+            String name = command.rest(3);
+            if (size <= 0 || size > files.maxFileBytes()) {
+                out.println("SEND_FILE FAIL: O arquivo deve ter entre 1 e " + files.maxFileBytes() + " bytes.");
+            } else if (!isValidFileName(name)) {
+                out.println("SEND_FILE FAIL: Nome de arquivo inválido.");
+            } else if (!registry.exists(recipient)) {
+                out.println("SEND_FILE FAIL: Usuário " + recipient + " não encontrado.");
+            } else {
+                out.println("SEND_FILE READY " + files.reserveUpload(username, recipient, size, name) + " " + files.port());
             }
+            return true;
         }
 
-        private void handleLogin(String command, PrintWriter out) {
-            String[] tokens = command.split(" ");
-            if (tokens.length < 3) {
-                out.println("LOGIN FAIL: Formato inválido. Use: LOGIN <username> <password>");
-                return;
+        // GET_FILE <id>: ticket para baixar um arquivo enviado por ou para o usuário
+        private boolean handleGetFile(CommandEngine.Line command) {
+            if (files == null) {
+                out.println("GET_FILE FAIL: Transferência de arquivos desativada no servidor.");
+                return true;
+            }
+            if (command.count() != 2) {
+                out.println("GET_FILE FAIL: Formato inválido. Use: GET_FILE <id>");
+                return true;
             }
-            String username = tokens[1];
-            String password = tokens[2];
-            if (userCredentials.containsKey(username) && password.equals(userCredentials.get(username)[0])) {
-                this.username = username;
-                onlineUsers.put(username, socket);
-                out.println("LOGIN SUCCESS");
-                sendOfflineMessages(out);
+            FileTransfers.FileInfo file = files.file(command.token(1), username);
+            if (file == null) {
+                out.println("GET_FILE FAIL: Arquivo não encontrado ou expirado.");
             } else {
-                out.println("LOGIN FAIL: Usuário ou senha inválidos.");
+                out.println("GET_FILE READY " + files.reserveDownload(file) + " " + files.port() + " " + file.size + " " + file.name);
             }
+            return true;
         }
 
-        private void handleMessage(String command, PrintWriter out) {
-            String[] tokens = command.split(" ", 3);
-            if (tokens.length < 3) {
-                out.println("MESSAGE FAIL: Formato inválido. Use: MESSAGE <recipient> <message>");
-                return;
+        // O nome só é mostrado ao destinatário, mas não pode virar um caminho nem quebrar a linha do aviso
+        private static boolean isValidFileName(String name) {
+            if (name.isBlank() || name.equals(".") || name.equals("..")
+                    || name.getBytes(StandardCharsets.UTF_8).length > FileTransfers.MAX_NAME_BYTES) {
+                return false;
             }
-            String recipient = tokens[1];
-            String message = tokens[2];
-            System.out.println("Processando mensagem de " + username + " para " + recipient + ": " + message);
+            for (int i = 0; i < name.length(); i++) {
+                char c = name.charAt(i);
+                if (c < ' ' || c == '/' || c == '\\' || c == 0x7F) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
-            if (onlineUsers.containsKey(recipient)) {
-                try {
-                    Socket recipientSocket = onlineUsers.get(recipient);
-                    PrintWriter recipientOut = new PrintWriter(recipientSocket.getOutputStream(), true);
-                    recipientOut.println("MESSAGE " + username + ": " + message);
-                } catch (IOException e) {
-                    e.printStackTrace();
+        // HISTORY <usuário> [limite] [antes]: a conversa com o usuário, da mais antiga para a mais recente
+        private boolean handleHistory(CommandEngine.Line command) {
+            if (command.count() < 2 || command.count() > 4) {
+                out.println("HISTORY FAIL: Formato inválido. Use: HISTORY <username> [limite] [antes]");
+                return true;
+            }
+            String other = command.token(1);
+            return listHistory("HISTORY", other, command,
+                    (limit, before) -> history.conversation(username, other, limit, before));
+        }
+
+        // SEARCH <termo> [limite] [antes]: mensagens enviadas ou recebidas com o termo, sem diferenciar acentos
+        private boolean handleSearch(CommandEngine.Line command) {
+            if (command.count() < 2 || command.count() > 4) {
+                out.println("SEARCH FAIL: Formato inválido. Use: SEARCH <termo> [limite] [antes]");
+                return true;
+            }
+            String term = command.token(1);
+            if (MessageHistory.terms(term).isEmpty()) {
+                out.println("SEARCH FAIL: O termo precisa ter ao menos duas letras ou dígitos.");
+                return true;
+            }
+            return listHistory("SEARCH", term, command, (limit, before) -> history.search(username, term, limit, before));
+        }
+
+        // Consulta do HISTORY ou do SEARCH, com o limite e o cursor já validados
+        private interface HistoryQuery {
+            List<HistoryPartition.Record> run(int limit, MessageHistory.Before before) throws IOException;
+        }
+
+        // Com a página cheia, a linha MORE traz o id a usar como [antes] para a página anterior
+        private boolean listHistory(String name, String subject, CommandEngine.Line command, HistoryQuery query) {
+            if (history == null) {
+                out.println(name + " FAIL: Histórico desativado neste servidor.");
+                return true;
+            }
+            int limit = HISTORY_PAGE_SIZE;
+            MessageHistory.Before before = MessageHistory.Before.NONE;
+            try {
+                if (command.count() >= 3) {
+                    limit = Math.min(parseListNumber("limite", command.token(2)), MessageHistory.MAX_LIMIT);
                 }
-            } else {
-                List<String> messages = offlineMessages.computeIfAbsent(recipient, k -> new ArrayList<>());
-                messages.add("MESSAGE " + username + ": " + message);
-                try {
-                    saveOfflineMessages();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                if (command.count() == 4) {
+                    before = MessageHistory.Before.parse(command.token(3));
                 }
+            } catch (IllegalArgumentException e) {
+                out.println(name + " FAIL: " + e.getMessage());
+                return true;
+            }
+            List<HistoryPartition.Record> records;
+            try {
+                records = query.run(limit, before);
+            } catch (IOException e) {
+                Log.error(Log.Category.STORAGE, "Falha ao consultar o histórico de " + username, e);
+                out.println(name + " FAIL: Erro ao ler o histórico.");
+                return true;
+            }
+            out.println(name + " " + subject);
+            for (int i = records.size() - 1; i >= 0; i--) {
+                HistoryPartition.Record record = records.get(i);
+                out.println(record.id + " " + HISTORY_TIME.format(Instant.ofEpochMilli(record.timestamp)) + " "
+                        + record.sender + " -> " + record.recipient + ": " + record.message);
+            }
+            if (records.size() == limit) {
+                out.println("MORE " + records.get(records.size() - 1).id);
             }
+            out.println("END_" + name);
+            return true;
         }
 
-        private void sendOfflineMessages(PrintWriter out) {
-            List<String> messages = offlineMessages.get(username);
-            if (messages != null) {
-                for (String message : messages) {
-                    out.println(message);
-                }
-                messages.clear();
+        private void startResumable() {
+            if (replay == null) {
+                ReplayBuffer resume = new ReplayBuffer(config.resumeBuffer);
+                resumable.put(resume.token, this);
+                replay = resume;
+            }
+            out.println("SESSION " + replay.token);
+        }
+
+        // RESUME <token> <última sequência recebida>: retoma a sessão numa conexão nova sem login nem backlog completo
+        private boolean handleResume(CommandEngine.Line command) {
+            int lastSeq = -1;
+            if (command.count() >= 3) {
                 try {
-                    saveOfflineMessages();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    lastSeq = Integer.parseInt(command.token(2));
+                } catch (NumberFormatException e) {
+                    // tratado abaixo
+                }
+            }
+            if (lastSeq < 0) {
+                out.println("RESUME FAIL: Formato inválido. Use: RESUME <token> <última sequência>");
+                return true;
+            }
+            if (username != null) {
+                out.println("RESUME FAIL: Sessão já autenticada.");
+                return true;
+            }
+            ClientSession previous = resumable.get(command.token(1));
+            if (previous == null || !previous.handOver(this, lastSeq)) {
+                out.println("RESUME FAIL: Sessão expirada ou inválida. Faça login novamente.");
+            }
+            return true;
+        }
+
+        // A resposta vem antes do estado atual (PRESENCE RESET e PRESENCE ONLINE ...), seguido das mudanças
+        private boolean handleSubscribePresence() {
+            out.println("SUBSCRIBE_PRESENCE SUCCESS");
+            presence.subscribe(username, this);
+            return true;
+        }
+
+        private boolean handleUnsubscribePresence() {
+            if (presence.unsubscribe(username, this)) {
+                out.println("UNSUBSCRIBE_PRESENCE SUCCESS");
+            } else {
+                out.println("UNSUBSCRIBE_PRESENCE FAIL: Presença não assinada.");
+            }
+            return true;
+        }
+
+        // ACK <seq>: o cliente recebeu tudo até seq; não tem resposta
+        private boolean handleAck(CommandEngine.Line command) {
+            ReplayBuffer resume = replay;
+            int seq;
+            try {
+                seq = command.count() < 2 ? -1 : Integer.parseInt(command.token(1));
+            } catch (NumberFormatException e) {
+                seq = -1;
+            }
+            if (resume == null || seq < 0) {
+                out.println("ACK FAIL: Use ACK <sequência> numa sessão iniciada com LOGIN <username> <password> RESUME.");
+                return true;
+            }
+            resume.lock.lock();
+            try {
+                resume.ack(seq);
+            } finally {
+                resume.lock.unlock();
+            }
+            if (drainWaitingAck.compareAndSet(true, false)) {
+                drainOfflineMessages();
+            }
+            return true;
+        }
+
+        private void sendOfflineMessages() {
+            if (drainRequests.getAndIncrement() == 0) {
+                drainOfflineMessages();
+            }
+        }
+
+        // Entrega o backlog em páginas; com a saída cheia, continua quando a conexão voltar a aceitar dados.
+        // Pedidos feitos durante a entrega são atendidos pela mesma execução.
+        private void drainOfflineMessages() {
+            String user = username;
+            try {
+                while (true) {
+                    int observed = drainRequests.get();
+                    while (user != null && user.equals(username)) {
+                        if (!connection.isWritable()) {
+                            connection.onWritable(this::drainOfflineMessages);
+                            return;
+                        }
+                        if (!hasReplayRoom()) {
+                            // Continua no próximo ACK; se ele chegou enquanto isso, quem desfizer a marca segue
+                            drainWaitingAck.set(true);
+                            if (hasReplayRoom() && drainWaitingAck.compareAndSet(true, false)) {
+                                continue;
+                            }
+                            return;
+                        }
+                        OfflineMessageStore.Page page = offlineMessages.nextPage(user, OFFLINE_PAGE_SIZE);
+                        if (page.isEmpty()) {
+                            spilling = false;
+                            break;
+                        }
+                        for (String message : page.messages) {
+                            if (!sendPush(message)) {
+                                drainRequests.set(0);
+                                return;  // Conexão perdida: as mensagens continuam pendentes
+                            }
+                        }
+                        offlineMessages.ack(user, page.lastSeq);
+                    }
+                    if (drainRequests.addAndGet(-observed) == 0) {
+                        return;
+                    }
                 }
+            } catch (IOException e) {
+                drainRequests.set(0);
+                Log.error(Log.Category.STORAGE, "Falha ao ler as mensagens offline de " + user, e);
+            }
+        }
+
+        // Uma página inteira do backlog cabe no buffer de replay sem descartar mensagens não confirmadas
+        private boolean hasReplayRoom() {
+            ReplayBuffer resume = replay;
+            if (resume == null) {
+                return true;
+            }
+            resume.lock.lock();
+            try {
+                return resume.size() == 0 || resume.hasRoom(OFFLINE_PAGE_SIZE);
+            } finally {
+                resume.lock.unlock();
             }
         }
 
-        private void handleLogout(PrintWriter out) {
+        private boolean handleLogout() {
             if (username != null) {
-                onlineUsers.remove(username);
+                endResumable();
+                registry.logout(username, this);
                 out.println("LOGOUT SUCCESS");
             }
+            return false;
         }
 
-        private void handleListUsers(PrintWriter out) {
-            out.println("USERS_LIST");
-            for (String user : userCredentials.keySet()) {
-                String status = onlineUsers.containsKey(user) ? "Online" : serverLoggedInUsers.contains(user) ? "Online no Servidor" : "Offline";
-                String userType = userCredentials.get(user)[1];
-                String attribute = userAttributes.get(user);
-                String attributeLabel = userType.equals("Professor") ? "Titulação" : (userType.equals("Aluno") ? "Ano de ingresso" : "");
-                out.println(user + " (" + userType + ") - " + (attributeLabel.isEmpty() ? "" : attributeLabel + ": " + attribute + " - ") + status);
+        // Sem filtros, o protocolo de texto recebe a resposta já codificada no snapshot, em pedaços de LIST_CHUNK_BYTES
+        private boolean handleListUsers(CommandEngine.Line command) {
+            if (command.count() == 1 && !binary) {
+                byte[] text = registry.snapshot().encodedText();
+                if (text.length <= LIST_CHUNK_BYTES) {
+                    connection.send(text);
+                    return true;
+                }
+                for (int offset = 0; offset < text.length && connection.awaitWritable(); offset += LIST_CHUNK_BYTES) {
+                    connection.send(Arrays.copyOfRange(text, offset, Math.min(text.length, offset + LIST_CHUNK_BYTES)));
+                }
+                return true;
             }
-            out.println("END_USERS_LIST");
+            return listUsers(command, out, connection);
         }
 
-        private void handleHelp(PrintWriter out) {
+        private boolean handleHelp() {
             out.println("HELP:");
             out.println("REGISTER <username> <password> <tipo> [<titulação>/ <ano de ingresso>]");
-            out.println("LOGIN <username> <password>");
+            out.println("LOGIN <username> <password> [RESUME]");
+            out.println("RESUME <token> <última sequência>");
+            out.println("ACK <sequência>");
             out.println("MESSAGE <recipient> <message>");
             out.println("LOGOUT");
-            out.println("LIST_USERS");
+            out.println("LIST_USERS [TYPE=<tipo>] [STATUS=online|offline|servidor] [ONLINE] [PAGE=<n>] [SIZE=<n>]");
             out.println("KILL <username>/ALL");
+            out.println("GROUP_CREATE <grupo>");
+            out.println("GROUP_JOIN <grupo>");
+            out.println("GROUP_LEAVE <grupo>");
+            out.println("GROUP_MESSAGE <grupo> <message>");
+            out.println("BROADCAST <tipo>/ALL <message>");
+            out.println("HISTORY <username> [limite] [antes]");
+            out.println("SEARCH <termo> [limite] [antes]");
+            out.println("SEND_FILE <recipient> <bytes> <nome>");
+            out.println("GET_FILE <id>");
+            out.println("SUBSCRIBE_PRESENCE");
+            out.println("UNSUBSCRIBE_PRESENCE");
+            out.println("PING");
+            out.println("PONG");
             out.println("HELP");
+            return true;
         }
 
-        private void handleInvalidCommand(PrintWriter out) {
-            out.println("Comando inválido. Digite HELP para ver a lista de comandos disponíveis.");
+        private boolean handlePing() {
+            out.println("PONG");
+            return true;
         }
 
-        private void handleKill(String command, PrintWriter out) {
-            if (!userCredentials.get(username)[1].equals("Tecnico")) {
+        private boolean handleKill(CommandEngine.Line command) {
+            if (registry.type(username) != UserType.TECNICO) {
                 out.println("KILL FAIL: Apenas técnicos podem usar este comando.");
-                return;
+            } else {
+                killUsers(command, out);
             }
+            return true;
+        }
 
-            String[] tokens = command.split(" ");
-            if (tokens.length < 2) {
-                out.println("KILL FAIL: Formato inválido. Use: KILL <username>/ALL");
-                return;
+        private boolean handleGroupCreate(CommandEngine.Line command) {
+            if (command.count() < 2) {
+                out.println("GROUP_CREATE FAIL: Formato inválido. Use: GROUP_CREATE <grupo>");
+                return true;
+            }
+            String group = command.token(1);
+            if (!GroupRegistry.isValidName(group)) {
+                out.println("GROUP_CREATE FAIL: Nome de grupo inválido. Use até 32 letras, números, _ ou -.");
+            } else if (!groups.create(group, username)) {
+                out.println("GROUP_CREATE FAIL: O grupo " + group + " já existe.");
+            } else {
+                out.println("GROUP_CREATE SUCCESS");
             }
+            return true;
+        }
 
-            String target = tokens[1];
-            if (target.equals("ALL")) {
-                for (String user : new HashSet<>(onlineUsers.keySet())) {
-                    disconnectUser(user);
-                }
-                out.println("KILL SUCCESS: Todos os usuários foram desconectados.");
+        private boolean handleGroupJoin(CommandEngine.Line command) {
+            if (command.count() < 2) {
+                out.println("GROUP_JOIN FAIL: Formato inválido. Use: GROUP_JOIN <grupo>");
+                return true;
+            }
+            String group = command.token(1);
+            switch (groups.join(group, username)) {
+                case SUCCESS:
+                    out.println("GROUP_JOIN SUCCESS");
+                    break;
+                case ALREADY_MEMBER:
+                    out.println("GROUP_JOIN FAIL: Você já participa do grupo " + group + ".");
+                    break;
+                default:
+                    out.println("GROUP_JOIN FAIL: O grupo " + group + " não existe.");
+            }
+            return true;
+        }
+
+        private boolean handleGroupLeave(CommandEngine.Line command) {
+            if (command.count() < 2) {
+                out.println("GROUP_LEAVE FAIL: Formato inválido. Use: GROUP_LEAVE <grupo>");
+                return true;
+            }
+            String group = command.token(1);
+            switch (groups.leave(group, username)) {
+                case SUCCESS:
+                    out.println("GROUP_LEAVE SUCCESS");
+                    break;
+                case NOT_MEMBER:
+                    out.println("GROUP_LEAVE FAIL: Você não participa do grupo " + group + ".");
+                    break;
+                default:
+                    out.println("GROUP_LEAVE FAIL: O grupo " + group + " não existe.");
+            }
+            return true;
+        }
+
+        private boolean handleGroupMessage(CommandEngine.Line command) {
+            if (command.count() < 3) {
+                out.println("GROUP_MESSAGE FAIL: Formato inválido. Use: GROUP_MESSAGE <grupo> <message>");
+                return true;
+            }
+            String group = command.token(1);
+            List<String> members = groups.members(group);
+            if (members == null) {
+                out.println("GROUP_MESSAGE FAIL: O grupo " + group + " não existe.");
+            } else if (!members.contains(username)) {
+                out.println("GROUP_MESSAGE FAIL: Você não participa do grupo " + group + ".");
             } else {
-                if (onlineUsers.containsKey(target)) {
-                    disconnectUser(target);
-                    out.println("KILL SUCCESS: Usuário " + target + " foi desconectado.");
-                } else {
-                    out.println("KILL FAIL: Usuário " + target + " não está online.");
-                }
+                int count = fanOut.send(members, new Push("GROUP " + group + " " + username + ": " + command.rest(2)), username);
+                out.println("GROUP_MESSAGE SUCCESS: Mensagem enviada para " + count + " membros.");
             }
+            return true;
         }
 
-        private void disconnectUser(String user) {
-            try {
-                Socket userSocket = onlineUsers.remove(user);
-                if (userSocket != null) {
-                    PrintWriter userOut = new PrintWriter(userSocket.getOutputStream(), true);
-                    userOut.println("KILLED: Você foi desconectado pelo técnico.");
-                    userSocket.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+        private boolean handleBroadcast(CommandEngine.Line command) {
+            UserType type = registry.type(username);
+            if (type != UserType.TECNICO && type != UserType.PROFESSOR) {
+                out.println("BROADCAST FAIL: Apenas técnicos e professores podem usar este comando.");
+                return true;
             }
+            return broadcast(command, username, out);
         }
     }
 
     private static class CommandHandler implements Runnable {
+        private static final CommandEngine<CommandHandler> COMMANDS = new CommandEngine<CommandHandler>()
+                .on("HELP", (console, command) -> console.handleHelp())
+                .on("REGISTER", (console, command) -> registerUser(command, console.out))
+                .on("MESSAGE", (console, command) -> console.reply("MESSAGE FAIL: Comando não permitido no console do servidor."))
+                .on("LOGOUT", (console, command) -> console.handleLogout())
+                .on("LIST_USERS", (console, command) -> listUsers(command, console.out, null))
+                .on("KILL", (console, command) -> killUsers(command, console.out))
+                .on("BROADCAST", (console, command) -> broadcast(command, console.authenticatedUser, console.out))
+                .on("STATS", (console, command) -> console.handleStats())
+                .on("RATE_LIMITS", (console, command) -> console.handleRateLimits());
+
+        private final PrintWriter out = new PrintWriter(System.out, true);
+        private final CommandEngine.Line command = new CommandEngine.Line();
         private boolean isAuthenticated = false;
         private String authenticatedUser = null;
 
         @Override
         public void run() {
             Scanner scanner = new Scanner(System.in);
-            PrintWriter out = new PrintWriter(System.out, true);
 
             while (true) {
                 if (!isAuthenticated) {
                     System.out.print("LOGIN <username> <password>: ");
-                    String command = scanner.nextLine();
-                    String[] tokens = command.split(" ");
-                    if (tokens.length == 3 && tokens[0].equals("LOGIN")) {
-                        String username = tokens[1];
-                        String password = tokens[2];
-                        if (userCredentials.containsKey(username) && password.equals(userCredentials.get(username)[0]) && userCredentials.get(username)[1].equals("Tecnico")) {
+                    command.parse(scanner.nextLine());
+                    if (command.count() == 3 && command.tokenEquals(0, "LOGIN")) {
+                        String username = command.token(1);
+                        String password = command.token(2);
+                        if (registry.authenticate(username, password) == UserType.TECNICO) {
                             isAuthenticated = true;
                             authenticatedUser = username;
-                            serverLoggedInUsers.add(username);  // Marcar técnico como logado no console
+                            registry.consoleLogin(username);  // Marcar técnico como logado no console
                             out.println("LOGIN SUCCESS");
                         } else {
                             out.println("LOGIN FAIL: Usuário ou senha inválidos, ou você não tem permissões de técnico.");
@@ -328,223 +1511,431 @@ public class ChatServer {
                     }
                 } else {
                     System.out.print(authenticatedUser + "> ");
-                    String command = scanner.nextLine();
-                    System.out.println("Comando recebido no console do servidor: " + command);
+                    String text = scanner.nextLine();
 
-                    // Processar o comando como se fosse de um cliente fictício "admin"
-                    processServerCommand(command, out);
+                    // Os comandos do console já têm permissão de técnico
+                    CommandEngine.Handler<CommandHandler> handler = COMMANDS.lookup(command.parse(text));
+                    if (command.count() > 0) {
+                        Log.info(Log.Category.CONSOLE, "Comando " + command.token(0) + " de " + authenticatedUser + " no console");
+                    }
+                    if (handler == null) {
+                        out.println(INVALID_COMMAND);
+                    } else {
+                        handler.handle(this, command);
+                    }
                 }
             }
         }
 
-        private void processServerCommand(String command, PrintWriter out) {
-            if (command.startsWith("HELP")) {
-                handleHelp(out);
-            } else if (command.startsWith("REGISTER")) {
-                handleRegister(command, out);
-            } else if (command.startsWith("MESSAGE")) {
-                out.println("MESSAGE FAIL: Comando não permitido no console do servidor.");
-            } else if (command.startsWith("LOGOUT")) {
-                handleLogout(out);
-            } else if (command.startsWith("LIST_USERS")) {
-                handleListUsers(out);
-            } else if (command.startsWith("KILL")) {
-                handleKill(command, out);
-            } else {
-                handleInvalidCommand(out);
-            }
+        private boolean reply(String line) {
+            out.println(line);
+            return true;
         }
 
-        private void handleHelp(PrintWriter out) {
+        private boolean handleHelp() {
             out.println("HELP:");
             out.println("REGISTER <username> <password> <tipo> [<titulação>/ <ano de ingresso>]");
             out.println("MESSAGE <recipient> <message>");
-            out.println("LIST_USERS");
+            out.println("LIST_USERS [TYPE=<tipo>] [STATUS=online|offline|servidor] [ONLINE] [PAGE=<n>] [SIZE=<n>]");
             out.println("KILL <username>/ALL");
+            out.println("BROADCAST <tipo>/ALL <message>");
+            out.println("STATS");
+            out.println("RATE_LIMITS");
             out.println("LOGOUT");
             out.println("HELP");
+            return true;
         }
 
-        private void handleRegister(String command, PrintWriter out) {
-            String username = authenticatedUser; // Usuário autenticado no console do servidor
+        private boolean handleStats() {
+            out.println("STATS");
+            out.print(metrics.report());
+            out.flush();
+            return true;
+        }
 
-            String[] tokens = command.split(" ");
-            if (tokens.length < 4) {
-                out.println("REGISTER FAIL: Formato inválido. Use: REGISTER <username> <password> <tipo> [<titulação>/ <ano de ingresso>]");
-                return;
+        private boolean handleRateLimits() {
+            out.println("RATE_LIMITS");
+            out.print(limiter.report());
+            out.flush();
+            return true;
+        }
+
+        private boolean handleLogout() {
+            if (isAuthenticated) {
+                registry.consoleLogout(authenticatedUser);  // Remover técnico da lista de logados no console
+                isAuthenticated = false;
+                authenticatedUser = null;
+                out.println("LOGOUT SUCCESS");
             }
-            username = tokens[1];
-            String password = tokens[2];
-            String userType = tokens[3];
+            return true;
+        }
+    }
+
+    // user_data.txt (snapshot) e user_data.log (cadastros desde o último snapshot)
+    private static void loadUserData() throws IOException {
+        long start = System.nanoTime();
+        userStore = new UserStore(config.dataDir.resolve(USER_DATA_FILE), config.dataDir.resolve(USER_DATA_LOG), registry);
+        int count = userStore.open();
+        System.out.println(count + " usuários carregados em " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+        metrics.flush("user_data", userStore.snapshotLatency);
+        metrics.flush("user_data_log", userStore.appendLatency);
+    }
+
+    // REGISTER do cliente ou do console; quem chama já verificou que o usuário é técnico
+    private static boolean registerUser(CommandEngine.Line command, PrintWriter out) {
+        if (command.count() < 4) {
+            out.println("REGISTER FAIL: Formato inválido. Use: REGISTER <username> <password> <tipo> [<titulação>/ <ano de ingresso>]");
+            return true;
+        }
+        String username = command.token(1);
+        String password = command.token(2);
+        UserType userType = UserType.parse(command.token(3));
+        if (userType == null) {
+            out.println("REGISTER FAIL: Tipo de usuário inválido. Use: Tecnico, Professor ou Aluno.");
+            return true;
+        }
 
-            if (userCredentials.containsKey(username)) {
+        String attribute = null;
+        switch (userType) {
+            case PROFESSOR:
+                if (command.count() < 5) {
+                    out.println("REGISTER FAIL: Professores devem fornecer a titulação.");
+                    return true;
+                }
+                attribute = command.token(4);
+                break;
+            case ALUNO:
+                if (command.count() < 5) {
+                    out.println("REGISTER FAIL: Alunos devem fornecer o ano de ingresso.");
+                    return true;
+                }
+                attribute = command.token(4);
+                break;
+            default:
+                // Técnico não tem atributo adicional
+                break;
+        }
+
+        UserRegistry.UserRecord user = new UserRegistry.UserRecord(username, password, userType, attribute);
+        try {
+            if (!registry.register(user)) {
                 out.println("REGISTER FAIL: Usuário já registrado.");
-                return;
+                return true;
             }
+        } catch (IllegalArgumentException e) {
+            out.println("REGISTER FAIL: " + e.getMessage());
+            return true;
+        }
+        try {
+            userStore.append(user);
+        } catch (IOException e) {
+            Log.error(Log.Category.STORAGE, "Falha ao gravar o usuário " + username, e);
+            registry.unregister(user);
+            out.println("REGISTER FAIL: Não foi possível gravar o usuário.");
+            return true;
+        }
+        if (cluster != null) {
+            cluster.registered(user);
+        }
+        out.println("REGISTER SUCCESS");
+        return true;
+    }
 
-            String attribute = null;
-            switch (userType) {
-                case "Professor":
-                    if (tokens.length < 5) {
-                        out.println("REGISTER FAIL: Professores devem fornecer a titulação.");
-                        return;
-                    }
-                    attribute = tokens[4];
-                    break;
-                case "Aluno":
-                    if (tokens.length < 5) {
-                        out.println("REGISTER FAIL: Alunos devem fornecer o ano de ingresso.");
-                        return;
-                    }
-                    attribute = tokens[4];
-                    break;
-                case "Tecnico":
-                    // Técnico não tem atributo adicional
-                    break;
-                default:
-                    out.println("REGISTER FAIL: Tipo de usuário inválido. Use: Tecnico, Professor ou Aluno.");
-                    return;
+    // Remove as sessões do registro antes de encerrá-las, então cada uma é derrubada uma única vez
+    private static boolean killUsers(CommandEngine.Line command, PrintWriter out) {
+        if (command.count() < 2) {
+            out.println("KILL FAIL: Formato inválido. Use: KILL <username>/ALL");
+            return true;
+        }
+        String target = command.token(1);
+        if (target.equals("ALL")) {
+            for (ClientSession session : registry.killAll()) {
+                session.kill();
+            }
+            if (cluster != null) {
+                cluster.killAll();
             }
+            out.println("KILL SUCCESS: Todos os usuários foram desconectados.");
+            return true;
+        }
+        ClientSession session = registry.kill(target);
+        if (session != null) {
+            session.kill();
+            out.println("KILL SUCCESS: Usuário " + target + " foi desconectado.");
+        } else if (cluster != null && cluster.kill(target)) {
+            out.println("KILL SUCCESS: Usuário " + target + " foi desconectado.");
+        } else {
+            out.println("KILL FAIL: Usuário " + target + " não está online.");
+        }
+        return true;
+    }
 
-            userCredentials.put(username, new String[]{password, userType});
-            userAttributes.put(username, attribute);
-            offlineMessages.put(username, new ArrayList<>());
-            out.println("REGISTER SUCCESS");
+    // BROADCAST <tipo>/ALL <mensagem>: vai para todos os usuários cadastrados do tipo; quem está offline recebe na caixa de mensagens
+    private static boolean broadcast(CommandEngine.Line command, String sender, PrintWriter out) {
+        if (command.count() < 3) {
+            out.println("BROADCAST FAIL: Formato inválido. Use: BROADCAST <tipo>/ALL <message>");
+            return true;
+        }
+        boolean all = command.tokenEquals(1, "ALL");
+        UserType type = UserType.parse(command.token(1));
+        if (!all && type == null) {
+            out.println("BROADCAST FAIL: Tipo inválido. Use: Tecnico, Professor, Aluno ou ALL.");
+            return true;
+        }
+        List<String> recipients = registry.usernames(type);
+        int count = fanOut.send(recipients, new Push("BROADCAST " + sender + ": " + command.rest(2)), sender);
+        out.println("BROADCAST SUCCESS: Mensagem enviada para " + count + " usuários.");
+        return true;
+    }
 
-            try {
-                saveUserData();
-            } catch (IOException e) {
-                e.printStackTrace();
+    // Chamado pelos workers do FanOut
+    private static void deliverTo(String username, Push push) {
+        ClientSession session = registry.session(username);
+        if (session == null) {
+            if (cluster == null || !cluster.route(username, push.line)) {
+                ClientSession.enqueueOffline(username, push.line);
             }
+        } else {
+            session.deliver(push);
         }
+    }
 
-        private void handleKill(String command, PrintWriter out) {
-            String username = authenticatedUser;  // Usuário autenticado no console do servidor
+    // Pedidos de outros nós do cluster; chegam pela thread de leitura da conexão com o nó
+    private static class ClusterEvents implements ClusterNode.Listener {
+        // Entregas de backlog para outros nós, uma por vez para a mesma página não sair duas vezes
+        private final ExecutorService drains = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "cluster-drain");
+            thread.setDaemon(true);
+            return thread;
+        });
 
-            String[] tokens = command.split(" ");
-            if (tokens.length < 2) {
-                out.println("KILL FAIL: Formato inválido. Use: KILL <username>/ALL");
-                return;
+        // A sessão pode ter saído depois que o remetente a encontrou
+        @Override
+        public void deliver(String username, String line) {
+            ClientSession session = registry.session(username);
+            if (session != null) {
+                session.deliver(new Push(line));
+            } else if (!cluster.storeRemotely(username, line)) {
+                ClientSession.enqueueOffline(username, line);
             }
+        }
 
-            String target = tokens[1];
-            if (target.equals("ALL")) {
-                for (String user : new HashSet<>(onlineUsers.keySet())) {
-                    disconnectUser(user, out);
-                }
-                out.println("KILL SUCCESS: Todos os usuários foram desconectados.");
+        // Este é o nó dono; se o usuário já entrou por outro nó, o backlog segue para lá
+        @Override
+        public void enqueue(String username, String line) {
+            ClientSession.enqueueOffline(username, line);
+            ClientSession session = registry.session(username);
+            if (session != null) {
+                session.sendOfflineMessages();
             } else {
-                if (onlineUsers.containsKey(target)) {
-                    disconnectUser(target, out);
-                    out.println("KILL SUCCESS: Usuário " + target + " foi desconectado.");
-                } else {
-                    out.println("KILL FAIL: Usuário " + target + " não está online.");
+                String node = registry.remoteNode(username);
+                if (node != null) {
+                    drain(username, node);
                 }
             }
         }
 
-        private void disconnectUser(String user, PrintWriter out) {
-            try {
-                Socket userSocket = onlineUsers.remove(user);
-                if (userSocket != null) {
-                    PrintWriter userOut = new PrintWriter(userSocket.getOutputStream(), true);
-                    userOut.println("KILLED: Você foi desconectado pelo técnico.");
-                    userSocket.close();
+        @Override
+        public void backlog(String username, String line) {
+            ClientSession session = registry.session(username);
+            if (session == null || !session.connection.send(session.encodePush(line))) {
+                if (!cluster.storeRemotely(username, line)) {
+                    ClientSession.enqueueOffline(username, line);
                 }
-            } catch (IOException e) {
-                e.printStackTrace();
             }
         }
 
-        private void handleListUsers(PrintWriter out) {
-            out.println("USERS_LIST");
-            for (String user : userCredentials.keySet()) {
-                String status = onlineUsers.containsKey(user) ? "Online" : serverLoggedInUsers.contains(user) ? "Online no Servidor" : "Offline";
-                String userType = userCredentials.get(user)[1];
-                String attribute = userAttributes.get(user);
-                String attributeLabel = userType.equals("Professor") ? "Titulação" : (userType.equals("Aluno") ? "Ano de ingresso" : "");
-                out.println(user + " (" + userType + ") - " + (attributeLabel.isEmpty() ? "" : attributeLabel + ": " + attribute + " - ") + status);
+        @Override
+        public void kill(String username) {
+            if (username == null) {
+                for (ClientSession session : registry.killAll()) {
+                    session.kill();
+                }
+                return;
+            }
+            ClientSession session = registry.kill(username);
+            if (session != null) {
+                session.kill();
             }
-            out.println("END_USERS_LIST");
         }
 
-        private void handleLogout(PrintWriter out) {
-            if (isAuthenticated) {
-                serverLoggedInUsers.remove(authenticatedUser);  // Remover técnico da lista de logados no console
-                isAuthenticated = false;
-                authenticatedUser = null;
-                out.println("LOGOUT SUCCESS");
+        @Override
+        public void register(UserRegistry.UserRecord user) {
+            if (!registry.register(user)) {
+                return;
             }
+            try {
+                userStore.append(user);
+            } catch (IOException e) {
+                Log.error(Log.Category.STORAGE, "Falha ao gravar o usuário " + user.username + " vindo do cluster", e);
+                registry.unregister(user);
+            }
+        }
+
+        // A mensagem só sai da caixa depois de entrar na fila da conexão com o nó
+        @Override
+        public void drain(String username, String node) {
+            drains.execute(() -> {
+                try {
+                    while (true) {
+                        OfflineMessageStore.Page page = offlineMessages.nextPage(username, OFFLINE_PAGE_SIZE);
+                        if (page.isEmpty()) {
+                            return;
+                        }
+                        for (String message : page.messages) {
+                            if (!cluster.sendBacklog(node, username, message)) {
+                                return;
+                            }
+                        }
+                        offlineMessages.ack(username, page.lastSeq);
+                    }
+                } catch (IOException e) {
+                    Log.error(Log.Category.STORAGE, "Falha ao ler as mensagens offline de " + username, e);
+                }
+            });
         }
 
-        private void handleInvalidCommand(PrintWriter out) {
-            out.println("Comando inválido. Digite HELP para ver a lista de comandos disponíveis.");
+        @Override
+        public void replaced(String username) {
+            ClientSession session = registry.kill(username);
+            if (session != null) {
+                session.kill("KILLED: Sua sessão foi aberta em outro servidor.");
+            }
         }
     }
 
-    private static void loadUserData() throws IOException {
-        File file = new File(USER_DATA_FILE);
-        if (!file.exists()) {
-            return;
+    // LIST_USERS [TYPE=<tipo>] [STATUS=online|offline|servidor] [ONLINE] [PAGE=<n>] [SIZE=<n>]
+    // O snapshot do registro já vem em ordem de nome; aqui só se filtra e pagina, montando as linhas mostradas.
+    // Com a conexão de uma sessão, espera ela aceitar dados a cada LIST_CHUNK_LINES linhas; o console passa null.
+    private static boolean listUsers(CommandEngine.Line command, PrintWriter out, Connection connection) {
+        UserType type = null;
+        UserRegistry.Status status = null;
+        boolean onlineOnly = false;
+        int page = 0;
+        int size = 0;
+        try {
+            if (command.truncated()) {
+                throw new IllegalArgumentException("Opções demais. Use: LIST_USERS [TYPE=<tipo>] [STATUS=online|offline|servidor] [ONLINE] [PAGE=<n>] [SIZE=<n>]");
+            }
+            for (int i = 1; i < command.count(); i++) {
+                String option = command.token(i);
+                if (option.equals("ONLINE")) {
+                    onlineOnly = true;
+                } else if (option.startsWith("TYPE=")) {
+                    type = UserType.parse(option.substring(5));
+                    if (type == null) {
+                        throw new IllegalArgumentException("Tipo inválido: " + option.substring(5) + ". Use: Tecnico, Professor ou Aluno.");
+                    }
+                } else if (option.startsWith("STATUS=")) {
+                    status = parseStatus(option.substring(7));
+                } else if (option.startsWith("PAGE=")) {
+                    page = parseListNumber("PAGE", option.substring(5));
+                } else if (option.startsWith("SIZE=")) {
+                    size = Math.min(parseListNumber("SIZE", option.substring(5)), MAX_LIST_PAGE_SIZE);
+                } else {
+                    throw new IllegalArgumentException("Opção desconhecida: " + option
+                            + ". Use: LIST_USERS [TYPE=<tipo>] [STATUS=online|offline|servidor] [ONLINE] [PAGE=<n>] [SIZE=<n>]");
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            out.println("LIST_USERS FAIL: " + e.getMessage());
+            return true;
         }
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] tokens = line.split(" ");
-                if (tokens.length < 3) {
-                    System.err.println("Dados inválidos no arquivo: " + line);  // Log de erro
-                    continue;
+        boolean paged = page > 0 || size > 0;
+        page = Math.max(page, 1);
+        size = size > 0 ? size : LIST_PAGE_SIZE;
+
+        int first = paged ? (page - 1) * size : 0;
+        int last = paged ? first + size : Integer.MAX_VALUE;
+        int matched = 0;
+        out.println("USERS_LIST");
+        UserRegistry.Snapshot snapshot = registry.snapshot();
+        for (int i = 0; i < snapshot.size(); i++) {
+            if ((type != null && snapshot.type(i) != type) || (status != null && snapshot.status(i) != status)
+                    || (onlineOnly && !snapshot.isOnline(i))) {
+                continue;
+            }
+            if (matched >= first && matched < last) {
+                out.println(snapshot.line(i));
+                if (connection != null && (matched - first + 1) % LIST_CHUNK_LINES == 0 && !connection.awaitWritable()) {
+                    return true;  // Conexão fechada no meio da lista
                 }
-                String username = tokens[0];
-                String password = tokens[1];
-                String userType = tokens[2];
-                String attribute = tokens.length > 3 ? tokens[3] : null;
-                userCredentials.put(username, new String[]{password, userType});
-                userAttributes.put(username, attribute);
             }
+            matched++;
+        }
+        if (paged) {
+            int pages = Math.max(1, (matched + size - 1) / size);
+            out.println("PAGE " + page + "/" + pages + " - " + matched + " usuários");
         }
+        out.println("END_USERS_LIST");
+        return true;
     }
 
-    private static void saveUserData() throws IOException {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(USER_DATA_FILE))) {
-            for (Map.Entry<String, String[]> entry : userCredentials.entrySet()) {
-                String username = entry.getKey();
-                String password = entry.getValue()[0];
-                String userType = entry.getValue()[1];
-                String attribute = userAttributes.get(username);
-                writer.println(username + " " + password + " " + userType + (attribute != null ? " " + attribute : ""));
+    private static int parseListNumber(String name, String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0) {
+                return parsed;
             }
+        } catch (NumberFormatException e) {
+            // tratado abaixo
         }
+        throw new IllegalArgumentException("Valor inválido para " + name + ": " + value);
     }
 
-    private static void loadOfflineMessages() throws IOException {
-        File file = new File(OFFLINE_MESSAGES_FILE);
-        if (!file.exists()) {
-            return;
+    private static UserRegistry.Status parseStatus(String value) {
+        switch (value.toLowerCase()) {
+            case "online":
+                return UserRegistry.Status.ONLINE;
+            case "offline":
+                return UserRegistry.Status.OFFLINE;
+            case "servidor":
+                return UserRegistry.Status.CONSOLE;
+            default:
+                throw new IllegalArgumentException("Status inválido: " + value + ". Use: online, offline ou servidor.");
         }
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] tokens = line.split(" ", 2);
-                if (tokens.length < 2) {
-                    System.err.println("Dados inválidos no arquivo: " + line);  // Log de erro
-                    continue;
-                }
-                String username = tokens[0];
-                String message = tokens[1];
-                offlineMessages.computeIfAbsent(username, k -> new ArrayList<>()).add(message);
+    }
+
+    // Uma linha entregue a outras sessões, codificada no máximo uma vez por protocolo e compartilhada entre os destinatários
+    static final class Push {
+        final String line;
+        private byte[] text;
+        private byte[] frame;
+
+        Push(String line) {
+            this.line = line;
+        }
+
+        // Duas threads podem codificar ao mesmo tempo; os resultados são iguais
+        byte[] text() {
+            byte[] encoded = text;
+            if (encoded == null) {
+                encoded = encodeLine(line);
+                text = encoded;
             }
+            return encoded;
         }
-    }
 
-    private static void saveOfflineMessages() throws IOException {
-        try (PrintWriter writer = new PrintWriter(new FileWriter(OFFLINE_MESSAGES_FILE))) {
-            for (Map.Entry<String, List<String>> entry : offlineMessages.entrySet()) {
-                String username = entry.getKey();
-                for (String message : entry.getValue()) {
-                    writer.println(username + " " + message);
-                }
+        byte[] frame() {
+            byte[] encoded = frame;
+            if (encoded == null) {
+                encoded = WireProtocol.frame(WireProtocol.PUSH, 0, line);
+                frame = encoded;
             }
+            return encoded;
+        }
+    }
+
+    // No protocolo de texto uma mensagem com quebras de linha (enviada por um cliente binário) vira uma linha só
+    static byte[] encodeLine(String line) {
+        if (line.indexOf('\n') >= 0 || line.indexOf('\r') >= 0) {
+            line = line.replace("\r\n", " ").replace('\n', ' ').replace('\r', ' ');
         }
+        return (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Reconstrói o índice das caixas de mensagens offline (ver OfflineMessageStore)
+    private static void loadOfflineMessages() throws IOException {
+        offlineMessages.open();
     }
 }
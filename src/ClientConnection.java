@@ -0,0 +1,58 @@
+import java.io.*;
+import java.net.*;
+
+// Conexão síncrona de um cliente com o servidor, no protocolo de texto ou no binário: quem usa
+// espera a resposta de um comando antes do próximo. Usada pelo LoadGenerator; o console e os
+// bots usam o AsyncChatClient, que mantém vários pedidos pendentes na mesma conexão.
+final class ClientConnection implements Closeable {
+    static final String DEFAULT_HOST = "localhost";
+    static final int DEFAULT_PORT = 12345;
+
+    final boolean binary;
+    private final Socket socket;
+    private BufferedReader in;
+    private PrintWriter out;
+    private DataInputStream frameIn;
+    private OutputStream frameOut;
+    private int nextRequestId = 1;
+
+    ClientConnection(String host, int port, boolean binary) throws IOException {
+        this.binary = binary;
+        this.socket = new Socket(host, port);
+        if (binary) {
+            frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            frameOut = new BufferedOutputStream(socket.getOutputStream());
+            frameOut.write(WireProtocol.PREFACE);
+            frameOut.flush();
+        } else {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            out = new PrintWriter(socket.getOutputStream(), true);
+        }
+    }
+
+    // Envia um comando e devolve o id do pedido (0 no protocolo de texto, que não tem ids)
+    int send(String command) throws IOException {
+        if (!binary) {
+            out.println(command);
+            return 0;
+        }
+        int requestId = nextRequestId++;
+        WireProtocol.writeFrame(frameOut, WireProtocol.COMMAND, requestId, command);
+        return requestId;
+    }
+
+    // Protocolo de texto: próxima linha, ou null quando o servidor fecha a conexão
+    String readLine() throws IOException {
+        return in.readLine();
+    }
+
+    // Protocolo binário: próximo quadro, ou null quando o servidor fecha a conexão
+    WireProtocol.Frame readFrame() throws IOException {
+        return WireProtocol.readFrame(frameIn);
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
@@ -0,0 +1,382 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Ligação entre os servidores de um cluster. Os nós são fixos na configuração (--node-id e
+--peers=<id>@<host>:<porta>,...): cada nó abre uma conexão de saída para cada um dos outros e
+só escreve nela; as conexões recebidas na porta do cluster só são lidas. Os quadros têm o
+formato do WireProtocol, com opcodes próprios.
+
+A presença é replicada: cada nó anuncia o estado das suas sessões e, ao (re)conectar a um nó,
+reenvia a lista completa delas. Assim todo nó sabe onde cada usuário está online, e o registro
+mostra no LIST_USERS quem está em outros nós. Quando a conexão vinda de um nó cai, as sessões
+dele são esquecidas. Cadastros também são replicados, e reenviados na reconexão.
+
+As mensagens offline de um usuário ficam no nó dono dele, escolhido por rendezvous hashing
+entre os ids configurados; quem recebe o login pede ao dono o backlog. Com o dono fora do ar, a
+mensagem fica na caixa local e é entregue quando o usuário entrar por este nó.
+*/
+
+final class ClusterNode {
+    // Opcodes do link entre nós; o payload vem descrito ao lado
+    static final byte HELLO = 32;  // id do nó que abriu a conexão
+    static final byte PRESENCE_RESET = 33;  // vazio: o remetente vai reenviar todas as suas sessões
+    static final byte ONLINE = 34;  // usuário
+    static final byte OFFLINE = 35;  // usuário
+    static final byte DELIVER = 36;  // "<usuário> <linha>": entregar à sessão do usuário
+    static final byte ENQUEUE = 37;  // "<usuário> <linha>": guardar na caixa offline do dono
+    static final byte KILL = 38;  // usuário, ou vazio para todos
+    static final byte USERS = 39;  // linhas no formato do user_data.txt
+    static final byte DRAIN = 40;  // usuário: o dono entrega o backlog ao remetente
+    static final byte BACKLOG = 41;  // "<usuário> <linha>" do backlog
+
+    private static final long LINK_QUEUE_BYTES = 16 * 1024 * 1024;  // Limite da fila de saída para um nó
+    private static final int USERS_BATCH_BYTES = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 2_000;
+    private static final long MIN_BACKOFF_MS = 200;
+    private static final long MAX_BACKOFF_MS = 5_000;
+
+    // Ações sobre o estado local, pedidas por outros nós
+    interface Listener {
+        void deliver(String username, String line);
+
+        void enqueue(String username, String line);
+
+        void backlog(String username, String line);
+
+        void kill(String username);  // null: todas as sessões
+
+        void register(UserRegistry.UserRecord user);
+
+        void drain(String username, String node);
+
+        void replaced(String username);  // Login simultâneo em outro nó, que ficou com a sessão
+    }
+
+    private static final class Peer {
+        final ServerConfig.PeerAddress address;
+        volatile OutboundQueue queue;  // null enquanto desconectado
+        volatile Object inbound;  // Conexão recebida em uso; uma anterior que caia depois não apaga a presença
+
+        Peer(ServerConfig.PeerAddress address) {
+            this.address = address;
+        }
+    }
+
+    private final String nodeId;
+    private final int port;
+    private final Map<String, Peer> peers = new LinkedHashMap<>();
+    private final List<String> nodes = new ArrayList<>();  // Todos os ids, incluindo este nó
+    private final UserRegistry registry;
+    private final Listener listener;
+    // Cada anúncio de presença lê o estado atual sob este lock, então nenhum nó fica com um estado antigo
+    private final ReentrantLock presenceLock = new ReentrantLock();
+
+    ClusterNode(ServerConfig config, UserRegistry registry, Listener listener) {
+        this.nodeId = config.nodeId;
+        this.port = config.clusterPort;
+        this.registry = registry;
+        this.listener = listener;
+        nodes.add(nodeId);
+        for (ServerConfig.PeerAddress address : config.peers) {
+            peers.put(address.id, new Peer(address));
+            nodes.add(address.id);
+        }
+    }
+
+    void start() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(() -> accept(serverSocket), "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (Peer peer : peers.values()) {
+            Thread.ofVirtual().name("cluster-link-" + peer.address.id).start(() -> connect(peer));
+        }
+        Log.info(Log.Category.SERVER, "Nó " + nodeId + " do cluster na porta " + port + " com " + peers.size() + " outros nós");
+    }
+
+    String nodeId() {
+        return nodeId;
+    }
+
+    int connectedPeers() {
+        int connected = 0;
+        for (Peer peer : peers.values()) {
+            if (peer.queue != null) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    // Chamado depois de cada login ou logout local; anuncia o estado atual, não o evento
+    void publish(String username) {
+        presenceLock.lock();
+        try {
+            byte[] frame = WireProtocol.frame(registry.session(username) != null ? ONLINE : OFFLINE, 0, username);
+            for (Peer peer : peers.values()) {
+                send(peer, frame);
+            }
+        } finally {
+            presenceLock.unlock();
+        }
+    }
+
+    // Destinatário sem sessão aqui: vai para o nó onde ele está online ou para a caixa offline do dono.
+    // Retorna false se a mensagem deve ficar na caixa local.
+    boolean route(String username, String line) {
+        return forward(username, line) || storeRemotely(username, line);
+    }
+
+    boolean forward(String username, String line) {
+        String node = registry.remoteNode(username);
+        return node != null && send(node, DELIVER, username + " " + line);
+    }
+
+    boolean storeRemotely(String username, String line) {
+        String home = home(username);
+        return !home.equals(nodeId) && send(home, ENQUEUE, username + " " + line);
+    }
+
+    boolean sendBacklog(String node, String username, String line) {
+        return send(node, BACKLOG, username + " " + line);
+    }
+
+    // Pede ao dono as mensagens offline de quem acabou de entrar por este nó
+    void requestBacklog(String username) {
+        String home = home(username);
+        if (!home.equals(nodeId)) {
+            send(home, DRAIN, username);
+        }
+    }
+
+    // Retorna false se o usuário não está online em outro nó
+    boolean kill(String username) {
+        String node = registry.remoteNode(username);
+        return node != null && send(node, KILL, username);
+    }
+
+    void killAll() {
+        byte[] frame = WireProtocol.frame(KILL, 0, "");
+        for (Peer peer : peers.values()) {
+            send(peer, frame);
+        }
+    }
+
+    void registered(UserRegistry.UserRecord user) {
+        byte[] frame = WireProtocol.frame(USERS, 0, UserStore.format(user));
+        for (Peer peer : peers.values()) {
+            send(peer, frame);
+        }
+    }
+
+    // Rendezvous hashing: o nó com o maior hash de (nó, usuário); só muda para quem dependia de um nó que saiu da configuração
+    String home(String username) {
+        String best = null;
+        long bestHash = Long.MIN_VALUE;
+        for (String node : nodes) {
+            long hash = mix(node.hashCode() * 31L + username.hashCode());
+            if (best == null || hash > bestHash || (hash == bestHash && node.compareTo(best) < 0)) {
+                best = node;
+                bestHash = hash;
+            }
+        }
+        return best;
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    private boolean send(String node, byte opcode, String payload) {
+        Peer peer = peers.get(node);
+        if (peer == null) {
+            return false;
+        }
+        byte[] frame = WireProtocol.frame(opcode, 0, payload);
+        if (!WireProtocol.isValidLength(frame.length - 4)) {
+            Log.warn(Log.Category.SERVER, "Quadro grande demais para o nó " + node + ", mantido neste nó");
+            return false;
+        }
+        return send(peer, frame);
+    }
+
+    private static boolean send(Peer peer, byte[] frame) {
+        OutboundQueue queue = peer.queue;
+        return queue != null && queue.send(frame);
+    }
+
+    // Conexão de saída: reconecta com espera crescente enquanto o nó estiver fora do ar
+    private void connect(Peer peer) {
+        long backoff = MIN_BACKOFF_MS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(peer.address.host, peer.address.port), CONNECT_TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                OutboundQueue queue = new OutboundQueue(socket, LINK_QUEUE_BYTES);
+                Thread.ofVirtual().name("cluster-writer-" + peer.address.id).start(queue);
+                queue.send(WireProtocol.frame(HELLO, 0, nodeId));
+                presenceLock.lock();
+                try {
+                    queue.send(WireProtocol.frame(PRESENCE_RESET, 0, ""));
+                    for (ChatServer.ClientSession session : registry.onlineSessions()) {
+                        String username = session.username();
+                        if (username != null) {
+                            queue.send(WireProtocol.frame(ONLINE, 0, username));
+                        }
+                    }
+                    peer.queue = queue;
+                } finally {
+                    presenceLock.unlock();
+                }
+                sendUsers(queue);
+                Log.info(Log.Category.SERVER, "Conectado ao nó " + peer.address.id);
+                backoff = MIN_BACKOFF_MS;
+
+                // O outro nó não escreve nesta conexão: a leitura só retorna quando ela cai
+                InputStream in = socket.getInputStream();
+                while (in.read() >= 0) {
+                    // nada a ler
+                }
+                queue.abort();
+            } catch (IOException e) {
+                Log.debug(Log.Category.SERVER, "Sem conexão com o nó " + peer.address.id + ": " + e.getMessage());
+            }
+            if (peer.queue != null) {
+                peer.queue = null;
+                Log.warn(Log.Category.SERVER, "Conexão com o nó " + peer.address.id + " perdida");
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(MAX_BACKOFF_MS, backoff * 2);
+        }
+    }
+
+    // Cadastros feitos enquanto os nós estavam separados; os já conhecidos são ignorados por quem recebe
+    private void sendUsers(OutboundQueue queue) throws IOException {
+        StringBuilder batch = new StringBuilder(USERS_BATCH_BYTES);
+        for (UserRegistry.UserRecord user : registry.users()) {
+            batch.append(UserStore.format(user)).append('\n');
+            if (batch.length() >= USERS_BATCH_BYTES) {
+                sendBatch(queue, batch);
+            }
+        }
+        if (batch.length() > 0) {
+            sendBatch(queue, batch);
+        }
+    }
+
+    // Não deixa a fila passar do limite com milhões de usuários
+    private static void sendBatch(OutboundQueue queue, StringBuilder batch) throws IOException {
+        while (queue.pendingBytes() > LINK_QUEUE_BYTES) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(1);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        if (!queue.send(WireProtocol.frame(USERS, 0, batch.toString()))) {
+            throw new IOException("conexão fechada");
+        }
+        batch.setLength(0);
+    }
+
+    private void accept(ServerSocket serverSocket) {
+        while (true) {
+            try {
+                Socket socket = serverSocket.accept();
+                Thread.ofVirtual().name("cluster-reader-" + socket.getPort()).start(() -> read(socket));
+            } catch (IOException e) {
+                Log.error(Log.Category.SERVER, "Falha ao aceitar conexão do cluster", e);
+            }
+        }
+    }
+
+    // Conexão recebida: o primeiro quadro identifica o nó
+    private void read(Socket socket) {
+        Peer peer = null;
+        Object connection = new Object();
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            WireProtocol.Frame hello = WireProtocol.readFrame(in);
+            if (hello == null || hello.opcode != HELLO || (peer = peers.get(hello.payload)) == null) {
+                Log.warn(Log.Category.SERVER, "Conexão de " + socket.getRemoteSocketAddress() + " recusada: nó desconhecido");
+                return;
+            }
+            peer.inbound = connection;
+            String node = peer.address.id;
+            WireProtocol.Frame frame;
+            while ((frame = WireProtocol.readFrame(in)) != null) {
+                handle(node, frame);
+            }
+        } catch (IOException e) {
+            Log.debug(Log.Category.SERVER, "Conexão do cluster encerrada: " + e.getMessage());
+        } finally {
+            if (peer != null && peer.inbound == connection) {
+                registry.clearRemote(peer.address.id);
+            }
+        }
+    }
+
+    private void handle(String node, WireProtocol.Frame frame) {
+        String payload = frame.payload;
+        switch (frame.opcode) {
+            case PRESENCE_RESET:
+                registry.clearRemote(node);
+                break;
+            case ONLINE:
+                registry.remoteLogin(payload, node);
+                // Login no mesmo usuário pelos dois nós ao mesmo tempo: fica a sessão do nó de menor id
+                if (registry.session(payload) != null && node.compareTo(nodeId) < 0) {
+                    listener.replaced(payload);
+                }
+                break;
+            case OFFLINE:
+                registry.remoteLogout(payload, node);
+                break;
+            case DELIVER:
+                listener.deliver(user(payload), line(payload));
+                break;
+            case ENQUEUE:
+                listener.enqueue(user(payload), line(payload));
+                break;
+            case BACKLOG:
+                listener.backlog(user(payload), line(payload));
+                break;
+            case KILL:
+                listener.kill(payload.isEmpty() ? null : payload);
+                break;
+            case USERS:
+                byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+                for (UserRegistry.UserRecord user : UserStore.parse(ByteBuffer.wrap(data), 0, data.length)) {
+                    listener.register(user);
+                }
+                break;
+            case DRAIN:
+                listener.drain(payload, node);
+                break;
+            default:
+                Log.warn(Log.Category.SERVER, "Quadro desconhecido do nó " + node + " (opcode " + frame.opcode + ")");
+        }
+    }
+
+    private static String user(String payload) {
+        return payload.substring(0, payload.indexOf(' '));
+    }
+
+    private static String line(String payload) {
+        return payload.substring(payload.indexOf(' ') + 1);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+Tabela de comandos compartilhada pelas sessões de cliente e pelo console do servidor.
+A linha é dividida em tokens guardando só as posições (Line, reaproveitada a cada comando)
+e o verbo é procurado numa tabela de hash aberta comparando direto no texto recebido,
+sem criar substrings nem arrays por comando.
+*/
+
+final class CommandEngine<C> {
+    // Retorna false quando a sessão deve ser encerrada
+    interface Handler<C> {
+        boolean handle(C context, Line command);
+    }
+
+    private final ServerMetrics metrics;  // null: os comandos não são medidos
+    private String[] verbs = new String[16];
+    private Handler<C>[] handlers = newHandlers(16);
+    private int size;
+
+    CommandEngine() {
+        this(null);
+    }
+
+    CommandEngine(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    CommandEngine<C> on(String verb, Handler<C> handler) {
+        if ((size + 1) * 2 > verbs.length) {
+            resize(verbs.length * 2);
+        }
+        insert(verb, metrics == null ? handler : metrics.timed(verb, handler));
+        size++;
+        return this;
+    }
+
+    // Retorna null se o verbo não estiver na tabela
+    Handler<C> lookup(Line command) {
+        if (command.count() == 0) {
+            return null;
+        }
+        int mask = verbs.length - 1;
+        for (int i = command.hash(0) & mask; verbs[i] != null; i = (i + 1) & mask) {
+            if (command.tokenEquals(0, verbs[i])) {
+                return handlers[i];
+            }
+        }
+        return null;
+    }
+
+    private void insert(String verb, Handler<C> handler) {
+        int mask = verbs.length - 1;
+        int i = verb.hashCode() & mask;
+        while (verbs[i] != null && !verbs[i].equals(verb)) {
+            i = (i + 1) & mask;
+        }
+        verbs[i] = verb;
+        handlers[i] = handler;
+    }
+
+    private void resize(int capacity) {
+        String[] oldVerbs = verbs;
+        Handler<C>[] oldHandlers = handlers;
+        verbs = new String[capacity];
+        handlers = newHandlers(capacity);
+        for (int i = 0; i < oldVerbs.length; i++) {
+            if (oldVerbs[i] != null) {
+                insert(oldVerbs[i], oldHandlers[i]);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <C> Handler<C>[] newHandlers(int capacity) {
+        return (Handler<C>[]) new Handler<?>[capacity];
+    }
+
+    // Tokens de uma linha de comando, separados por espaços; cada sessão reaproveita a sua
+    static final class Line {
+        private static final int MAX_TOKENS = 8;
+
+        private String text = "";
+        private final int[] starts = new int[MAX_TOKENS];
+        private final int[] ends = new int[MAX_TOKENS];
+        private int count;
+        private boolean truncated;
+
+        // Tokens além de MAX_TOKENS não são separados: ficam em rest() e marcam truncated()
+        Line parse(String text) {
+            this.text = text;
+            count = 0;
+            truncated = false;
+            int length = text.length();
+            int i = 0;
+            while (count < MAX_TOKENS) {
+                while (i < length && text.charAt(i) == ' ') {
+                    i++;
+                }
+                if (i == length) {
+                    break;
+                }
+                starts[count] = i;
+                while (i < length && text.charAt(i) != ' ') {
+                    i++;
+                }
+                ends[count++] = i;
+            }
+            while (i < length && text.charAt(i) == ' ') {
+                i++;
+            }
+            truncated = i < length;
+            return this;
+        }
+
+        int count() {
+            return count;
+        }
+
+        // A linha tem mais de MAX_TOKENS tokens; comandos com opções devem recusá-la em vez de ignorar o excesso
+        boolean truncated() {
+            return truncated;
+        }
+
+        String text() {
+            return text;
+        }
+
+        String token(int index) {
+            return text.substring(starts[index], ends[index]);
+        }
+
+        // Do início do token até o fim da linha, preservando os espaços internos
+        String rest(int index) {
+            return text.substring(starts[index]);
+        }
+
+        boolean tokenEquals(int index, String value) {
+            int length = ends[index] - starts[index];
+            return length == value.length() && text.regionMatches(starts[index], value, 0, length);
+        }
+
+        // Mesmo valor de String.hashCode() para o token, sem criar a substring
+        int hash(int index) {
+            int h = 0;
+            for (int i = starts[index]; i < ends[index]; i++) {
+                h = 31 * h + text.charAt(i);
+            }
+            return h;
+        }
+    }
+}
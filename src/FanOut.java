@@ -0,0 +1,59 @@
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+Entrega de uma mesma mensagem a muitos destinatários (grupos e broadcast). A mensagem é
+codificada uma vez (ChatServer.Push) e os mesmos bytes vão para a fila de saída de cada
+destinatário. Os destinatários são divididos entre os workers pelo hash do nome, então as
+mensagens para um mesmo usuário sempre passam pelo mesmo worker e chegam em ordem.
+*/
+
+class FanOut {
+    interface Target {
+        void deliver(String username, ChatServer.Push push);
+    }
+
+    private final ExecutorService[] workers;
+    private final Target target;
+
+    FanOut(int threads, Target target) {
+        this.target = target;
+        this.workers = new ExecutorService[threads];
+        for (int i = 0; i < threads; i++) {
+            String name = "fanout-" + i;
+            workers[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Retorna quantos destinatários receberão a mensagem (todos menos o remetente)
+    int send(Collection<String> recipients, ChatServer.Push push, String sender) {
+        List<List<String>> partitions = new ArrayList<>(workers.length);
+        for (int i = 0; i < workers.length; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        int count = 0;
+        for (String recipient : recipients) {
+            if (recipient.equals(sender)) {
+                continue;
+            }
+            partitions.get(Math.floorMod(recipient.hashCode(), workers.length)).add(recipient);
+            count++;
+        }
+        for (int i = 0; i < workers.length; i++) {
+            List<String> partition = partitions.get(i);
+            if (!partition.isEmpty()) {
+                workers[i].execute(() -> {
+                    for (String recipient : partition) {
+                        target.deliver(recipient, push);
+                    }
+                });
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,455 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Arquivos enviados com SEND_FILE. O conteúdo não passa pela conexão do chat: o comando só
+reserva a transferência e devolve um ticket, e o cliente abre uma conexão na porta de dados
+(--file-port), tratada por uma thread própria. Assim um arquivo grande não atrasa as
+mensagens da mesma sessão nem ocupa as threads que processam comandos.
+
+Protocolo da porta de dados: uma linha ASCII e depois os bytes.
+  PUT <ticket>             servidor: READY <bytes já recebidos>; cliente envia o restante;
+                           servidor: DONE <id> ou FAIL: <motivo>
+  GET <ticket> [<início>]  servidor: READY <tamanho> e os bytes a partir de <início>
+O upload é lido em blocos de BUFFER_BYTES e gravado em <id>.part (o TCP segura o cliente
+enquanto o disco não acompanha) e pode continuar de onde parou com o mesmo ticket. O download sai do disco
+direto para o socket com FileChannel.transferTo, sem passar pelo heap, e também aceita
+continuar de um ponto. Tickets valem TICKET_MILLIS; uma conexão parada por IDLE_MILLIS é fechada.
+As threads são de plataforma (até MAX_TRANSFERS): numa thread virtual o socket fica não
+bloqueante por baixo e o transferTo pode voltar sem enviar nada com o buffer do socket cheio.
+
+Concluído o upload, o destinatário recebe "FILE <id> <remetente> <tamanho> <nome>" pelo mesmo
+caminho do MESSAGE, então quem está offline recebe o aviso no login, pela caixa offline.
+Arquivos em <dir>: <id>.dat e <id>.meta (remetente, destinatário, tamanho, criação e nome),
+apagados depois de retentionDays.
+*/
+
+final class FileTransfers implements Closeable {
+    static final int MAX_NAME_BYTES = 255;
+    private static final int CHUNK_BYTES = 1024 * 1024;  // Por chamada de transferTo
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final long TICKET_MILLIS = TimeUnit.MINUTES.toMillis(10);
+    private static final long IDLE_MILLIS = TimeUnit.SECONDS.toMillis(60);
+    private static final int MAX_TRANSFERS = 256;  // Conexões simultâneas na porta de dados
+    private static final int MAX_HEADER_BYTES = 256;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    interface Listener {
+        // Upload concluído e gravado; entrega o aviso ao destinatário
+        void uploaded(FileInfo file);
+    }
+
+    static final class FileInfo {
+        final String id;
+        final String sender;
+        final String recipient;
+        final long size;
+        final long created;
+        final String name;
+
+        FileInfo(String id, String sender, String recipient, long size, long created, String name) {
+            this.id = id;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.size = size;
+            this.created = created;
+            this.name = name;
+        }
+
+        String notice() {
+            return "FILE " + id + " " + sender + " " + size + " " + name;
+        }
+    }
+
+    private static final class Ticket {
+        final FileInfo file;
+        final boolean upload;
+        final long expires;
+        final AtomicBoolean busy = new AtomicBoolean();  // Um upload por vez com o mesmo ticket
+
+        Ticket(FileInfo file, boolean upload) {
+            this.file = file;
+            this.upload = upload;
+            this.expires = System.currentTimeMillis() + TICKET_MILLIS;
+        }
+    }
+
+    // Uma conexão na porta de dados, para fechar as que pararem
+    private static final class Transfer {
+        final SocketChannel channel;
+        volatile long lastProgress = System.currentTimeMillis();
+
+        Transfer(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final Path dir;
+    private final int port;
+    private final long maxFileBytes;
+    private final long retentionMillis;
+    private final Listener listener;
+    private final Map<String, FileInfo> files = new ConcurrentHashMap<>();
+    private final Map<String, Ticket> tickets = new ConcurrentHashMap<>();
+    private final Set<Transfer> transfers = ConcurrentHashMap.newKeySet();
+    private final Semaphore slots = new Semaphore(MAX_TRANSFERS);
+    private final ScheduledExecutorService background;
+    private final ExecutorService workers = transferThreads("file-transfer");
+    private ServerSocketChannel server;
+
+    final LongAdder bytesReceived = new LongAdder();
+    final LongAdder bytesSent = new LongAdder();
+
+    FileTransfers(Path dir, int port, long maxFileBytes, int retentionDays, Listener listener) {
+        this.dir = dir;
+        this.port = port;
+        this.maxFileBytes = maxFileBytes;
+        this.retentionMillis = TimeUnit.DAYS.toMillis(retentionDays);
+        this.listener = listener;
+        this.background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "file-transfers");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Carrega os arquivos completos e descarta uploads interrompidos por uma parada do servidor
+    void open() throws IOException {
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (name.endsWith(".meta")) {
+                    FileInfo file = readMeta(entry);
+                    if (file != null && Files.exists(dir.resolve(file.id + ".dat"))) {
+                        files.put(file.id, file);
+                    } else {
+                        Files.deleteIfExists(entry);
+                    }
+                } else if (name.endsWith(".part") || name.endsWith(".tmp")) {
+                    Files.deleteIfExists(entry);
+                }
+            }
+        }
+        // Conteúdo sem o .meta: a parada aconteceu entre as duas gravações
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*.dat")) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (!files.containsKey(name.substring(0, name.length() - 4))) {
+                    Files.deleteIfExists(entry);
+                }
+            }
+        }
+        Log.info(Log.Category.STORAGE, "Arquivos: " + files.size() + " disponíveis para download");
+    }
+
+    void start() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(this::accept, "file-transfers-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        background.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.MINUTES);
+        background.scheduleWithFixedDelay(this::closeIdle, IDLE_MILLIS / 4, IDLE_MILLIS / 4, TimeUnit.MILLISECONDS);
+    }
+
+    int port() {
+        return port;
+    }
+
+    long maxFileBytes() {
+        return maxFileBytes;
+    }
+
+    // SEND_FILE: reserva o upload e devolve o ticket
+    String reserveUpload(String sender, String recipient, long size, String name) {
+        FileInfo file = new FileInfo(newToken(9), sender, recipient, size, System.currentTimeMillis(), name);
+        return issue(new Ticket(file, true));
+    }
+
+    // GET_FILE: só o remetente e o destinatário podem baixar; null se o arquivo não existe (ou expirou)
+    FileInfo file(String id, String username) {
+        FileInfo file = files.get(id);
+        return file != null && (file.recipient.equals(username) || file.sender.equals(username)) ? file : null;
+    }
+
+    String reserveDownload(FileInfo file) {
+        return issue(new Ticket(file, false));
+    }
+
+    int fileCount() {
+        return files.size();
+    }
+
+    int activeTransfers() {
+        return transfers.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdownNow();
+        workers.shutdown();
+        if (server != null) {
+            server.close();
+        }
+        for (Transfer transfer : transfers) {
+            transfer.channel.close();
+        }
+    }
+
+    private String issue(Ticket ticket) {
+        String token = newToken(16);
+        tickets.put(token, ticket);
+        return token;
+    }
+
+    private void accept() {
+        while (server.isOpen()) {
+            try {
+                SocketChannel channel = server.accept();
+                if (!slots.tryAcquire()) {
+                    reply(channel, "FAIL: Muitas transferências simultâneas, tente mais tarde.");
+                    channel.close();
+                    continue;
+                }
+                workers.execute(() -> serve(channel));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                Log.warn(Log.Category.CONNECTION, "Falha ao aceitar conexão de arquivo: " + e.getMessage());
+            }
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        Transfer transfer = new Transfer(channel);
+        transfers.add(transfer);
+        try (channel) {
+            String[] header = readHeader(channel);
+            Ticket ticket = header.length >= 2 ? tickets.get(header[1]) : null;
+            if (ticket == null || ticket.expires < System.currentTimeMillis()) {
+                reply(channel, "FAIL: Ticket inválido ou expirado.");
+            } else if (header[0].equals("PUT") && ticket.upload && header.length == 2) {
+                if (ticket.busy.compareAndSet(false, true)) {
+                    try {
+                        receive(channel, transfer, header[1], ticket.file);
+                    } finally {
+                        ticket.busy.set(false);
+                    }
+                } else {
+                    reply(channel, "FAIL: Upload já em andamento.");
+                }
+            } else if (header[0].equals("GET") && !ticket.upload && header.length <= 3) {
+                send(channel, transfer, ticket.file, header.length == 3 ? parseOffset(header[2]) : 0);
+            } else {
+                reply(channel, "FAIL: Comando inválido. Use PUT <ticket> ou GET <ticket> [<início>].");
+            }
+        } catch (IOException e) {
+            // Conexão perdida ou fechada por inatividade; um upload pode continuar com o mesmo ticket
+            Log.debug(Log.Category.CONNECTION, "Transferência de arquivo interrompida: " + e.getMessage());
+        } finally {
+            transfers.remove(transfer);
+            slots.release();
+        }
+    }
+
+    private void receive(SocketChannel channel, Transfer transfer, String token, FileInfo file) throws IOException {
+        Path part = dir.resolve(file.id + ".part");
+        try (FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long position = Math.min(out.size(), file.size);
+            reply(channel, "READY " + position);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+            while (position < file.size) {
+                long received = receive(channel, out, position, file.size, buffer);
+                if (received < 0) {
+                    return;  // O cliente fechou antes do fim; o que chegou fica para a continuação
+                }
+                position += received;
+                bytesReceived.add(received);
+                transfer.lastProgress = System.currentTimeMillis();
+            }
+            out.force(true);
+        }
+        writeMeta(file);
+        Files.move(part, dir.resolve(file.id + ".dat"), StandardCopyOption.ATOMIC_MOVE);
+        files.put(file.id, file);
+        tickets.remove(token);
+        reply(channel, "DONE " + file.id);
+        listener.uploaded(file);
+    }
+
+    private void send(SocketChannel channel, Transfer transfer, FileInfo file, long offset) throws IOException {
+        if (offset < 0 || offset > file.size) {
+            reply(channel, "FAIL: Início inválido.");
+            return;
+        }
+        Path data = dir.resolve(file.id + ".dat");
+        try (FileChannel in = FileChannel.open(data, StandardOpenOption.READ)) {
+            reply(channel, "READY " + file.size);
+            long position = offset;
+            while (position < file.size) {
+                long sent = in.transferTo(position, Math.min(CHUNK_BYTES, file.size - position), channel);
+                if (sent <= 0) {
+                    throw new IOException("Arquivo " + file.id + " menor que o esperado");
+                }
+                position += sent;
+                bytesSent.add(sent);
+                transfer.lastProgress = System.currentTimeMillis();
+            }
+        } catch (NoSuchFileException e) {
+            reply(channel, "FAIL: Arquivo não encontrado ou expirado.");
+        }
+    }
+
+    // Um bloco do socket para o arquivo em position, sem passar de end; -1 no fim da conexão. Também usado pelo cliente.
+    // transferFrom de um socket não é zero-copy e pode retornar 0 antes do fim, então a leitura é explícita.
+    static long receive(SocketChannel channel, FileChannel out, long position, long end, ByteBuffer buffer) throws IOException {
+        buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+        if (channel.read(buffer) < 0) {
+            return -1;
+        }
+        buffer.flip();
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += out.write(buffer, position + written);
+        }
+        return written;
+    }
+
+    private static String[] readHeader(SocketChannel channel) throws IOException {
+        return readLine(channel).trim().split(" +");
+    }
+
+    // Lê uma linha, um byte por vez, para não consumir o conteúdo que vem depois dela; também usado pelo cliente
+    static String readLine(SocketChannel channel) throws IOException {
+        ByteBuffer single = ByteBuffer.allocate(1);
+        byte[] line = new byte[MAX_HEADER_BYTES];
+        int length = 0;
+        while (true) {
+            single.clear();
+            if (channel.read(single) < 0) {
+                throw new IOException("Conexão fechada antes do fim da linha");
+            }
+            byte b = single.get(0);
+            if (b == '\n') {
+                break;
+            }
+            if (length == line.length) {
+                throw new IOException("Linha grande demais");
+            }
+            line[length++] = b;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    static void reply(SocketChannel channel, String line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static long parseOffset(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void closeIdle() {
+        long cutoff = System.currentTimeMillis() - IDLE_MILLIS;
+        for (Transfer transfer : transfers) {
+            if (transfer.lastProgress < cutoff) {
+                try {
+                    transfer.channel.close();
+                } catch (IOException e) {
+                    // Já fechada
+                }
+            }
+        }
+    }
+
+    // Tickets vencidos (e o upload parcial deles) e arquivos além da retenção
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Ticket> entry : tickets.entrySet()) {
+            Ticket ticket = entry.getValue();
+            if (ticket.expires < now && !ticket.busy.get() && tickets.remove(entry.getKey(), ticket) && ticket.upload) {
+                delete(ticket.file.id + ".part");
+            }
+        }
+        for (FileInfo file : files.values()) {
+            if (file.created < now - retentionMillis && files.remove(file.id, file)) {
+                delete(file.id + ".meta");
+                delete(file.id + ".dat");
+            }
+        }
+    }
+
+    private void delete(String name) {
+        try {
+            Files.deleteIfExists(dir.resolve(name));
+        } catch (IOException e) {
+            Log.warn(Log.Category.STORAGE, "Falha ao apagar " + name + ": " + e.getMessage());
+        }
+    }
+
+    // <remetente> <destinatário> <tamanho> <criação> <nome>; o nome vai por último porque pode ter espaços
+    private void writeMeta(FileInfo file) throws IOException {
+        Path temp = dir.resolve(file.id + ".meta.tmp");
+        String line = file.sender + " " + file.recipient + " " + file.size + " " + file.created + " " + file.name + "\n";
+        Files.writeString(temp, line, StandardCharsets.UTF_8);
+        Files.move(temp, dir.resolve(file.id + ".meta"), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static FileInfo readMeta(Path meta) {
+        String name = meta.getFileName().toString();
+        try {
+            String[] fields = Files.readString(meta, StandardCharsets.UTF_8).stripTrailing().split(" ", 5);
+            return new FileInfo(name.substring(0, name.length() - 5), fields[0], fields[1],
+                    Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]);
+        } catch (IOException | RuntimeException e) {
+            Log.warn(Log.Category.STORAGE, "Descrição de arquivo inválida: " + meta + " (" + e.getMessage() + ")");
+            return null;
+        }
+    }
+
+    // Threads de plataforma daemon para as transferências, do servidor e do cliente
+    static ExecutorService transferThreads(String name) {
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static String newToken(int bytes) {
+        byte[] random = new byte[bytes];
+        RANDOM.nextBytes(random);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+    }
+}
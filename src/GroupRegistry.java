@@ -0,0 +1,139 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Grupos de mensagens. Cada grupo guarda seus membros num conjunto concorrente; o arquivo
+(uma linha por grupo: nome, dono e membros) é regravado a cada alteração, como o user_data.txt.
+Um grupo deixa de existir quando o último membro sai.
+*/
+
+class GroupRegistry {
+    private static final int MAX_NAME_LENGTH = 32;
+
+    enum Result { SUCCESS, NO_GROUP, ALREADY_MEMBER, NOT_MEMBER }
+
+    private static final class Group {
+        final String name;
+        final String owner;
+        final Set<String> members = ConcurrentHashMap.newKeySet();
+
+        Group(String name, String owner) {
+            this.name = name;
+            this.owner = owner;
+        }
+    }
+
+    private final Path file;
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final ReentrantLock saveLock = new ReentrantLock();
+    final LatencyHistogram saveLatency = new LatencyHistogram();  // Regravações do groups.txt
+
+    GroupRegistry(Path file) {
+        this.file = file;
+    }
+
+    static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Quem cria o grupo já entra nele
+    boolean create(String name, String owner) {
+        Group group = new Group(name, owner);
+        group.members.add(owner);
+        if (groups.putIfAbsent(name, group) != null) {
+            return false;
+        }
+        save();
+        return true;
+    }
+
+    Result join(String name, String username) {
+        Group group = groups.get(name);
+        if (group == null) {
+            return Result.NO_GROUP;
+        }
+        if (!group.members.add(username)) {
+            return Result.ALREADY_MEMBER;
+        }
+        if (groups.get(name) != group) {
+            return Result.NO_GROUP;  // O último membro saiu e o grupo foi removido ao mesmo tempo
+        }
+        save();
+        return Result.SUCCESS;
+    }
+
+    Result leave(String name, String username) {
+        Group group = groups.get(name);
+        if (group == null) {
+            return Result.NO_GROUP;
+        }
+        if (!group.members.remove(username)) {
+            return Result.NOT_MEMBER;
+        }
+        if (group.members.isEmpty()) {
+            groups.remove(name, group);
+        }
+        save();
+        return Result.SUCCESS;
+    }
+
+    // Cópia dos membros no momento da chamada; null se o grupo não existe
+    List<String> members(String name) {
+        Group group = groups.get(name);
+        return group == null ? null : new ArrayList<>(group.members);
+    }
+
+    void load() throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.split(" ");
+                if (tokens.length < 2 || !isValidName(tokens[0])) {
+                    Log.warn(Log.Category.STORAGE, "Grupo inválido no arquivo: " + line);
+                    continue;
+                }
+                Group group = new Group(tokens[0], tokens[1]);
+                group.members.addAll(Arrays.asList(tokens).subList(2, tokens.length));
+                if (!group.members.isEmpty()) {
+                    groups.put(group.name, group);
+                }
+            }
+        }
+    }
+
+    // Uma falha ao gravar não desfaz a alteração em memória; a próxima gravação regrava tudo
+    private void save() {
+        saveLock.lock();
+        long start = System.nanoTime();
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            for (Group group : groups.values()) {
+                StringBuilder line = new StringBuilder(group.name).append(' ').append(group.owner);
+                for (String member : group.members) {
+                    line.append(' ').append(member);
+                }
+                writer.println(line);
+            }
+        } catch (IOException e) {
+            Log.error(Log.Category.STORAGE, "Falha ao gravar " + file, e);
+        } finally {
+            saveLatency.record(System.nanoTime() - start);
+            saveLock.unlock();
+        }
+    }
+}
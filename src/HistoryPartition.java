@@ -0,0 +1,472 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/*
+Uma partição do histórico de mensagens (ver MessageHistory): as mensagens de um dia, ou de parte
+dele quando o arquivo passa de MessageHistory.PARTITION_BYTES, em part-N.dat, somente de acréscimo.
+
+Registro: [int tamanho][long timestamp][short bytes do remetente][remetente]
+          [short bytes do destinatário][destinatário][mensagem][int crc32c]
+O tamanho conta tudo depois dele; o CRC cobre do timestamp até o fim da mensagem.
+
+Os índices são de chaves de 64 bits (ver MessageHistory.hash), sem as strings: uma colisão só
+traz uma mensagem a mais, que a consulta descarta ao conferir o registro. Enquanto a partição é
+a ativa, eles ficam no heap em vetores de primitivos (PostingTable), e o arquivo é mapeado com uma
+folga além do fim (estendido com zeros, cortados por seal(), close() e scan()), para as mensagens
+seguintes caberem no mapeamento sem mapear tudo de novo. Ao ser selada ela grava dois
+índices imutáveis, lidos por mapeamento em memória e consultados por busca binária:
+  part-N.conv    conversa ("<usuário> <usuário>", em ordem alfabética) -> offsets das mensagens
+  part-N.terms   "<usuário> <termo>" -> offsets das mensagens enviadas ou recebidas por ele com o termo
+Índice: [long primeiro timestamp][long último timestamp][int mensagens][int chaves]
+        [chaves em ordem × (long chave, int offset das posições, int posições)]
+        [posições: int offsets em ordem crescente]
+*/
+
+final class HistoryPartition implements Closeable {
+    static final int MAX_NAME_BYTES = 0xFFFF;  // Remetente e destinatário têm o tamanho num short sem sinal
+    private static final int FIXED_BYTES = 8 + 2 + 2 + 4;
+    private static final int INDEX_HEADER_BYTES = 8 + 8 + 4 + 4;
+    private static final int INDEX_ENTRY_BYTES = 8 + 4 + 4;
+    private static final long MIN_MAP_HEADROOM = 64 * 1024;
+    private static final long MAX_MAP_HEADROOM = 8 * 1024 * 1024;
+    static final int[] NO_POSTINGS = new int[0];
+
+    static final class Record {
+        final long id;  // Posição global: partição e offset, crescente com o tempo
+        final long timestamp;
+        final String sender;
+        final String recipient;
+        final String message;
+
+        Record(long id, long timestamp, String sender, String recipient, String message) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.message = message;
+        }
+    }
+
+    // Índice da partição ativa: hash aberto de chaves de 64 bits (0 = vazio). As posições de cada
+    // chave formam uma lista ligada, da mais recente para a mais antiga, em dois vetores compartilhados.
+    private static final class PostingTable {
+        private long[] keys = new long[1024];
+        private int[] heads = new int[1024];  // Posição mais recente da chave + 1
+        private int[] counts = new int[1024];
+        private int used;
+        private int[] offsets = new int[4096];
+        private int[] previous = new int[4096];  // Posição anterior da mesma chave + 1; 0 no fim da lista
+        private int postings;
+
+        void add(long key, int offset) {
+            int slot = slot(keys, key);
+            if (keys[slot] == 0) {
+                keys[slot] = key;
+                used++;
+            } else if (offsets[heads[slot] - 1] == offset) {
+                return;  // Termo repetido na mesma mensagem
+            }
+            if (postings == offsets.length) {
+                offsets = Arrays.copyOf(offsets, postings * 2);
+                previous = Arrays.copyOf(previous, postings * 2);
+            }
+            offsets[postings] = offset;
+            previous[postings] = heads[slot];
+            heads[slot] = ++postings;
+            counts[slot]++;
+            if (used * 2 > keys.length) {
+                resize();
+            }
+        }
+
+        // Offsets em ordem crescente
+        int[] get(long key) {
+            int slot = slot(keys, key);
+            if (keys[slot] == 0) {
+                return NO_POSTINGS;
+            }
+            int[] found = new int[counts[slot]];
+            int i = found.length;
+            for (int posting = heads[slot]; posting != 0; posting = previous[posting - 1]) {
+                found[--i] = offsets[posting - 1];
+            }
+            return found;
+        }
+
+        int count(long key) {
+            return counts[slot(keys, key)];
+        }
+
+        long[] sortedKeys() {
+            long[] sorted = new long[used];
+            int i = 0;
+            for (long key : keys) {
+                if (key != 0) {
+                    sorted[i++] = key;
+                }
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            int[] oldHeads = heads;
+            int[] oldCounts = counts;
+            keys = new long[oldKeys.length * 2];
+            heads = new int[keys.length];
+            counts = new int[keys.length];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = slot(keys, oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    heads[slot] = oldHeads[i];
+                    counts[slot] = oldCounts[i];
+                }
+            }
+        }
+
+        private static int slot(long[] keys, long key) {
+            int mask = keys.length - 1;
+            int slot = (int) (key ^ (key >>> 32)) & mask;
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+    }
+
+    // Índice selado, mapeado em memória
+    private static final class Index {
+        private final ByteBuffer map;
+        private final int keys;
+
+        Index(ByteBuffer map) {
+            this.map = map;
+            this.keys = map.getInt(20);
+        }
+
+        int[] postings(long key) {
+            int low = 0;
+            int high = keys - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                int entry = INDEX_HEADER_BYTES + middle * INDEX_ENTRY_BYTES;
+                long found = map.getLong(entry);
+                if (found < key) {
+                    low = middle + 1;
+                } else if (found > key) {
+                    high = middle - 1;
+                } else {
+                    int[] offsets = new int[map.getInt(entry + 12)];
+                    map.slice(map.getInt(entry + 8), offsets.length * 4).asIntBuffer().get(offsets);
+                    return offsets;
+                }
+            }
+            return NO_POSTINGS;
+        }
+    }
+
+    final long id;
+    private final Path dir;
+    private final FileChannel channel;
+    private volatile long size;  // Já gravado no arquivo
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private volatile MappedByteBuffer map;
+    private final ReentrantLock mapLock = new ReentrantLock();
+    private volatile boolean sealed;  // Índices gravados; sem folga no mapeamento
+    long firstTimestamp = Long.MAX_VALUE;
+    long lastTimestamp;
+    int records;
+
+    // Só na partição ativa, com o lock do MessageHistory
+    private PostingTable conversations = new PostingTable();
+    private PostingTable terms = new PostingTable();
+    // Só depois de selada
+    private Index conversationIndex;
+    private Index termIndex;
+
+    private HistoryPartition(long id, Path dir, FileChannel channel) throws IOException {
+        this.id = id;
+        this.dir = dir;
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    static HistoryPartition open(Path dir, long id) throws IOException {
+        FileChannel channel = FileChannel.open(dir.resolve(fileName(id, "dat")),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new HistoryPartition(id, dir, channel);
+    }
+
+    static String fileName(long id, String extension) {
+        return String.format("part-%010d.%s", id, extension);
+    }
+
+    static long id(long recordId) {
+        return recordId >>> 32;
+    }
+
+    static int offset(long recordId) {
+        return (int) recordId;
+    }
+
+    long size() {
+        return size + pending.size();
+    }
+
+    // Registro pronto para append(); montado fora do lock. IllegalArgumentException com um nome acima de MAX_NAME_BYTES
+    static byte[] encode(long timestamp, String sender, String recipient, String message) {
+        byte[] from = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] to = recipient.getBytes(StandardCharsets.UTF_8);
+        if (from.length > MAX_NAME_BYTES || to.length > MAX_NAME_BYTES) {
+            throw new IllegalArgumentException("Nome de usuário com mais de " + MAX_NAME_BYTES + " bytes");
+        }
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        int length = FIXED_BYTES + from.length + to.length + text.length;
+        ByteBuffer record = ByteBuffer.allocate(4 + length);
+        record.putInt(length);
+        record.putLong(timestamp);
+        record.putShort((short) from.length);
+        record.put(from);
+        record.putShort((short) to.length);
+        record.put(to);
+        record.put(text);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 4, record.position() - 4);
+        record.putInt((int) crc.getValue());
+        return record.array();
+    }
+
+    // Chamado com o lock do MessageHistory; o registro só chega ao arquivo no flush()
+    void append(byte[] record, long timestamp, String sender, String recipient, Set<String> messageTerms) {
+        int offset = (int) (size + pending.size());
+        pending.write(record, 0, record.length);
+        index(offset, timestamp, sender, recipient, messageTerms);
+    }
+
+    // Grava de uma vez os registros acumulados por append(); chamado antes de soltar o lock
+    void flush() throws IOException {
+        if (pending.size() == 0) {
+            return;
+        }
+        ByteBuffer records = ByteBuffer.wrap(pending.toByteArray());
+        long offset = size;
+        while (records.hasRemaining()) {
+            channel.write(records, offset + records.position());
+        }
+        size = offset + records.limit();
+        pending.reset();
+    }
+
+    private void index(int offset, long timestamp, String sender, String recipient, Set<String> messageTerms) {
+        firstTimestamp = Math.min(firstTimestamp, timestamp);
+        lastTimestamp = Math.max(lastTimestamp, timestamp);
+        records++;
+        conversations.add(MessageHistory.hash(MessageHistory.conversationKey(sender, recipient)), offset);
+        for (String term : messageTerms) {
+            terms.add(MessageHistory.hash(MessageHistory.termKey(sender, term)), offset);
+            if (!recipient.equals(sender)) {
+                terms.add(MessageHistory.hash(MessageHistory.termKey(recipient, term)), offset);
+            }
+        }
+    }
+
+    // Reconstrói os índices no heap a partir do arquivo; os dados válidos terminam no primeiro registro
+    // incompleto, corrompido ou ilegível, e o que vem depois é descartado
+    void scan() throws IOException {
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long offset = 0;
+        CRC32C crc = new CRC32C();
+        while (offset + 4 + FIXED_BYTES <= size) {
+            int length = buffer.getInt((int) offset);
+            if (length < FIXED_BYTES || offset + 4 + length > size) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.slice((int) offset + 4, length - 4));
+            if ((int) crc.getValue() != buffer.getInt((int) offset + length) || !wellFormed(buffer, (int) offset, length)) {
+                break;
+            }
+            Record record = read((int) offset);
+            index((int) offset, record.timestamp, record.sender, record.recipient, MessageHistory.terms(record.message));
+            offset += 4 + length;
+        }
+        if (offset < size) {
+            if (!zeros(buffer, (int) offset, (int) size)) {
+                Log.warn(Log.Category.STORAGE, "Descartando " + (size - offset) + " bytes incompletos ou ilegíveis em "
+                        + dir.resolve(fileName(id, "dat")));
+            }
+            channel.truncate(offset);
+            size = offset;
+            map = null;
+        }
+    }
+
+    // Grava os índices e libera os do heap; a partição deixa de receber mensagens
+    void seal() throws IOException {
+        flush();
+        channel.truncate(size);
+        channel.force(false);
+        writeIndex(dir.resolve(fileName(id, "conv")), conversations);
+        writeIndex(dir.resolve(fileName(id, "terms")), terms);
+        loadIndexes();
+    }
+
+    boolean hasIndexes() {
+        return Files.exists(dir.resolve(fileName(id, "conv"))) && Files.exists(dir.resolve(fileName(id, "terms")));
+    }
+
+    void loadIndexes() throws IOException {
+        conversationIndex = new Index(mapFile(dir.resolve(fileName(id, "conv"))));
+        termIndex = new Index(mapFile(dir.resolve(fileName(id, "terms"))));
+        firstTimestamp = conversationIndex.map.getLong(0);
+        lastTimestamp = conversationIndex.map.getLong(8);
+        records = conversationIndex.map.getInt(16);
+        sealed = true;
+        mapped(size);  // Leitores continuam lendo mesmo se a partição for apagada pela retenção
+        conversations = null;
+        terms = null;
+    }
+
+    // Na partição ativa deve ser chamado com o lock do MessageHistory; a cópia pode ser lida depois sem ele
+    int[] conversation(long key) {
+        return conversations != null ? conversations.get(key) : conversationIndex.postings(key);
+    }
+
+    int[] term(long key) {
+        return terms != null ? terms.get(key) : termIndex.postings(key);
+    }
+
+    // Garante que um leitor fora do lock consiga ler tudo o que já foi gravado
+    void ensureMapped() throws IOException {
+        mapped(size);
+    }
+
+    long timestampAt(int offset) throws IOException {
+        return mapped(offset + 4 + 8).getLong(offset + 4);
+    }
+
+    Record read(int offset) throws IOException {
+        ByteBuffer buffer = mapped(offset + 4);
+        int length = buffer.getInt(offset);
+        buffer = mapped(offset + 4L + length);
+        if (length < FIXED_BYTES || !wellFormed(buffer, offset, length)) {
+            throw new IOException("Registro ilegível no offset " + offset + " de " + dir.resolve(fileName(id, "dat")));
+        }
+        int position = offset + 4;
+        long timestamp = buffer.getLong(position);
+        position += 8;
+        byte[] from = new byte[buffer.getShort(position) & 0xFFFF];
+        buffer.get(position + 2, from);
+        position += 2 + from.length;
+        byte[] to = new byte[buffer.getShort(position) & 0xFFFF];
+        buffer.get(position + 2, to);
+        position += 2 + to.length;
+        byte[] text = new byte[offset + length - position];
+        buffer.get(position, text);
+        return new Record((id << 32) | offset, timestamp, new String(from, StandardCharsets.UTF_8),
+                new String(to, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+    }
+
+    // Os tamanhos do remetente e do destinatário cabem no registro de length bytes
+    private static boolean wellFormed(ByteBuffer buffer, int offset, int length) {
+        int end = offset + 4 + length - 4;  // Início do CRC
+        int position = offset + 4 + 8;
+        int from = buffer.getShort(position) & 0xFFFF;
+        position += 2 + from;
+        if (position + 2 > end) {
+            return false;
+        }
+        int to = buffer.getShort(position) & 0xFFFF;
+        return position + 2 + to <= end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.truncate(size);
+        }
+        channel.close();
+    }
+
+    // Os mapeamentos continuam válidos para leitores em andamento mesmo depois de os arquivos serem apagados
+    void delete() throws IOException {
+        channel.close();
+        for (String extension : new String[] {"dat", "conv", "terms"}) {
+            Files.deleteIfExists(dir.resolve(fileName(id, extension)));
+        }
+    }
+
+    private void writeIndex(Path file, PostingTable table) throws IOException {
+        long[] keys = table.sortedKeys();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out), 64 * 1024))) {
+            data.writeLong(firstTimestamp == Long.MAX_VALUE ? 0 : firstTimestamp);
+            data.writeLong(lastTimestamp);
+            data.writeInt(records);
+            data.writeInt(keys.length);
+            int postingsOffset = INDEX_HEADER_BYTES + keys.length * INDEX_ENTRY_BYTES;
+            for (long key : keys) {
+                int count = table.count(key);
+                data.writeLong(key);
+                data.writeInt(postingsOffset);
+                data.writeInt(count);
+                postingsOffset += count * 4;
+            }
+            for (long key : keys) {
+                for (int offset : table.get(key)) {
+                    data.writeInt(offset);
+                }
+            }
+            data.flush();
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static ByteBuffer mapFile(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    // Um lock e não synchronized: o mapeamento é I/O, e uma thread virtual presa num monitor prende a portadora
+    private ByteBuffer mapped(long end) throws IOException {
+        MappedByteBuffer current = map;
+        if (current == null || current.capacity() < end) {
+            mapLock.lock();
+            try {
+                current = map;
+                if (current == null || current.capacity() < end) {
+                    long headroom = sealed ? 0 : Math.min(Math.max(size, MIN_MAP_HEADROOM), MAX_MAP_HEADROOM);
+                    current = channel.map(FileChannel.MapMode.READ_ONLY, 0, size + headroom);
+                    map = current;
+                }
+            } finally {
+                mapLock.unlock();
+            }
+        }
+        return current;
+    }
+
+    // Folga de um mapeamento anterior, deixada por uma queda antes de seal()
+    private static boolean zeros(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
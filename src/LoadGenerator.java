@@ -0,0 +1,466 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Gerador de carga sem console. Abre muitas sessões simultâneas (uma thread virtual para enviar e outra
+para ler cada uma), faz login com os usuários de um arquivo no formato do user_data.txt e envia uma
+mistura de MESSAGE, LIST_USERS e LOGOUT/LOGIN. Ao final mostra a vazão e os percentis de latência
+(p50/p99/p999) de cada comando e da entrega das mensagens, do envio até a chegada no destinatário.
+Exemplo: java LoadGenerator --sessions=2000 --duration=60 --mix=message:80,list:10,churn:10
+*/
+
+public class LoadGenerator {
+    static final String USAGE = "Uso: java LoadGenerator [--host=<host>] [--port=<porta>] [--sessions=<n>]"
+            + " [--duration=<segundos>] [--users=<arquivo>] [--mix=message:<peso>,list:<peso>,churn:<peso>]"
+            + " [--think-ms=<n>] [--message-bytes=<n>] [--connect-concurrency=<n>]\n"
+            + "     java LoadGenerator --generate-users=<n>   (imprime usuários para acrescentar ao user_data.txt)";
+
+    // As mensagens levam o instante de envio: MESSAGE <destino> lg <System.nanoTime()> <preenchimento>
+    private static final String MARKER = "lg";
+    private static final long REPLY_TIMEOUT_SECONDS = 30;
+    private static final long DRAIN_TIMEOUT_MILLIS = 5_000;
+    private static final int PROGRESS_INTERVAL_SECONDS = 5;
+
+    enum Op {
+        MESSAGE("MESSAGE"), LIST("LIST_USERS"), CHURN("LOGOUT/LOGIN");
+
+        final String label;
+
+        Op(String label) {
+            this.label = label;
+        }
+    }
+
+    static final class Options {
+        String host = ClientConnection.DEFAULT_HOST;
+        int port = ClientConnection.DEFAULT_PORT;
+        int sessions = 100;
+        int durationSeconds = 30;
+        String usersFile = "user_data.txt";
+        int[] mix = {80, 10, 10};  // Pesos na ordem de Op
+        int thinkMs = 0;  // Pausa de cada sessão entre um comando e o próximo
+        int messageBytes = 64;
+        int connectConcurrency = 64;  // Conexões e logins em andamento ao mesmo tempo na abertura
+        int generateUsers = 0;
+
+        static Options fromArgs(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                int eq = arg.indexOf('=');
+                if (!arg.startsWith("--") || eq < 0) {
+                    throw new IllegalArgumentException("Argumento inválido: " + arg);
+                }
+                String name = arg.substring(2, eq);
+                String value = arg.substring(eq + 1);
+                switch (name) {
+                    case "host":
+                        options.host = value;
+                        break;
+                    case "port":
+                        options.port = ServerConfig.parsePositive(name, value);
+                        break;
+                    case "sessions":
+                        options.sessions = ServerConfig.parsePositive(name, value);
+                        break;
+                    case "duration":
+                        options.durationSeconds = ServerConfig.parsePositive(name, value);
+                        break;
+                    case "users":
+                        options.usersFile = value;
+                        break;
+                    case "mix":
+                        options.mix = parseMix(value);
+                        break;
+                    case "think-ms":
+                        options.thinkMs = parseNonNegative(name, value);
+                        break;
+                    case "message-bytes":
+                        options.messageBytes = ServerConfig.parsePositive(name, value);
+                        break;
+                    case "connect-concurrency":
+                        options.connectConcurrency = ServerConfig.parsePositive(name, value);
+                        break;
+                    case "generate-users":
+                        options.generateUsers = ServerConfig.parsePositive(name, value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Opção desconhecida: --" + name);
+                }
+            }
+            return options;
+        }
+
+        // Ex.: message:80,list:10,churn:10; tipos omitidos ficam com peso 0
+        private static int[] parseMix(String value) {
+            int[] mix = new int[Op.values().length];
+            for (String part : value.split(",")) {
+                int colon = part.indexOf(':');
+                if (colon < 0) {
+                    throw new IllegalArgumentException("Valor inválido para --mix: " + value);
+                }
+                String op = part.substring(0, colon);
+                int weight = parseNonNegative("mix", part.substring(colon + 1));
+                switch (op) {
+                    case "message":
+                        mix[Op.MESSAGE.ordinal()] = weight;
+                        break;
+                    case "list":
+                        mix[Op.LIST.ordinal()] = weight;
+                        break;
+                    case "churn":
+                        mix[Op.CHURN.ordinal()] = weight;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Tipo inválido em --mix: " + op + ". Use: message, list ou churn");
+                }
+            }
+            if (Arrays.stream(mix).sum() == 0) {
+                throw new IllegalArgumentException("Valor inválido para --mix: " + value);
+            }
+            return mix;
+        }
+
+        private static int parseNonNegative(String name, String value) {
+            return value.equals("0") ? 0 : ServerConfig.parsePositive(name, value);
+        }
+    }
+
+    private final Options options;
+    private final List<String[]> credentials;
+    private final String padding;
+    private final int mixTotal;
+
+    private final LatencyHistogram[] latency = new LatencyHistogram[Op.values().length];
+    private final LongAdder[] failures = new LongAdder[Op.values().length];
+    private final LatencyHistogram delivery = new LatencyHistogram();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder loginFailures = new LongAdder();
+
+    private final CountDownLatch ready;
+    private final CountDownLatch start = new CountDownLatch(1);
+    private final CountDownLatch stopped;
+    private final CountDownLatch finish = new CountDownLatch(1);
+    private volatile long deadline;
+
+    LoadGenerator(Options options, List<String[]> credentials) {
+        this.options = options;
+        this.credentials = credentials;
+        this.padding = "x".repeat(options.messageBytes);
+        this.mixTotal = Arrays.stream(options.mix).sum();
+        this.ready = new CountDownLatch(options.sessions);
+        this.stopped = new CountDownLatch(options.sessions);
+        for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+            failures[i] = new LongAdder();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.fromArgs(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return;
+        }
+
+        if (options.generateUsers > 0) {
+            for (int i = 0; i < options.generateUsers; i++) {
+                System.out.println(MARKER + i + " senha" + i + " Aluno 2024");
+            }
+            return;
+        }
+
+        List<String[]> credentials = loadCredentials(Paths.get(options.usersFile));
+        if (credentials.size() < options.sessions) {
+            System.err.println("O arquivo " + options.usersFile + " tem " + credentials.size() + " usuários, menos que as "
+                    + options.sessions + " sessões pedidas. Gere mais com --generate-users=<n>.");
+            return;
+        }
+        new LoadGenerator(options, credentials).run();
+    }
+
+    // Cada sessão usa um usuário diferente, pois o servidor aceita só uma sessão por usuário
+    private static List<String[]> loadCredentials(Path file) throws IOException {
+        List<String[]> credentials = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] tokens = line.trim().split(" ");
+            if (tokens.length >= 2) {
+                credentials.add(new String[] {tokens[0], tokens[1]});
+            }
+        }
+        return credentials;
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println("Abrindo " + options.sessions + " sessões em " + options.host + ":" + options.port + "...");
+        Semaphore connecting = new Semaphore(options.connectConcurrency);
+        List<Thread> threads = new ArrayList<>(options.sessions);
+        for (int i = 0; i < options.sessions; i++) {
+            Session session = new Session(i, connecting);
+            threads.add(Thread.ofVirtual().name("load-" + i).start(session));
+        }
+        ready.await();
+        if (loginFailures.sum() == options.sessions) {
+            System.err.println("Nenhuma sessão conseguiu fazer login.");
+            start.countDown();
+            finish.countDown();
+            return;
+        }
+
+        long startNanos = System.nanoTime();
+        deadline = startNanos + TimeUnit.SECONDS.toNanos(options.durationSeconds);
+        start.countDown();
+        for (int elapsed = PROGRESS_INTERVAL_SECONDS; elapsed < options.durationSeconds; elapsed += PROGRESS_INTERVAL_SECONDS) {
+            Thread.sleep(Math.max(0, TimeUnit.NANOSECONDS.toMillis(startNanos + TimeUnit.SECONDS.toNanos(elapsed) - System.nanoTime())));
+            long done = completed();
+            System.out.printf("[%3ds] %d comandos, %.0f/s%n", elapsed, done, done / (double) elapsed);
+        }
+        stopped.await(options.durationSeconds + REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        long elapsedNanos = System.nanoTime() - startNanos;
+
+        // Dá um tempo para as mensagens em trânsito chegarem antes de encerrar as sessões
+        long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MILLIS;
+        while (delivery.count() < messagesSent.sum() && System.currentTimeMillis() < drainDeadline) {
+            Thread.sleep(50);
+        }
+        report(elapsedNanos);
+        finish.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private long completed() {
+        long total = 0;
+        for (LatencyHistogram histogram : latency) {
+            total += histogram.count();
+        }
+        return total;
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println();
+        System.out.printf("Sessões: %d (%d falharam ao conectar ou no login), duração: %.1f s%n",
+                options.sessions, loginFailures.sum(), seconds);
+        System.out.printf("%-14s %10s %10s %8s %10s %10s %10s %10s%n",
+                "Comando", "Total", "Por seg.", "Falhas", "p50 ms", "p99 ms", "p999 ms", "máx. ms");
+        for (Op op : Op.values()) {
+            printRow(op.label, latency[op.ordinal()], failures[op.ordinal()].sum(), seconds);
+        }
+        long done = completed();
+        System.out.printf("%-14s %10d %10.0f%n", "Total", done, done / seconds);
+        System.out.println();
+        System.out.printf("Entrega de mensagens: %d enviadas, %d entregues%n", messagesSent.sum(), delivery.count());
+        printRow("Entrega", delivery, messagesSent.sum() - delivery.count(), seconds);
+    }
+
+    private static void printRow(String label, LatencyHistogram histogram, long failed, double seconds) {
+        System.out.printf("%-14s %10d %10.0f %8d %10.2f %10.2f %10.2f %10.2f%n",
+                label, histogram.count(), histogram.count() / seconds, failed,
+                histogram.percentile(0.50) / 1e6, histogram.percentile(0.99) / 1e6,
+                histogram.percentile(0.999) / 1e6, histogram.max() / 1e6);
+    }
+
+    // Uma sessão fechada em laço: envia um comando, espera o REPLY_END e só então envia o próximo.
+    // O protocolo binário é usado porque é o único em que toda resposta tem um fim marcado.
+    private final class Session implements Runnable {
+        private final int index;
+        private final String username;
+        private final String password;
+        private final Semaphore connecting;
+        private ClientConnection connection;
+        private Thread reader;
+        private volatile Reply pending;
+
+        Session(int index, Semaphore connecting) {
+            this.index = index;
+            this.username = credentials.get(index)[0];
+            this.password = credentials.get(index)[1];
+            this.connecting = connecting;
+        }
+
+        @Override
+        public void run() {
+            boolean loggedIn = false;
+            try {
+                connecting.acquire();
+                try {
+                    loggedIn = connect();
+                } finally {
+                    connecting.release();
+                }
+            } catch (IOException | InterruptedException e) {
+                System.err.println(username + ": " + e.getMessage());
+            }
+            if (!loggedIn) {
+                loginFailures.increment();
+                stopped.countDown();
+            }
+            ready.countDown();
+
+            try {
+                start.await();
+                if (loggedIn) {
+                    try {
+                        loop();
+                    } finally {
+                        stopped.countDown();
+                    }
+                    finish.await();
+                    if (connection != null) {
+                        call("LOGOUT");
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                System.err.println(username + ": " + e.getMessage());
+            } finally {
+                disconnect();
+            }
+        }
+
+        private void loop() throws IOException, InterruptedException {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < deadline) {
+                Op op = pick(random.nextInt(mixTotal));
+                long begin = System.nanoTime();
+                boolean ok;
+                switch (op) {
+                    case MESSAGE:
+                        messagesSent.increment();
+                        ok = call("MESSAGE " + recipient(random) + " " + MARKER + " " + System.nanoTime() + " " + padding);
+                        break;
+                    case LIST:
+                        ok = call("LIST_USERS");
+                        break;
+                    default:
+                        ok = call("LOGOUT");
+                        disconnect();
+                        ok = connect() && ok;
+                        break;
+                }
+                latency[op.ordinal()].record(System.nanoTime() - begin);
+                if (!ok) {
+                    failures[op.ordinal()].increment();
+                    if (connection == null) {
+                        return;  // Não conseguiu voltar depois de um LOGOUT
+                    }
+                }
+                if (options.thinkMs > 0) {
+                    Thread.sleep(options.thinkMs);
+                }
+            }
+        }
+
+        private Op pick(int roll) {
+            for (Op op : Op.values()) {
+                roll -= options.mix[op.ordinal()];
+                if (roll < 0) {
+                    return op;
+                }
+            }
+            return Op.MESSAGE;
+        }
+
+        private String recipient(ThreadLocalRandom random) {
+            if (options.sessions == 1) {
+                return username;
+            }
+            int other = random.nextInt(options.sessions - 1);
+            return credentials.get(other >= index ? other + 1 : other)[0];
+        }
+
+        private boolean connect() throws IOException, InterruptedException {
+            connection = new ClientConnection(options.host, options.port, true);
+            reader = Thread.ofVirtual().name("load-reader-" + index).start(this::read);
+            if (!call("LOGIN " + username + " " + password)) {
+                disconnect();
+                return false;
+            }
+            return true;
+        }
+
+        private void disconnect() {
+            if (connection == null) {
+                return;
+            }
+            try {
+                connection.close();
+                reader.join();
+            } catch (IOException e) {
+                // já fechada
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            connection = null;
+        }
+
+        // Retorna false se alguma linha da resposta indicou falha ou se a resposta não chegou
+        private boolean call(String command) throws IOException, InterruptedException {
+            Reply reply = new Reply();
+            pending = reply;
+            connection.send(command);
+            try {
+                return reply.done.get(REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (ExecutionException | TimeoutException e) {
+                return false;
+            }
+        }
+
+        private void read() {
+            try {
+                WireProtocol.Frame frame;
+                while ((frame = connection.readFrame()) != null) {
+                    switch (frame.opcode) {
+                        case WireProtocol.REPLY:
+                            if (frame.payload.contains(" FAIL") || frame.payload.startsWith("RATE LIMITED")) {
+                                pending.failed = true;
+                            }
+                            break;
+                        case WireProtocol.REPLY_END:
+                            pending.done.complete(!pending.failed);
+                            break;
+                        case WireProtocol.PUSH:
+                            recordDelivery(frame.payload);
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } catch (IOException e) {
+                // conexão fechada por disconnect() ou pelo servidor
+            }
+            Reply reply = pending;
+            if (reply != null) {
+                reply.done.complete(false);
+            }
+        }
+
+        // MESSAGE <remetente>: lg <nanoTime> ...
+        private void recordDelivery(String payload) {
+            int at = payload.indexOf(": " + MARKER + " ");
+            if (!payload.startsWith("MESSAGE ") || at < 0) {
+                return;
+            }
+            at += MARKER.length() + 3;
+            int end = payload.indexOf(' ', at);
+            try {
+                long sentAt = Long.parseLong(end < 0 ? payload.substring(at) : payload.substring(at, end));
+                delivery.record(System.nanoTime() - sentAt);
+            } catch (NumberFormatException e) {
+                // mensagem que não foi gerada por esta execução
+            }
+        }
+    }
+
+    private static final class Reply {
+        final CompletableFuture<Boolean> done = new CompletableFuture<>();
+        volatile boolean failed;
+    }
+}
@@ -0,0 +1,300 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Log assíncrono do servidor. Quem registra só copia a entrada para um buffer circular limitado
+(vários produtores e um consumidor, sem locks) e segue; com o buffer cheio a entrada é descartada
+e contada. Uma thread escritora esvazia o buffer em lotes, formata as linhas e grava num arquivo
+rotacionado pelo tamanho (chatbara.log, chatbara.log.1, ...), longe do console do servidor.
+
+O nível mínimo vale por categoria, e DEBUG e INFO de uma categoria podem ser amostrados
+(uma entrada a cada N). WARN e ERROR nunca são amostrados. Antes de start() nada é registrado.
+*/
+
+final class Log {
+    enum Level { DEBUG, INFO, WARN, ERROR }
+
+    enum Category { SERVER, CONNECTION, COMMAND, MESSAGE, STORAGE, CONSOLE }
+
+    static final class Config {
+        Path file = Paths.get("logs", "chatbara.log");
+        Level level = Level.INFO;
+        final Map<Category, Level> categoryLevels = new EnumMap<>(Category.class);
+        final Map<Category, Integer> sampling = new EnumMap<>(Category.class);  // Mantém 1 a cada N
+        long maxFileBytes = 10 * 1024 * 1024;
+        int maxFiles = 5;  // Arquivo atual mais os rotacionados
+        int bufferEntries = 8192;
+    }
+
+    // Posição do buffer; reaproveitada, para registrar não alocar nada além da própria mensagem
+    private static final class Entry {
+        long time;
+        Level level;
+        Category category;
+        String thread;
+        String message;
+        Throwable error;
+    }
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder sampled = new LongAdder();
+
+    // Buffer: a posição p pode ser escrita quando sequences[p & mask] == p e lida quando é p + 1
+    private static Entry[] entries;
+    private static AtomicLongArray sequences;
+    private static int mask;
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head;  // Só a thread escritora usa
+
+    private static int[] minLevels;
+    private static int[] sampleEvery;
+    private static Config config;
+    private static Thread writer;
+    private static volatile boolean running;
+    private static volatile boolean stopping;
+    private static volatile boolean writerParked;
+
+    // Escritor
+    private static OutputStream out;
+    private static long fileBytes;
+    private static long reportedDrops;
+
+    private Log() {
+    }
+
+    static void start(Config logConfig) throws IOException {
+        config = logConfig;
+        int capacity = Integer.highestOneBit(Math.max(2, logConfig.bufferEntries - 1)) << 1;
+        entries = new Entry[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            entries[i] = new Entry();
+            sequences.set(i, i);
+        }
+        mask = capacity - 1;
+        minLevels = new int[Category.values().length];
+        sampleEvery = new int[Category.values().length];
+        for (Category category : Category.values()) {
+            minLevels[category.ordinal()] = logConfig.categoryLevels.getOrDefault(category, logConfig.level).ordinal();
+            sampleEvery[category.ordinal()] = logConfig.sampling.getOrDefault(category, 1);
+        }
+        openFile();
+
+        writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        running = true;
+    }
+
+    // Grava o que ainda está no buffer; chamado ao encerrar o servidor
+    static void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        stopping = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Para evitar montar a mensagem quando ela seria descartada pelo nível
+    static boolean enabled(Level level, Category category) {
+        return running && level.ordinal() >= minLevels[category.ordinal()];
+    }
+
+    static long dropped() {
+        return dropped.sum();
+    }
+
+    static long sampled() {
+        return sampled.sum();
+    }
+
+    static void debug(Category category, String message) {
+        log(Level.DEBUG, category, message, null);
+    }
+
+    static void info(Category category, String message) {
+        log(Level.INFO, category, message, null);
+    }
+
+    static void warn(Category category, String message) {
+        log(Level.WARN, category, message, null);
+    }
+
+    static void error(Category category, String message, Throwable error) {
+        log(Level.ERROR, category, message, error);
+    }
+
+    private static void log(Level level, Category category, String message, Throwable error) {
+        if (!enabled(level, category)) {
+            return;
+        }
+        if (level.ordinal() < Level.WARN.ordinal()) {
+            int every = sampleEvery[category.ordinal()];
+            if (every > 1 && ThreadLocalRandom.current().nextInt(every) != 0) {
+                sampled.increment();
+                return;
+            }
+        }
+
+        long position;
+        int index;
+        while (true) {
+            position = tail.get();
+            index = (int) position & mask;
+            long sequence = sequences.get(index);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (sequence < position) {
+                dropped.increment();  // Buffer cheio: a escritora ainda não liberou esta posição
+                return;
+            }
+            // Outro produtor pegou a posição; tenta a seguinte
+        }
+        Entry entry = entries[index];
+        entry.time = System.currentTimeMillis();
+        entry.level = level;
+        entry.category = category;
+        entry.thread = Thread.currentThread().getName();
+        entry.message = message;
+        entry.error = error;
+        sequences.set(index, position + 1);  // Publica a entrada para a escritora
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private static void drain() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            int written = 0;
+            int index;
+            while (sequences.get(index = (int) head & mask) == head + 1) {
+                Entry entry = entries[index];
+                format(line, entry.time, entry.level, entry.category, entry.thread, entry.message, entry.error);
+                entry.message = null;
+                entry.error = null;
+                sequences.set(index, head + entries.length);  // Libera a posição para a próxima volta
+                head++;
+                write(line);
+                written++;
+            }
+            long drops = dropped.sum();
+            if (drops > reportedDrops) {
+                format(line, System.currentTimeMillis(), Level.WARN, Category.SERVER, "log-writer",
+                        (drops - reportedDrops) + " linhas de log descartadas: buffer cheio", null);
+                reportedDrops = drops;
+                write(line);
+                written++;
+            }
+            if (written > 0) {
+                flush();
+                continue;
+            }
+            if (stopping) {
+                flush();
+                return;
+            }
+            // Os produtores só acordam a escritora quando ela está parada
+            writerParked = true;
+            if (sequences.get((int) head & mask) != head + 1 && !stopping) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+            writerParked = false;
+        }
+    }
+
+    private static void format(StringBuilder line, long time, Level level, Category category, String thread,
+                               String message, Throwable error) {
+        line.setLength(0);
+        line.append(TIME_FORMAT.format(LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault())))
+                .append(' ').append(level.name());
+        for (int i = level.name().length(); i < 5; i++) {
+            line.append(' ');
+        }
+        line.append(" [").append(category.name().toLowerCase()).append("] ").append(thread).append(": ").append(message)
+                .append('\n');
+        if (error != null) {
+            StringWriter trace = new StringWriter();
+            error.printStackTrace(new PrintWriter(trace));
+            line.append(trace);
+        }
+    }
+
+    private static void write(StringBuilder line) {
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            if (fileBytes > 0 && fileBytes + bytes.length > config.maxFileBytes) {
+                rotate();
+            }
+            out.write(bytes);
+            fileBytes += bytes.length;
+        } catch (IOException e) {
+            System.err.println("Falha ao gravar o log em " + config.file + ": " + e.getMessage());
+        }
+    }
+
+    private static void flush() {
+        try {
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("Falha ao gravar o log em " + config.file + ": " + e.getMessage());
+        }
+    }
+
+    // chatbara.log vira chatbara.log.1, que vira .2, até maxFiles - 1; o mais antigo é apagado
+    private static void rotate() throws IOException {
+        out.close();
+        Path file = config.file;
+        Files.deleteIfExists(rotated(file, config.maxFiles - 1));
+        for (int i = config.maxFiles - 2; i >= 1; i--) {
+            Path from = rotated(file, i);
+            if (Files.exists(from)) {
+                Files.move(from, rotated(file, i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        if (config.maxFiles > 1) {
+            Files.move(file, rotated(file, 1), StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        openFile();
+    }
+
+    private static Path rotated(Path file, int generation) {
+        return file.resolveSibling(file.getFileName() + "." + generation);
+    }
+
+    private static void openFile() throws IOException {
+        Path parent = config.file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        out = new BufferedOutputStream(Files.newOutputStream(config.file, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND), 64 * 1024);
+        fileBytes = Files.size(config.file);
+    }
+}
@@ -0,0 +1,228 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/*
+Um arquivo de dados da caixa de mensagens offline. Registros são acrescentados pelo
+FileChannel e lidos por um mapeamento em memória do arquivo. No segmento ativo o mapeamento vai
+além do fim, com uma folga que cresce com o arquivo (o arquivo é estendido com zeros), para os
+registros seguintes caberem nele sem mapear tudo de novo; seal() e close() cortam a folga, e
+scan() descarta a que sobrou de uma queda.
+
+Registro: [int tamanho][long seq][long timestamp][short bytes do usuário][usuário][mensagem][int crc32c]
+O tamanho conta tudo depois dele; o CRC cobre de seq até o fim da mensagem.
+*/
+
+class MailboxSegment implements Closeable {
+    static final int MAX_USER_BYTES = 0xFFFF;  // O tamanho do usuário é um short sem sinal
+    private static final int FIXED_BYTES = 8 + 8 + 2 + 4;
+    private static final long MIN_MAP_HEADROOM = 64 * 1024;
+    private static final long MAX_MAP_HEADROOM = 8 * 1024 * 1024;
+
+    interface RecordVisitor {
+        void visit(long offset, long seq, long timestamp, String username);
+    }
+
+    final long id;
+    final Path file;
+    private final FileChannel channel;
+    private volatile long size;
+    private volatile MappedByteBuffer map;
+    private final ReentrantLock mapLock = new ReentrantLock();
+
+    int records;  // Registros gravados neste segmento
+    int live;  // Registros ainda pendentes de entrega
+    boolean sealed;
+
+    private MailboxSegment(long id, Path file, FileChannel channel) throws IOException {
+        this.id = id;
+        this.file = file;
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    static MailboxSegment open(Path dir, long id) throws IOException {
+        Path file = dir.resolve(fileName(id));
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new MailboxSegment(id, file, channel);
+    }
+
+    static String fileName(long id) {
+        return String.format("segment-%010d.dat", id);
+    }
+
+    long size() {
+        return size;
+    }
+
+    // Chamado apenas com o lock do OfflineMessageStore; devolve o offset do registro.
+    // IllegalArgumentException se o usuário não cabe no registro, sem gravar nada
+    long append(long seq, long timestamp, String username, String message) throws IOException {
+        byte[] user = username.getBytes(StandardCharsets.UTF_8);
+        if (user.length > MAX_USER_BYTES) {
+            throw new IllegalArgumentException("Nome de usuário com mais de " + MAX_USER_BYTES + " bytes");
+        }
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + FIXED_BYTES + user.length + text.length);
+        record.putInt(FIXED_BYTES + user.length + text.length);
+        record.putLong(seq);
+        record.putLong(timestamp);
+        record.putShort((short) user.length);
+        record.put(user);
+        record.put(text);
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 4, record.position() - 4);
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        long offset = size;
+        while (record.hasRemaining()) {
+            channel.write(record, offset + record.position());
+        }
+        size = offset + record.limit();
+        records++;
+        live++;
+        return offset;
+    }
+
+    long seqAt(long offset) throws IOException {
+        return mapped(offset + 4 + 8).getLong((int) offset + 4);
+    }
+
+    long timestampAt(long offset) throws IOException {
+        return mapped(offset + 4 + 16).getLong((int) offset + 4 + 8);
+    }
+
+    String messageAt(long offset) throws IOException {
+        ByteBuffer buffer = mapped(offset + 4);
+        int length = buffer.getInt((int) offset);
+        buffer = mapped(offset + 4 + length);
+        int userLength = buffer.getShort((int) offset + 4 + 16) & 0xFFFF;
+        int textOffset = (int) offset + 4 + 18 + userLength;
+        byte[] text = new byte[length - FIXED_BYTES - userLength];
+        buffer.get(textOffset, text);
+        return new String(text, StandardCharsets.UTF_8);
+    }
+
+    // Percorre os registros válidos. Um registro corrompido só é pulado se logo depois dele, segundo o seu
+    // tamanho, começa um registro válido: o próprio tamanho pode estar corrompido, e pular às cegas cairia no
+    // meio dos seguintes. Senão (inclusive num registro final incompleto seguido da folga com zeros) o resto é descartado.
+    void scan(RecordVisitor visitor) throws IOException {
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long offset = 0;
+        int skipped = 0;
+        CRC32C crc = new CRC32C();
+        while (offset + 4 + FIXED_BYTES <= size) {
+            int length = buffer.getInt((int) offset);
+            if (length < FIXED_BYTES || offset + 4 + length > size) {
+                break;
+            }
+            if (!valid(buffer, offset, crc)) {
+                if (!valid(buffer, offset + 4 + length, crc)) {
+                    break;
+                }
+                // Conta em records como espaço ocupado, sem mensagem pendente
+                skipped++;
+                records++;
+                offset += 4 + length;
+                continue;
+            }
+            int userLength = buffer.getShort((int) offset + 4 + 16) & 0xFFFF;
+            byte[] user = new byte[userLength];
+            buffer.get((int) offset + 4 + 18, user);
+            visitor.visit(offset, buffer.getLong((int) offset + 4), buffer.getLong((int) offset + 4 + 8),
+                    new String(user, StandardCharsets.UTF_8));
+            records++;
+            offset += 4 + length;
+        }
+        if (skipped > 0) {
+            Log.warn(Log.Category.STORAGE, "Ignorando " + skipped + " registros corrompidos em " + file);
+        }
+        if (offset < size) {
+            if (!zeros(buffer, (int) offset, (int) size)) {
+                Log.warn(Log.Category.STORAGE, "Descartando " + (size - offset) + " bytes incompletos ou corrompidos em " + file);
+            }
+            channel.truncate(offset);
+            size = offset;
+            map = null;
+        }
+    }
+
+    // Chamado com o lock do OfflineMessageStore; o segmento deixa de receber registros e perde a folga do mapeamento
+    void seal() throws IOException {
+        sealed = true;
+        channel.truncate(size);
+    }
+
+    // Garante que um leitor fora do lock do store consiga ler tudo o que já foi gravado
+    void ensureMapped() throws IOException {
+        mapped(size);
+    }
+
+    void force() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel.isOpen()) {
+            channel.truncate(size);
+        }
+        channel.close();
+    }
+
+    // O mapeamento continua válido para leitores em andamento mesmo depois de o arquivo ser apagado
+    void delete() throws IOException {
+        channel.close();
+        Files.deleteIfExists(file);
+    }
+
+    // Um lock e não synchronized: o mapeamento é I/O, e uma thread virtual presa num monitor prende a portadora
+    private ByteBuffer mapped(long end) throws IOException {
+        MappedByteBuffer current = map;
+        if (current == null || current.capacity() < end) {
+            mapLock.lock();
+            try {
+                current = map;
+                if (current == null || current.capacity() < end) {
+                    long headroom = sealed ? 0 : Math.min(Math.max(size, MIN_MAP_HEADROOM), MAX_MAP_HEADROOM);
+                    current = channel.map(FileChannel.MapMode.READ_ONLY, 0, size + headroom);
+                    map = current;
+                }
+            } finally {
+                mapLock.unlock();
+            }
+        }
+        return current;
+    }
+
+    // Há um registro inteiro em offset, com o tamanho do usuário coerente e o CRC conferindo
+    private boolean valid(ByteBuffer buffer, long offset, CRC32C crc) {
+        if (offset + 4 + FIXED_BYTES > size) {
+            return false;
+        }
+        int length = buffer.getInt((int) offset);
+        if (length < FIXED_BYTES || offset + 4 + length > size
+                || (buffer.getShort((int) offset + 4 + 16) & 0xFFFF) > length - FIXED_BYTES) {
+            return false;
+        }
+        crc.reset();
+        crc.update(buffer.slice((int) offset + 4, length - 4));
+        return (int) crc.getValue() == buffer.getInt((int) offset + length);
+    }
+
+    // Folga de um mapeamento anterior, deixada por uma queda antes de seal()
+    private static boolean zeros(ByteBuffer buffer, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,468 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.Normalizer;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+Histórico pesquisável das mensagens diretas, usado pelos comandos HISTORY e SEARCH.
+
+As mensagens são gravadas em partições por dia (ver HistoryPartition), que também fecham ao
+passar de PARTITION_BYTES. Só a partição ativa tem os índices no heap; as anteriores são
+seladas com um índice por conversa e um índice invertido de termos, ambos ordenados e mapeados
+em memória, e uma consulta faz uma busca binária por partição, da mais nova para a mais antiga,
+até juntar o limite pedido. A retenção apaga partições inteiras.
+
+O id de cada mensagem é a posição dela (partição, offset), que cresce com o tempo e serve de
+cursor para pedir a página anterior. A gravação é feita por uma thread própria a partir de uma
+fila limitada, fora do caminho do MESSAGE; com a fila cheia a mensagem não entra no histórico
+e é contada em dropped(). As consultas esperam a fila já enfileirada ser gravada.
+
+Arquivos em <dir>: part-N.dat, part-N.conv e part-N.terms
+*/
+
+final class MessageHistory implements Closeable {
+    static final int PARTITION_BYTES = 8 * 1024 * 1024;
+    static final int MAX_LIMIT = 200;
+    private static final int QUEUE_CAPACITY = 65_536;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 40;
+    private static final long FLUSH_WAIT_MILLIS = 1_000;
+    private static final Pattern PARTITION_FILE = Pattern.compile("part-(\\d+)\\.dat");
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    // Cursor das consultas: só mensagens com id menor que id e enviadas antes de timestamp
+    static final class Before {
+        static final Before NONE = new Before(Long.MAX_VALUE, Long.MAX_VALUE);
+
+        final long id;
+        final long timestamp;
+
+        private Before(long id, long timestamp) {
+            this.id = id;
+            this.timestamp = timestamp;
+        }
+
+        // Id de uma mensagem (página anterior) ou uma data aaaa-mm-dd
+        static Before parse(String value) {
+            try {
+                if (value.indexOf('-') > 0) {
+                    return new Before(Long.MAX_VALUE, LocalDate.parse(value).atStartOfDay(ZONE).toInstant().toEpochMilli());
+                }
+                long id = Long.parseLong(value);
+                if (id > 0) {
+                    return new Before(id, Long.MAX_VALUE);
+                }
+            } catch (NumberFormatException | DateTimeParseException e) {
+                // tratado abaixo
+            }
+            throw new IllegalArgumentException("Use o id de uma mensagem ou uma data aaaa-mm-dd: " + value);
+        }
+    }
+
+    private static final class Pending {
+        long timestamp;
+        final String sender;
+        final String recipient;
+        final String message;
+        byte[] record;  // Montado pela thread de gravação, fora do lock, com os termos
+        Set<String> terms;
+
+        Pending(long timestamp, String sender, String recipient, String message) {
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.message = message;
+        }
+    }
+
+    private final Path dir;
+    private final long retentionMillis;
+    private final BlockingQueue<Pending> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writer;
+    private final ScheduledExecutorService background;
+    private final LongAdder dropped = new LongAdder();
+
+    // Protege as partições e os índices da partição ativa
+    private final ReentrantLock lock = new ReentrantLock();
+    private final TreeMap<Long, HistoryPartition> partitions = new TreeMap<>();
+    private HistoryPartition active;
+    private LocalDate activeDay;
+    private long lastTimestamp;  // Só a thread de gravação, depois de open()
+
+    // Quantas mensagens entraram na fila e quantas já foram gravadas, para as consultas esperarem
+    private final AtomicLong enqueued = new AtomicLong();
+    private final ReentrantLock writtenLock = new ReentrantLock();
+    private final Condition writtenChanged = writtenLock.newCondition();
+    private long written;
+
+    MessageHistory(Path dir, int retentionDays) {
+        this.dir = dir;
+        this.retentionMillis = TimeUnit.DAYS.toMillis(retentionDays);
+        this.writer = new Thread(this::write, "message-history");
+        this.writer.setDaemon(true);
+        this.background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "message-history-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Abre as partições existentes; reconstrói os índices da ativa e de alguma que não chegou a ser selada.
+    // Um registro ilegível encerra os dados válidos da partição reconstruída (ver HistoryPartition.scan)
+    void open() throws IOException {
+        Files.createDirectories(dir);
+        lock.lock();
+        try {
+            TreeSet<Long> ids = new TreeSet<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "part-*.dat")) {
+                for (Path file : files) {
+                    Matcher matcher = PARTITION_FILE.matcher(file.getFileName().toString());
+                    if (matcher.matches()) {
+                        ids.add(Long.parseLong(matcher.group(1)));
+                    }
+                }
+            }
+            for (long id : ids) {
+                HistoryPartition partition = HistoryPartition.open(dir, id);
+                if (id != ids.last() && partition.hasIndexes()) {
+                    partition.loadIndexes();
+                } else {
+                    partition.scan();
+                    if (id != ids.last()) {
+                        partition.seal();
+                    }
+                }
+                partitions.put(id, partition);
+                lastTimestamp = Math.max(lastTimestamp, partition.lastTimestamp);
+            }
+            active = partitions.isEmpty() ? null : partitions.lastEntry().getValue();
+            activeDay = active == null || active.records == 0 ? null : day(active.firstTimestamp);
+            if (active == null) {
+                rollPartition(1);
+            }
+            Log.info(Log.Category.STORAGE, "Histórico: " + records() + " mensagens em " + partitions.size() + " partições");
+        } finally {
+            lock.unlock();
+        }
+        writer.start();
+        background.scheduleWithFixedDelay(this::maintain, 0, 1, TimeUnit.HOURS);
+    }
+
+    // Chamado por quem envia a mensagem; não espera o disco. Nomes que não cabem no registro ficam de fora
+    void record(String sender, String recipient, String message) {
+        if (tooLong(sender) || tooLong(recipient)) {
+            dropped.increment();
+        } else if (queue.offer(new Pending(System.currentTimeMillis(), sender, recipient, message))) {
+            enqueued.incrementAndGet();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    private static boolean tooLong(String name) {
+        return name.length() > HistoryPartition.MAX_NAME_BYTES / 3
+                && name.getBytes(StandardCharsets.UTF_8).length > HistoryPartition.MAX_NAME_BYTES;
+    }
+
+    // HISTORY: a conversa entre user e other, da mais recente para a mais antiga
+    List<HistoryPartition.Record> conversation(String user, String other, int limit, Before before) throws IOException {
+        String pair = conversationKey(user, other);
+        long key = hash(pair);
+        return query(partition -> partition.conversation(key),
+                record -> conversationKey(record.sender, record.recipient).equals(pair), limit, before);
+    }
+
+    // SEARCH: mensagens enviadas ou recebidas por user com todos os termos do texto pesquisado
+    List<HistoryPartition.Record> search(String user, String text, int limit, Before before) throws IOException {
+        Set<String> required = terms(text);
+        if (required.isEmpty()) {
+            return List.of();
+        }
+        long key = hash(termKey(user, required.iterator().next()));
+        return query(partition -> partition.term(key),
+                record -> (record.sender.equals(user) || record.recipient.equals(user))
+                        && terms(record.message).containsAll(required), limit, before);
+    }
+
+    private List<HistoryPartition.Record> query(Function<HistoryPartition, int[]> lookup,
+                                                Predicate<HistoryPartition.Record> matches,
+                                                int limit, Before before) throws IOException {
+        awaitWritten();
+        List<HistoryPartition> candidates = new ArrayList<>();
+        HistoryPartition current = null;
+        int[] activePostings = null;
+        lock.lock();
+        try {
+            for (HistoryPartition partition : partitions.descendingMap().values()) {
+                if (partition.id > HistoryPartition.id(before.id) || partition.firstTimestamp >= before.timestamp
+                        || partition.records == 0) {
+                    continue;
+                }
+                if (partition == active) {
+                    current = partition;
+                    activePostings = lookup.apply(partition);
+                    partition.ensureMapped();
+                }
+                candidates.add(partition);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // A leitura dos índices selados e das mensagens acontece fora do lock
+        List<HistoryPartition.Record> found = new ArrayList<>();
+        for (HistoryPartition partition : candidates) {
+            int[] offsets = partition == current ? activePostings : lookup.apply(partition);
+            int end = offsets.length;
+            if (partition.id == HistoryPartition.id(before.id)) {
+                int index = Arrays.binarySearch(offsets, HistoryPartition.offset(before.id));
+                end = index >= 0 ? index : -index - 1;
+            }
+            if (partition.lastTimestamp >= before.timestamp) {
+                end = firstAtOrAfter(partition, offsets, end, before.timestamp);
+            }
+            for (int i = end - 1; i >= 0 && found.size() < limit; i--) {
+                HistoryPartition.Record record = partition.read(offsets[i]);
+                if (matches.test(record)) {
+                    found.add(record);
+                }
+            }
+            if (found.size() >= limit) {
+                break;
+            }
+        }
+        return found;
+    }
+
+    // Os timestamps crescem dentro de uma partição (ver write()), então a busca binária vale
+    private static int firstAtOrAfter(HistoryPartition partition, int[] offsets, int end, long timestamp) throws IOException {
+        int low = 0;
+        int high = end;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (partition.timestampAt(offsets[middle]) < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Espera a gravação do que já estava na fila quando a consulta chegou
+    private void awaitWritten() {
+        long target = enqueued.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_WAIT_MILLIS);
+        writtenLock.lock();
+        try {
+            long remaining;
+            while (written < target && (remaining = deadline - System.nanoTime()) > 0) {
+                writtenChanged.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            writtenLock.unlock();
+        }
+    }
+
+    private void write() {
+        List<Pending> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, 1_023);
+                for (Pending pending : batch) {
+                    // Só esta thread grava: um relógio que volta não desordena a partição
+                    pending.timestamp = Math.max(pending.timestamp, lastTimestamp);
+                    lastTimestamp = pending.timestamp;
+                    pending.record = HistoryPartition.encode(pending.timestamp, pending.sender, pending.recipient, pending.message);
+                    pending.terms = terms(pending.message);
+                }
+                lock.lock();
+                try {
+                    for (Pending pending : batch) {
+                        append(pending);
+                    }
+                    active.flush();
+                } catch (IOException e) {
+                    Log.error(Log.Category.STORAGE, "Falha ao gravar o histórico de mensagens", e);
+                } finally {
+                    lock.unlock();
+                }
+                writtenLock.lock();
+                try {
+                    written += batch.size();
+                    writtenChanged.signalAll();
+                } finally {
+                    writtenLock.unlock();
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // close()
+        }
+    }
+
+    // Chamado com o lock
+    private void append(Pending pending) throws IOException {
+        LocalDate day = day(pending.timestamp);
+        if (active.size() >= PARTITION_BYTES || (activeDay != null && !day.equals(activeDay))) {
+            active.seal();
+            rollPartition(active.id + 1);
+        }
+        active.append(pending.record, pending.timestamp, pending.sender, pending.recipient, pending.terms);
+        activeDay = day;
+    }
+
+    // Chamado com o lock
+    private void rollPartition(long id) throws IOException {
+        active = HistoryPartition.open(dir, id);
+        activeDay = null;
+        partitions.put(id, active);
+    }
+
+    // Apaga as partições seladas cujas mensagens já passaram da retenção
+    private void maintain() {
+        long cutoff = System.currentTimeMillis() - retentionMillis;
+        lock.lock();
+        try {
+            Iterator<HistoryPartition> iterator = partitions.values().iterator();
+            while (iterator.hasNext()) {
+                HistoryPartition partition = iterator.next();
+                if (partition == active || partition.lastTimestamp >= cutoff) {
+                    break;
+                }
+                partition.delete();
+                iterator.remove();
+                Log.info(Log.Category.STORAGE, "Histórico: partição " + partition.id + " apagada pela retenção");
+            }
+        } catch (IOException e) {
+            Log.error(Log.Category.STORAGE, "Falha ao apagar partições antigas do histórico", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long records() {
+        lock.lock();
+        try {
+            long total = 0;
+            for (HistoryPartition partition : partitions.values()) {
+                total += partition.records;
+            }
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long bytes() {
+        lock.lock();
+        try {
+            long total = 0;
+            for (HistoryPartition partition : partitions.values()) {
+                total += partition.size();
+            }
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int partitionCount() {
+        lock.lock();
+        try {
+            return partitions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    // Grava o que ainda está na fila; a partição ativa é indexada de novo na próxima abertura
+    @Override
+    public void close() throws IOException {
+        background.shutdownNow();
+        awaitWritten();
+        writer.interrupt();
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            for (HistoryPartition partition : partitions.values()) {
+                partition.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    static String conversationKey(String user, String other) {
+        return user.compareTo(other) <= 0 ? user + " " + other : other + " " + user;
+    }
+
+    static String termKey(String user, String term) {
+        return user + " " + term;
+    }
+
+    // Chave dos índices: FNV-1a de 64 bits com a mistura final do MurmurHash3; nunca 0, que marca posição vazia
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash != 0 ? hash : 1;
+    }
+
+    // Palavras em minúsculas e sem acentos, sem repetição: "Sessão às 10h" -> sessao, as, 10h
+    static Set<String> terms(String text) {
+        String normalized = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= normalized.length(); i++) {
+            char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                term.append(c);
+            } else {
+                if (term.length() >= MIN_TERM_LENGTH && term.length() <= MAX_TERM_LENGTH) {
+                    terms.add(term.toString());
+                }
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    private static LocalDate day(long timestamp) {
+        return LocalDate.ofInstant(Instant.ofEpochMilli(timestamp), ZONE);
+    }
+}
@@ -0,0 +1,620 @@
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/*
+Servidor não bloqueante: as threads do ServerListener aceitam conexões e as distribuem entre um
+pequeno conjunto de event loops, cada um com seu próprio Selector.
+Os comandos são processados pela mesma ClientSession do modo thread por conexão. Só os que
+nunca bloqueiam (ClientSession.runsInline) rodam no event loop; os que podem esperar pelo disco
+(caixa offline, cadastro, histórico, arquivos) rodam em threads virtuais, e a conexão não é lida
+até o comando terminar, o que mantém a ordem das respostas.
+*/
+
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    // Limites de bytes na fila de saída para isWritable()/onWritable() e para parar de ler a conexão
+    private static final int OUTPUT_HIGH_WATERMARK = 256 * 1024;
+    private static final int OUTPUT_LOW_WATERMARK = 64 * 1024;
+    // Como no OutboundQueue: um cliente que deixa acumular esse múltiplo do limite sem ler é desconectado
+    private static final int REPLY_LIMIT_FACTOR = 4;
+    private static final int MAX_GATHER_BUFFERS = 64;
+    private static final ExecutorService COMMAND_WORKERS =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("nio-command-", 0).factory());
+
+    private final ServerConfig config;
+    private final EventLoop[] loops;
+
+    NioServer(ServerConfig config) {
+        this.config = config;
+        this.loops = new EventLoop[config.ioThreads];
+    }
+
+    void run() throws IOException {
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+
+        ServerListener listener = new ServerListener(config);
+        listener.open();
+        System.out.println("Servidor iniciado (modo nio, " + loops.length + " threads de I/O, " + listener.describe() + ")...");
+
+        AtomicInteger next = new AtomicInteger();
+        listener.run(channel -> loops[Math.floorMod(next.getAndIncrement(), loops.length)].register(channel));
+    }
+
+    private class EventLoop extends Thread {
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final ByteBuffer[] gatherBuffers = new ByteBuffer[MAX_GATHER_BUFFERS];
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pendingFlushes = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pendingResumes = new ConcurrentLinkedQueue<>();
+        private final Queue<NioConnection> pendingCompletions = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int index) throws IOException {
+            super("nio-loop-" + index);
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        void requestFlush(NioConnection connection) {
+            pendingFlushes.add(connection);
+            selector.wakeup();
+        }
+
+        void requestResume(NioConnection connection) {
+            pendingResumes.add(connection);
+            selector.wakeup();
+        }
+
+        void requestCompletion(NioConnection connection) {
+            pendingCompletions.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerPendingChannels();
+                    flushPendingConnections();
+                    completePendingCommands();
+                    resumePendingConnections();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.closeNow();
+                            continue;
+                        }
+                        if (key.isReadable()) {
+                            connection.read(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.error(Log.Category.CONNECTION, "Erro no event loop", e);
+                }
+            }
+        }
+
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    NioConnection connection = new NioConnection(this, channel, key, config.outboundQueueBytes);
+                    key.attach(connection);
+                    connection.session.startIdleCheck();
+                } catch (IOException e) {
+                    Log.error(Log.Category.CONNECTION, "Erro ao registrar a conexão", e);
+                    closeQuietly(channel);
+                }
+            }
+        }
+
+        private void flushPendingConnections() {
+            NioConnection connection;
+            while ((connection = pendingFlushes.poll()) != null) {
+                connection.flush();
+            }
+        }
+
+        private void completePendingCommands() {
+            NioConnection connection;
+            while ((connection = pendingCompletions.poll()) != null) {
+                connection.commandFinished();
+            }
+        }
+
+        private void resumePendingConnections() {
+            NioConnection connection;
+            while ((connection = pendingResumes.poll()) != null) {
+                connection.resumeReading();
+            }
+        }
+    }
+
+    private static class NioConnection implements ChatServer.Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final ChatServer.ClientSession session;
+        private final Queue<ByteBuffer> outQueue = new ConcurrentLinkedQueue<>();
+        // Entregas (offer e sendDelivery) ainda em outQueue, na mesma ordem; entram aqui antes de entrar em outQueue
+        private final Queue<ByteBuffer> deliveries = new ConcurrentLinkedQueue<>();
+        private final ReentrantLock deliveryLock = new ReentrantLock();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final AtomicReference<Runnable> writableTask = new AtomicReference<>();
+        // awaitWritable(): quem espera marca waitingWritable, e o event loop só pega o lock para acordá-lo
+        private final ReentrantLock writableLock = new ReentrantLock();
+        private final Condition writable = writableLock.newCondition();
+        private volatile boolean waitingWritable;
+        private final long outboundLimit;
+        private final long highWatermark;
+        private final long lowWatermark;
+
+        // Bytes recebidos que ainda não formam uma linha (ou um quadro, no protocolo binário) completa
+        private byte[] lineBuffer = new byte[256];
+        private int lineLength;
+        private boolean negotiated;  // O primeiro byte já decidiu o protocolo
+        private boolean binary;
+        private boolean prefaceRead;
+
+        private volatile boolean closeRequested;
+        private volatile boolean abortRequested;
+        private boolean closed;
+        private boolean readPaused;  // OP_READ retirado enquanto a saída está acima de highWatermark
+        private ByteBuffer held;  // Comandos de texto já lidos do socket, à espera de a leitura ser retomada
+        private boolean busy;  // Um comando está rodando em COMMAND_WORKERS
+
+        NioConnection(EventLoop loop, SocketChannel channel, SelectionKey key, long outboundLimit) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+            this.outboundLimit = outboundLimit;
+            // Com uma fila de saída pequena, os limites acompanham o dela para o backlog offline não estourá-la
+            this.highWatermark = Math.min(OUTPUT_HIGH_WATERMARK, outboundLimit / 2);
+            this.lowWatermark = Math.min(OUTPUT_LOW_WATERMARK, highWatermark / 4);
+            this.session = new ChatServer.ClientSession(this);
+        }
+
+        // O event loop não pode bloquear esperando espaço: acima de highWatermark ele para de ler os comandos
+        // da conexão, e acima de REPLY_LIMIT_FACTOR vezes o limite a conexão é derrubada
+        @Override
+        public boolean send(byte[] data) {
+            if (closeRequested || abortRequested) {
+                return false;
+            }
+            enqueue(ByteBuffer.wrap(data));
+            return !overflowed();
+        }
+
+        @Override
+        public boolean offer(byte[] data) {
+            if (closeRequested || abortRequested || pendingBytes.get() >= outboundLimit) {
+                return false;
+            }
+            enqueueDelivery(ByteBuffer.wrap(data));
+            return true;
+        }
+
+        @Override
+        public boolean sendDelivery(byte[] data) {
+            if (closeRequested || abortRequested) {
+                return false;
+            }
+            enqueueDelivery(ByteBuffer.wrap(data));
+            return !overflowed();
+        }
+
+        private boolean overflowed() {
+            if (pendingBytes.get() <= outboundLimit * REPLY_LIMIT_FACTOR) {
+                return false;
+            }
+            Log.warn(Log.Category.CONNECTION, "Fila de saída acima de " + outboundLimit * REPLY_LIMIT_FACTOR
+                    + " bytes: desconectando o cliente, que não está lendo as respostas.");
+            abort();
+            return true;
+        }
+
+        // Pode ser chamado de qualquer thread; a conexão é fechada depois de enviar o que estiver na fila
+        @Override
+        public void close() {
+            closeRequested = true;
+            signalWritable();
+            scheduleFlush();
+        }
+
+        @Override
+        public void abort() {
+            abortRequested = true;
+            signalWritable();
+            scheduleFlush();
+        }
+
+        // O event loop fecha a conexão em seguida; uma entrega que ele esteja escrevendo agora pode chegar duas vezes
+        @Override
+        public List<byte[]> abortUnsent() {
+            abortRequested = true;
+            List<byte[]> unsent = new ArrayList<>();
+            for (ByteBuffer data : deliveries) {
+                unsent.add(data.array());
+            }
+            scheduleFlush();
+            return unsent;
+        }
+
+        @Override
+        public long pendingBytes() {
+            return pendingBytes.get();
+        }
+
+        @Override
+        public boolean isWritable() {
+            return pendingBytes.get() < highWatermark;
+        }
+
+        @Override
+        public void onWritable(Runnable task) {
+            writableTask.set(task);
+            loop.requestFlush(this);
+        }
+
+        @Override
+        public boolean awaitWritable() {
+            writableLock.lock();
+            try {
+                waitingWritable = true;
+                while (pendingBytes.get() >= highWatermark && !closeRequested && !abortRequested && channel.isOpen()) {
+                    writable.await();
+                }
+                return !closeRequested && !abortRequested && channel.isOpen();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                waitingWritable = false;
+                writableLock.unlock();
+            }
+        }
+
+        private void signalWritable() {
+            if (waitingWritable) {
+                writableLock.lock();
+                try {
+                    writable.signalAll();
+                } finally {
+                    writableLock.unlock();
+                }
+            }
+        }
+
+        void read(ByteBuffer buffer) {
+            if (readPaused || busy) {
+                return;  // Pausada nesta mesma volta do event loop
+            }
+            int count;
+            do {
+                buffer.clear();
+                try {
+                    count = channel.read(buffer);
+                } catch (IOException e) {
+                    Log.debug(Log.Category.CONNECTION, "Socket fechado: " + e.getMessage());
+                    closeNow();
+                    return;
+                }
+                if (count < 0) {
+                    closeNow();
+                    return;
+                }
+                buffer.flip();
+                if (!negotiated && buffer.hasRemaining()) {
+                    negotiated = true;
+                    binary = buffer.get(buffer.position()) == WireProtocol.PREFACE[0];
+                }
+                if (!(binary ? splitFrames(buffer) : splitLines(buffer))) {
+                    return;
+                }
+            } while (count == buffer.capacity() && !closed && !readPaused);
+        }
+
+        // Retorna false se a conexão deixou de ser lida
+        private boolean splitLines(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == '\n') {
+                    int end = lineLength > 0 && lineBuffer[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                    String command = new String(lineBuffer, 0, end, StandardCharsets.UTF_8);
+                    lineLength = 0;
+                    if (!ChatServer.ClientSession.runsInline(command)) {
+                        execute(() -> session.handleCommand(command));
+                    } else if (!session.handleCommand(command)) {
+                        close();
+                        return false;
+                    }
+                    if (closeRequested) {
+                        return false;
+                    }
+                    if (readPaused || busy) {
+                        held = ByteBuffer.allocate(buffer.remaining()).put(buffer).flip();
+                        return false;
+                    }
+                    continue;
+                }
+                if (lineLength == MAX_LINE_LENGTH) {
+                    send(ChatServer.encodeLine("Comando muito longo."));
+                    close();
+                    return false;
+                }
+                if (lineLength == lineBuffer.length) {
+                    lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineBuffer.length * 2, MAX_LINE_LENGTH));
+                }
+                lineBuffer[lineLength++] = b;
+            }
+            return true;
+        }
+
+        // Acumula os bytes recebidos e processa cada quadro completo; retorna false se a conexão deixou de ser lida
+        private boolean splitFrames(ByteBuffer buffer) {
+            int count = buffer.remaining();
+            if (lineLength + count > lineBuffer.length) {
+                lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineBuffer.length * 2, lineLength + count));
+            }
+            buffer.get(lineBuffer, lineLength, count);
+            lineLength += count;
+            int position = 0;
+            if (!prefaceRead) {
+                if (lineLength < WireProtocol.PREFACE.length) {
+                    return true;
+                }
+                if (!WireProtocol.isPreface(lineBuffer, 0)) {
+                    closeNow();
+                    return false;
+                }
+                prefaceRead = true;
+                position = WireProtocol.PREFACE.length;
+                session.startBinary();
+            }
+            while (lineLength - position >= 4) {
+                int length = ByteBuffer.wrap(lineBuffer, position, 4).getInt();
+                if (!WireProtocol.isValidLength(length)) {
+                    Log.warn(Log.Category.CONNECTION, "Quadro com tamanho inválido: " + length);
+                    close();
+                    return false;
+                }
+                if (lineLength - position - 4 < length) {
+                    break;
+                }
+                WireProtocol.Frame frame = WireProtocol.decode(lineBuffer, position + 4, length);
+                position += 4 + length;
+                if (!ChatServer.ClientSession.runsInline(frame.payload)) {
+                    execute(() -> session.handleFrame(frame));
+                } else if (!session.handleFrame(frame)) {
+                    close();
+                    return false;
+                }
+                if (closeRequested) {
+                    return false;
+                }
+                if (readPaused || busy) {
+                    break;  // Os quadros restantes ficam em lineBuffer até resumeReading()
+                }
+            }
+            System.arraycopy(lineBuffer, position, lineBuffer, 0, lineLength - position);
+            lineLength -= position;
+            return !readPaused && !busy;
+        }
+
+        // Roda fora do event loop um comando que pode bloquear; a conexão só volta a ser lida em commandFinished()
+        private void execute(BooleanSupplier command) {
+            busy = true;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            COMMAND_WORKERS.execute(() -> {
+                boolean keepOpen = false;
+                try {
+                    keepOpen = command.getAsBoolean();
+                } catch (RuntimeException e) {
+                    Log.error(Log.Category.CONNECTION, "Erro ao processar o comando", e);
+                } finally {
+                    if (!keepOpen) {
+                        close();
+                    }
+                    loop.requestCompletion(this);
+                }
+            });
+        }
+
+        // Executado no event loop depois de um comando de COMMAND_WORKERS
+        void commandFinished() {
+            busy = false;
+            if (closed) {
+                endSession();  // Adiado por closeNow() enquanto o comando rodava
+                return;
+            }
+            resumeReading();
+        }
+
+        // Executado no event loop quando a saída cai abaixo de lowWatermark ou um comando termina: processa os
+        // comandos que ficaram guardados e só então volta a ler o socket
+        void resumeReading() {
+            if (closed || closeRequested || readPaused || busy) {
+                return;
+            }
+            if (binary) {
+                if (!splitFrames(ByteBuffer.allocate(0))) {
+                    return;
+                }
+            } else if (held != null) {
+                ByteBuffer data = held;
+                held = null;
+                if (!splitLines(data)) {
+                    return;
+                }
+            }
+            try {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            } catch (CancelledKeyException e) {
+                closeNow();
+            }
+        }
+
+        private void enqueue(ByteBuffer data) {
+            pendingBytes.addAndGet(data.remaining());
+            outQueue.add(data);
+            scheduleFlush();
+        }
+
+        // Com o lock, as entregas ficam em deliveries na mesma ordem de outQueue
+        private void enqueueDelivery(ByteBuffer data) {
+            deliveryLock.lock();
+            try {
+                deliveries.add(data);
+                pendingBytes.addAndGet(data.remaining());
+                outQueue.add(data);
+            } finally {
+                deliveryLock.unlock();
+            }
+            scheduleFlush();
+        }
+
+        private void scheduleFlush() {
+            if (Thread.currentThread() == loop) {
+                flush();
+            } else {
+                loop.requestFlush(this);
+            }
+        }
+
+        // Executado apenas na thread do event loop; junta os buffers pendentes num write com gather
+        void flush() {
+            if (closed) {
+                return;
+            }
+            if (abortRequested) {
+                closeNow();
+                return;
+            }
+            ByteBuffer[] batch = loop.gatherBuffers;
+            try {
+                while (true) {
+                    int count = 0;
+                    for (ByteBuffer data : outQueue) {
+                        batch[count++] = data;
+                        if (count == batch.length) {
+                            break;
+                        }
+                    }
+                    if (count == 0) {
+                        break;
+                    }
+                    pendingBytes.addAndGet(-channel.write(batch, 0, count));
+                    int written = 0;
+                    while (written < count && !batch[written].hasRemaining()) {
+                        if (deliveries.peek() == outQueue.poll()) {
+                            deliveries.poll();
+                        }
+                        written++;
+                    }
+                    Arrays.fill(batch, 0, count, null);
+                    if (written < count) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        updateReadInterest();
+                        runWritableTask(lowWatermark);
+                        return;
+                    }
+                }
+                if (closeRequested) {
+                    closeNow();
+                } else {
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                    updateReadInterest();
+                    runWritableTask(highWatermark);
+                }
+            } catch (IOException | CancelledKeyException e) {
+                closeNow();
+            }
+        }
+
+        // Um cliente que envia comandos sem ler as respostas deixa de ser lido, mesmo no meio do que já chegou,
+        // até a saída cair abaixo de lowWatermark
+        private void updateReadInterest() {
+            long pending = pendingBytes.get();
+            if (!readPaused && pending > highWatermark) {
+                readPaused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            } else if (readPaused && pending < lowWatermark) {
+                readPaused = false;
+                loop.requestResume(this);
+            }
+        }
+
+        private void runWritableTask(long threshold) {
+            if (pendingBytes.get() < highWatermark) {
+                signalWritable();
+            }
+            if (pendingBytes.get() < threshold) {
+                Runnable task = writableTask.getAndSet(null);
+                if (task != null) {
+                    task.run();
+                }
+            }
+        }
+
+        void closeNow() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            closeQuietly(channel);
+            outQueue.clear();
+            writableTask.set(null);
+            signalWritable();
+            // Com um comando em andamento, a sessão é encerrada quando ele terminar, para não correr com ele
+            if (!busy) {
+                endSession();
+            }
+        }
+
+        // closed() ainda pega as entregas não escritas com abortUnsent()
+        private void endSession() {
+            session.closed();
+            deliveries.clear();
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignorado: a conexão já está sendo descartada
+        }
+    }
+}
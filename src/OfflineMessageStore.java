@@ -0,0 +1,698 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+Caixas de mensagens offline em disco, uma por destinatário.
+
+As mensagens ficam em segmentos somente de acréscimo (ver MailboxSegment), lidos por
+mapeamento em memória. No heap cada caixa guarda apenas a posição (segmento, offset)
+de cada mensagem pendente e as últimas HOT_TAIL mensagens já decodificadas.
+A entrega é feita em páginas: nextPage() lê sem remover e ack() confirma até uma
+sequência, gravando "A <usuário> <seq>" em acks.log. Como a confirmação é um
+máximo, reaplicar o log mais de uma vez não muda o resultado.
+
+Segmentos sem mensagens pendentes são apagados; segmentos quase vazios têm as
+mensagens restantes copiadas para o segmento ativo. Mensagens acima da cota por
+usuário são recusadas e as mais antigas que o TTL são descartadas.
+
+Arquivos em <dir>:
+  segment-N.dat   mensagens
+  acks.log        confirmações desde o último acks.snapshot
+  acks.snapshot   última sequência confirmada de cada usuário
+*/
+
+public class OfflineMessageStore implements Closeable {
+    enum SyncPolicy { ALWAYS, INTERVAL, NONE }
+
+    static final class Page {
+        final List<String> messages;
+        final long lastSeq;
+
+        Page(List<String> messages, long lastSeq) {
+            this.messages = messages;
+            this.lastSeq = lastSeq;
+        }
+
+        boolean isEmpty() {
+            return messages.isEmpty();
+        }
+    }
+
+    private static final int HOT_TAIL = 8;
+    private static final double RELOCATE_BELOW_LIVE_RATIO = 0.25;
+    private static final long ACKS_COMPACT_BYTES = 1024 * 1024;
+    private static final Pattern SEGMENT_FILE = Pattern.compile("segment-(\\d+)\\.dat");
+    private static final Pattern LEGACY_FILE = Pattern.compile("offline_messages\\.(\\d+)\\.(log|snapshot)");
+
+    private final Path dir;
+    private final Path legacyDir;
+    private final String legacyFileName;
+    private final SyncPolicy syncPolicy;
+    private final long segmentBytes;
+    private final int quota;
+    private final long ttlMillis;
+    private final ScheduledExecutorService background;
+
+    // Protege as caixas, os segmentos e o acks.log
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Mailbox> mailboxes = new HashMap<>();
+    private final Map<Long, MailboxSegment> segments = new HashMap<>();
+    private MailboxSegment active;
+    private FileChannel acksLog;
+    private long appendedSeq;
+    private long totalPending;
+
+    // Group commit: quem chega enquanto um fsync está em andamento é coberto pelo próximo
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final AtomicLong syncedSeq = new AtomicLong();
+    final LatencyHistogram syncLatency = new LatencyHistogram();  // Duração de cada fsync (segmento e acks.log)
+
+    OfflineMessageStore(Path dir, Path legacyDir, String legacyFileName, SyncPolicy syncPolicy, long syncIntervalMs,
+                        long segmentBytes, int quota, long ttlMillis) {
+        this.dir = dir;
+        this.legacyDir = legacyDir;
+        this.legacyFileName = legacyFileName;
+        this.syncPolicy = syncPolicy;
+        this.segmentBytes = segmentBytes;
+        this.quota = quota;
+        this.ttlMillis = ttlMillis;
+        this.background = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "offline-mailbox");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (syncPolicy == SyncPolicy.INTERVAL) {
+            background.scheduleWithFixedDelay(this::syncQuietly, syncIntervalMs, syncIntervalMs, TimeUnit.MILLISECONDS);
+        }
+        background.scheduleWithFixedDelay(this::maintain, 10, 10, TimeUnit.SECONDS);
+    }
+
+    // Reconstrói o índice a partir dos segmentos e confirmações; importa os formatos antigos se não houver segmentos
+    void open() throws IOException {
+        Files.createDirectories(dir);
+        lock.lock();
+        try {
+            Map<String, Long> acked = readAcks();
+            TreeMap<Long, Path> segmentFiles = new TreeMap<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "segment-*.dat")) {
+                for (Path file : files) {
+                    Matcher matcher = SEGMENT_FILE.matcher(file.getFileName().toString());
+                    if (matcher.matches()) {
+                        segmentFiles.put(Long.parseLong(matcher.group(1)), file);
+                    }
+                }
+            }
+
+            Map<String, List<long[]>> found = new HashMap<>();  // usuário -> pares {seq, posição}
+            Map<String, Long> lastSeqs = new HashMap<>(acked);
+            for (long id : segmentFiles.keySet()) {
+                MailboxSegment segment = MailboxSegment.open(dir, id);
+                segment.scan((offset, seq, timestamp, username) -> {
+                    lastSeqs.merge(username, seq, Math::max);
+                    if (seq > acked.getOrDefault(username, 0L)) {
+                        found.computeIfAbsent(username, k -> new ArrayList<>()).add(new long[]{seq, position(id, offset)});
+                    }
+                });
+                segment.sealed = true;
+                segments.put(id, segment);
+            }
+
+            for (Map.Entry<String, Long> entry : lastSeqs.entrySet()) {
+                Mailbox mailbox = mailbox(entry.getKey());
+                mailbox.lastSeq = entry.getValue();
+                mailbox.ackedSeq = acked.getOrDefault(entry.getKey(), 0L);
+            }
+            for (Map.Entry<String, List<long[]>> entry : found.entrySet()) {
+                Mailbox mailbox = mailbox(entry.getKey());
+                List<long[]> entries = entry.getValue();
+                entries.sort(Comparator.comparingLong(e -> e[0]));
+                long previousSeq = -1;
+                for (long[] e : entries) {
+                    if (e[0] == previousSeq) {
+                        continue;  // cópia deixada por uma realocação interrompida
+                    }
+                    previousSeq = e[0];
+                    mailbox.add(e[1]);
+                    segments.get(segmentId(e[1])).live++;
+                    totalPending++;
+                }
+            }
+
+            MailboxSegment last = segmentFiles.isEmpty() ? null : segments.get(segmentFiles.lastKey());
+            if (last != null && last.size() < segmentBytes) {
+                last.sealed = false;
+                active = last;
+            } else {
+                rollSegment();
+            }
+            acksLog = FileChannel.open(dir.resolve("acks.log"), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+            if (segmentFiles.isEmpty()) {
+                importLegacy();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Retorna false se a caixa do destinatário atingiu a cota; IllegalArgumentException com um nome
+    // acima de MailboxSegment.MAX_USER_BYTES
+    boolean enqueue(String username, String message) throws IOException {
+        long seq;
+        lock.lock();
+        try {
+            Mailbox mailbox = mailbox(username);
+            if (mailbox.size() >= quota) {
+                return false;
+            }
+            append(mailbox, username, message, System.currentTimeMillis());
+            seq = ++appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(seq);
+        return true;
+    }
+
+    // Lê até max mensagens pendentes, na ordem de chegada, sem removê-las
+    Page nextPage(String username, int max) throws IOException {
+        long[] positions;
+        MailboxSegment[] pageSegments;
+        String[] hot;
+        long[] hotSeqs;
+        lock.lock();
+        try {
+            Mailbox mailbox = mailboxes.get(username);
+            int count = mailbox == null ? 0 : Math.min(max, mailbox.size());
+            if (count == 0) {
+                return new Page(Collections.emptyList(), 0);
+            }
+            positions = new long[count];
+            pageSegments = new MailboxSegment[count];
+            hot = new String[count];
+            hotSeqs = new long[count];
+            for (int i = 0; i < count; i++) {
+                positions[i] = mailbox.get(i);
+                int hotIndex = mailbox.hotIndexOf(positions[i]);
+                if (hotIndex >= 0) {
+                    hot[i] = mailbox.hotMessages[hotIndex];
+                    hotSeqs[i] = mailbox.hotSeqs[hotIndex];
+                } else {
+                    pageSegments[i] = segments.get(segmentId(positions[i]));
+                    pageSegments[i].ensureMapped();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // A leitura dos segmentos mapeados acontece fora do lock
+        List<String> messages = new ArrayList<>(positions.length);
+        long lastSeq = 0;
+        for (int i = 0; i < positions.length; i++) {
+            if (hot[i] != null) {
+                messages.add(hot[i]);
+                lastSeq = hotSeqs[i];
+            } else {
+                long offset = offset(positions[i]);
+                messages.add(pageSegments[i].messageAt(offset));
+                lastSeq = pageSegments[i].seqAt(offset);
+            }
+        }
+        return new Page(messages, lastSeq);
+    }
+
+    // Confirma a entrega de todas as mensagens do usuário até seq
+    void ack(String username, long seq) throws IOException {
+        long durableSeq;
+        lock.lock();
+        try {
+            Mailbox mailbox = mailboxes.get(username);
+            if (mailbox == null || seq <= mailbox.ackedSeq) {
+                return;
+            }
+            while (mailbox.size() > 0 && seqOf(mailbox, mailbox.get(0)) <= seq) {
+                removeHead(mailbox);
+            }
+            mailbox.ackedSeq = seq;
+            writeAck(username, seq);
+            durableSeq = ++appendedSeq;
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(durableSeq);
+    }
+
+    int pendingCount(String username) {
+        lock.lock();
+        try {
+            Mailbox mailbox = mailboxes.get(username);
+            return mailbox == null ? 0 : mailbox.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long totalPending() {
+        lock.lock();
+        try {
+            return totalPending;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // As maiores caixas, para as métricas
+    Map<String, Long> largestMailboxes(int limit) {
+        PriorityQueue<Map.Entry<String, Long>> largest = new PriorityQueue<>(Map.Entry.comparingByValue());
+        lock.lock();
+        try {
+            for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+                int size = entry.getValue().size();
+                if (size > 0 && (largest.size() < limit || size > largest.peek().getValue())) {
+                    largest.add(Map.entry(entry.getKey(), (long) size));
+                    if (largest.size() > limit) {
+                        largest.poll();
+                    }
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        Map<String, Long> result = new HashMap<>();
+        for (Map.Entry<String, Long> entry : largest) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    // Descarta mensagens expiradas, libera segmentos e compacta o acks.log
+    void compact() throws IOException {
+        lock.lock();
+        try {
+            evictExpired();
+            for (MailboxSegment segment : new ArrayList<>(segments.values())) {
+                if (!segment.sealed) {
+                    continue;
+                }
+                if (segment.live > 0 && segment.live < segment.records * RELOCATE_BELOW_LIVE_RATIO) {
+                    relocate(segment);
+                }
+                if (segment.live == 0) {
+                    segments.remove(segment.id);
+                    segment.delete();
+                }
+            }
+            if (acksLog.size() >= ACKS_COMPACT_BYTES) {
+                compactAcks();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        background.shutdownNow();
+        try {
+            background.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        compact();
+        syncLock.lock();
+        lock.lock();
+        try {
+            active.force();
+            acksLog.force(false);
+            acksLog.close();
+            for (MailboxSegment segment : segments.values()) {
+                segment.close();
+            }
+        } finally {
+            lock.unlock();
+            syncLock.unlock();
+        }
+    }
+
+    private void append(Mailbox mailbox, String username, String message, long timestamp) throws IOException {
+        long seq = mailbox.lastSeq + 1;
+        long offset = active.append(seq, timestamp, username, message);
+        mailbox.lastSeq = seq;
+        long position = position(active.id, offset);
+        mailbox.add(position);
+        mailbox.remember(position, seq, message);
+        totalPending++;
+        if (active.size() >= segmentBytes) {
+            rollSegment();
+        }
+    }
+
+    private void removeHead(Mailbox mailbox) {
+        long position = mailbox.removeFirst();
+        MailboxSegment segment = segments.get(segmentId(position));
+        if (segment != null) {
+            segment.live--;
+        }
+        totalPending--;
+    }
+
+    private long seqOf(Mailbox mailbox, long position) throws IOException {
+        int hotIndex = mailbox.hotIndexOf(position);
+        if (hotIndex >= 0) {
+            return mailbox.hotSeqs[hotIndex];
+        }
+        return segments.get(segmentId(position)).seqAt(offset(position));
+    }
+
+    private void evictExpired() throws IOException {
+        long cutoff = System.currentTimeMillis() - ttlMillis;
+        for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+            Mailbox mailbox = entry.getValue();
+            long evictedSeq = 0;
+            while (mailbox.size() > 0) {
+                long position = mailbox.get(0);
+                MailboxSegment segment = segments.get(segmentId(position));
+                if (segment.timestampAt(offset(position)) >= cutoff) {
+                    break;
+                }
+                evictedSeq = segment.seqAt(offset(position));
+                removeHead(mailbox);
+            }
+            if (evictedSeq > 0) {
+                mailbox.ackedSeq = Math.max(mailbox.ackedSeq, evictedSeq);
+                writeAck(entry.getKey(), mailbox.ackedSeq);
+            }
+        }
+    }
+
+    // Copia as mensagens pendentes de um segmento para o ativo, preservando seq e timestamp
+    private void relocate(MailboxSegment segment) throws IOException {
+        for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+            Mailbox mailbox = entry.getValue();
+            for (int i = 0; i < mailbox.size(); i++) {
+                long position = mailbox.get(i);
+                if (segmentId(position) != segment.id) {
+                    continue;
+                }
+                long offset = offset(position);
+                MailboxSegment target = active;
+                long newOffset = target.append(segment.seqAt(offset), segment.timestampAt(offset), entry.getKey(), segment.messageAt(offset));
+                mailbox.set(i, position(target.id, newOffset));
+                mailbox.forget(position);
+                segment.live--;
+                if (target.size() >= segmentBytes) {
+                    rollSegment();
+                }
+            }
+        }
+        active.force();
+    }
+
+    private void rollSegment() throws IOException {
+        long id = 0;
+        if (active != null) {
+            active.force();
+            active.seal();
+            id = active.id + 1;
+        } else if (!segments.isEmpty()) {
+            id = Collections.max(segments.keySet()) + 1;
+        }
+        active = MailboxSegment.open(dir, id);
+        segments.put(id, active);
+    }
+
+    private void writeAck(String username, long seq) throws IOException {
+        ByteBuffer data = ByteBuffer.wrap(("A " + username + " " + seq + "\n").getBytes(StandardCharsets.UTF_8));
+        while (data.hasRemaining()) {
+            acksLog.write(data);
+        }
+    }
+
+    // Reescrever o snapshot antes de truncar o log é seguro: reaplicar confirmações não muda nada
+    private void compactAcks() throws IOException {
+        Path tmp = dir.resolve("acks.snapshot.tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             Writer writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+                if (entry.getValue().ackedSeq > 0) {
+                    writer.write(entry.getKey() + " " + entry.getValue().ackedSeq + "\n");
+                }
+            }
+            writer.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve("acks.snapshot"), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        acksLog.truncate(0);
+    }
+
+    private Map<String, Long> readAcks() throws IOException {
+        Map<String, Long> acked = new HashMap<>();
+        Path snapshot = dir.resolve("acks.snapshot");
+        if (Files.exists(snapshot)) {
+            for (String line : Files.readAllLines(snapshot, StandardCharsets.UTF_8)) {
+                String[] tokens = line.split(" ");
+                if (tokens.length == 2) {
+                    acked.merge(tokens[0], Long.parseLong(tokens[1]), Math::max);
+                }
+            }
+        }
+        Path log = dir.resolve("acks.log");
+        if (Files.exists(log)) {
+            for (String line : Files.readAllLines(log, StandardCharsets.UTF_8)) {
+                String[] tokens = line.split(" ");
+                if (tokens.length == 3 && tokens[0].equals("A")) {
+                    acked.merge(tokens[1], Long.parseLong(tokens[2]), Math::max);
+                }
+            }
+        }
+        return acked;
+    }
+
+    // Importa offline_messages.txt e os logs/snapshots do formato anterior, apagando-os depois
+    private void importLegacy() throws IOException {
+        Map<String, List<String>> legacy = new LinkedHashMap<>();
+        long snapshotGeneration = -1;
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        List<Path> legacyFiles = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(legacyDir, "offline_messages.*")) {
+            for (Path file : files) {
+                Matcher matcher = LEGACY_FILE.matcher(file.getFileName().toString());
+                if (!matcher.matches()) {
+                    continue;
+                }
+                legacyFiles.add(file);
+                long fileGeneration = Long.parseLong(matcher.group(1));
+                if (matcher.group(2).equals("log")) {
+                    logs.put(fileGeneration, file);
+                } else {
+                    snapshotGeneration = Math.max(snapshotGeneration, fileGeneration);
+                }
+            }
+        }
+        Path legacyFile = legacyDir.resolve(legacyFileName);
+        if (snapshotGeneration >= 0) {
+            readLegacySnapshot(legacyDir.resolve("offline_messages." + snapshotGeneration + ".snapshot"), legacy);
+        } else if (Files.exists(legacyFile)) {
+            readLegacySnapshot(legacyFile, legacy);
+        }
+        for (Path log : logs.tailMap(snapshotGeneration, false).values()) {
+            replayLegacyLog(log, legacy);
+        }
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, List<String>> entry : legacy.entrySet()) {
+            Mailbox mailbox = mailbox(entry.getKey());
+            for (String message : entry.getValue()) {
+                append(mailbox, entry.getKey(), message, now);
+            }
+        }
+        active.force();
+        for (Path file : legacyFiles) {
+            Files.deleteIfExists(file);
+        }
+        Files.deleteIfExists(legacyFile);
+    }
+
+    private static void readLegacySnapshot(Path file, Map<String, List<String>> legacy) throws IOException {
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] tokens = line.split(" ", 2);
+            if (tokens.length < 2) {
+                Log.warn(Log.Category.STORAGE, "Dados inválidos no arquivo: " + line);
+                continue;
+            }
+            legacy.computeIfAbsent(tokens[0], k -> new ArrayList<>()).add(tokens[1]);
+        }
+    }
+
+    // Uma última linha sem '\n' é uma escrita interrompida e é ignorada
+    private static void replayLegacyLog(Path file, Map<String, List<String>> legacy) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        int start = 0;
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] != '\n') {
+                continue;
+            }
+            String[] tokens = new String(data, start, i - start, StandardCharsets.UTF_8).split(" ", 3);
+            start = i + 1;
+            if (tokens.length < 3) {
+                continue;
+            }
+            if (tokens[0].equals("E")) {
+                legacy.computeIfAbsent(tokens[1], k -> new ArrayList<>()).add(tokens[2]);
+            } else if (tokens[0].equals("D")) {
+                List<String> messages = legacy.get(tokens[1]);
+                if (messages != null) {
+                    messages.subList(0, Math.min(Integer.parseInt(tokens[2]), messages.size())).clear();
+                }
+            }
+        }
+    }
+
+    private Mailbox mailbox(String username) {
+        return mailboxes.computeIfAbsent(username, k -> new Mailbox());
+    }
+
+    private void awaitDurable(long seq) throws IOException {
+        if (syncPolicy == SyncPolicy.ALWAYS && syncedSeq.get() < seq) {
+            sync();
+        }
+    }
+
+    private void sync() throws IOException {
+        syncLock.lock();
+        try {
+            long target;
+            MailboxSegment segment;
+            lock.lock();
+            try {
+                target = appendedSeq;
+                segment = active;
+            } finally {
+                lock.unlock();
+            }
+            if (syncedSeq.get() >= target) {
+                return;
+            }
+            long start = System.nanoTime();
+            segment.force();
+            acksLog.force(false);
+            syncLatency.record(System.nanoTime() - start);
+            syncedSeq.set(target);
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void syncQuietly() {
+        try {
+            sync();
+        } catch (IOException e) {
+            Log.error(Log.Category.STORAGE, "Falha no fsync das caixas offline", e);
+        }
+    }
+
+    private void maintain() {
+        try {
+            compact();
+        } catch (IOException e) {
+            Log.error(Log.Category.STORAGE, "Falha ao compactar as caixas offline", e);
+        }
+    }
+
+    private static long position(long segmentId, long offset) {
+        return (segmentId << 32) | offset;
+    }
+
+    private static long segmentId(long position) {
+        return position >>> 32;
+    }
+
+    private static long offset(long position) {
+        return position & 0xFFFFFFFFL;
+    }
+
+    // Índice de uma caixa: posições pendentes numa fila circular e as últimas mensagens em memória
+    private static final class Mailbox {
+        private long[] positions = new long[4];
+        private int head;
+        private int count;
+        long lastSeq;
+        long ackedSeq;
+
+        final long[] hotPositions = new long[HOT_TAIL];
+        final long[] hotSeqs = new long[HOT_TAIL];
+        final String[] hotMessages = new String[HOT_TAIL];
+        private int hotNext;
+
+        int size() {
+            return count;
+        }
+
+        long get(int i) {
+            return positions[(head + i) % positions.length];
+        }
+
+        void set(int i, long position) {
+            positions[(head + i) % positions.length] = position;
+        }
+
+        void add(long position) {
+            if (count == positions.length) {
+                long[] grown = new long[positions.length * 2];
+                for (int i = 0; i < count; i++) {
+                    grown[i] = get(i);
+                }
+                positions = grown;
+                head = 0;
+            }
+            positions[(head + count) % positions.length] = position;
+            count++;
+        }
+
+        long removeFirst() {
+            long position = positions[head];
+            forget(position);
+            head = (head + 1) % positions.length;
+            count--;
+            if (count == 0 && positions.length > 64) {
+                positions = new long[4];
+                head = 0;
+            }
+            return position;
+        }
+
+        void remember(long position, long seq, String message) {
+            hotPositions[hotNext] = position;
+            hotSeqs[hotNext] = seq;
+            hotMessages[hotNext] = message;
+            hotNext = (hotNext + 1) % HOT_TAIL;
+        }
+
+        void forget(long position) {
+            int index = hotIndexOf(position);
+            if (index >= 0) {
+                hotMessages[index] = null;
+            }
+        }
+
+        int hotIndexOf(long position) {
+            for (int i = 0; i < HOT_TAIL; i++) {
+                if (hotMessages[i] != null && hotPositions[i] == position) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
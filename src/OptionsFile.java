@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Arquivo de opções do servidor e do cliente (--config=<arquivo>): uma opção por linha, com o
+mesmo nome da linha de comando sem os dois traços. Linhas vazias e as que começam com # são
+ignoradas. Exemplo:
+  # Porta do chat aberta para a rede do campus
+  host=0.0.0.0
+  port=12345
+  backlog=4096
+*/
+
+final class OptionsFile {
+    private OptionsFile() {
+    }
+
+    // Troca cada --config=<arquivo> pelas opções do arquivo, antes das demais para que a linha de comando prevaleça
+    static List<String> expand(String[] args) {
+        List<String> fromFiles = new ArrayList<>();
+        List<String> fromArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--config=")) {
+                fromFiles.addAll(read(arg.substring("--config=".length())));
+            } else {
+                fromArgs.add(arg);
+            }
+        }
+        fromFiles.addAll(fromArgs);
+        return fromFiles;
+    }
+
+    private static List<String> read(String file) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Não foi possível ler " + file + ": " + e.getMessage());
+        }
+        List<String> options = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int eq = line.indexOf('=');
+            String name = eq < 0 ? "" : line.substring(0, eq).strip();
+            if (name.isEmpty() || name.equals("config")) {
+                throw new IllegalArgumentException(file + ", linha " + (i + 1) + ": opção inválida: " + line);
+            }
+            options.add("--" + name + "=" + line.substring(eq + 1).strip());
+        }
+        return options;
+    }
+}
@@ -0,0 +1,299 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Fila de saída de uma sessão com socket bloqueante. Quem escreve apenas enfileira;
+uma thread escritora dedicada junta o que estiver pendente num único write.
+Entregas de outras sessões usam offer(), que falha com a fila cheia. As respostas
+da própria sessão usam send(), que sempre enfileira: esperar por espaço aqui
+prenderia a thread portadora, já que o PrintWriter chama o flush dentro de um
+monitor. Um cliente que deixa acumular REPLY_LIMIT_FACTOR vezes o limite sem ler
+é desconectado. As entregas ainda não escritas podem ser recuperadas com abortUnsent(),
+para irem à caixa offline quando a conexão é dada como morta; as do write em andamento
+também voltam, e podem chegar duas vezes.
+*/
+
+class OutboundQueue implements Runnable {
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+    private static final long CLOSE_TIMEOUT_SECONDS = 5;
+    private static final int REPLY_LIMIT_FACTOR = 4;
+    private static final ScheduledExecutorService CLOSE_TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "outbound-close");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Socket socket;
+    private final OutputStream out;
+    private final long limitBytes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition drained = lock.newCondition();  // A escritora tirou dados da fila, ou ela foi fechada
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    // Entregas (offer e sendDelivery) ainda em pending, na mesma ordem
+    private final ArrayDeque<byte[]> deliveries = new ArrayDeque<>();
+    // Entregas do lote que a escritora está gravando no socket, já fora de pending
+    private final ArrayDeque<byte[]> writing = new ArrayDeque<>();
+    private long pendingBytes;
+    private boolean closing;
+    private boolean closed;
+    private Runnable drainedTask;
+
+    private byte[] batch = new byte[4096];
+
+    OutboundQueue(Socket socket, long limitBytes) throws IOException {
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+        this.limitBytes = limitBytes;
+    }
+
+    boolean offer(byte[] data) {
+        lock.lock();
+        try {
+            if (closing || closed || pendingBytes >= limitBytes) {
+                return false;
+            }
+            add(data);
+            deliveries.add(data);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Retorna false se a conexão já foi fechada
+    boolean send(byte[] data) {
+        return send(data, false);
+    }
+
+    // Como send(), mas a entrega é devolvida por abortUnsent() enquanto não for escrita
+    boolean sendDelivery(byte[] data) {
+        return send(data, true);
+    }
+
+    private boolean send(byte[] data, boolean delivery) {
+        boolean overflow;
+        lock.lock();
+        try {
+            if (closing || closed) {
+                return false;
+            }
+            add(data);
+            if (delivery) {
+                deliveries.add(data);
+            }
+            overflow = pendingBytes > limitBytes * REPLY_LIMIT_FACTOR;
+        } finally {
+            lock.unlock();
+        }
+        if (overflow) {
+            abort();
+            return false;
+        }
+        return true;
+    }
+
+    long pendingBytes() {
+        lock.lock();
+        try {
+            return pendingBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Espera a fila ficar abaixo de bytes; retorna false se a conexão foi fechada
+    boolean awaitBelow(long bytes) throws InterruptedException {
+        lock.lock();
+        try {
+            while (pendingBytes >= bytes && !closing && !closed) {
+                drained.await();
+            }
+            return !closing && !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Executa a tarefa na thread escritora quando a fila cair abaixo de um quarto do limite
+    void onDrained(Runnable task) {
+        lock.lock();
+        try {
+            drainedTask = task;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Fecha depois de enviar o que já está na fila, ou à força se o cliente não ler a tempo
+    void close() {
+        lock.lock();
+        try {
+            closing = true;
+            notEmpty.signal();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        CLOSE_TIMER.schedule(this::abort, CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    // Descarta o que está na fila e fecha o socket imediatamente
+    void abort() {
+        abortUnsent();
+    }
+
+    // Como abort(), devolvendo as entregas que ainda não foram escritas
+    List<byte[]> abortUnsent() {
+        List<byte[]> unsent;
+        lock.lock();
+        try {
+            closed = true;
+            unsent = new ArrayList<>(writing);
+            unsent.addAll(deliveries);
+            pending.clear();
+            deliveries.clear();
+            writing.clear();
+            pendingBytes = 0;
+            notEmpty.signal();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        closeSocket();
+        return unsent;
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignorado: a conexão está sendo descartada
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                int length = 0;
+                boolean hasDeliveries = false;
+                Runnable task = null;
+                lock.lock();
+                try {
+                    while (pending.isEmpty() && !closing && !closed && (drainedTask == null || pendingBytes >= limitBytes / 4)) {
+                        notEmpty.await();
+                    }
+                    if (closed || (closing && pending.isEmpty())) {
+                        break;
+                    }
+                    while (!pending.isEmpty() && (length == 0 || length + pending.peek().length <= MAX_BATCH_BYTES)) {
+                        byte[] data = pending.poll();
+                        if (deliveries.peek() == data) {
+                            writing.add(deliveries.poll());
+                            hasDeliveries = true;
+                        }
+                        if (length + data.length > batch.length) {
+                            batch = Arrays.copyOf(batch, Math.max(batch.length * 2, length + data.length));
+                        }
+                        System.arraycopy(data, 0, batch, length, data.length);
+                        length += data.length;
+                        pendingBytes -= data.length;
+                    }
+                    if (length > 0) {
+                        drained.signalAll();
+                    }
+                    if (drainedTask != null && pendingBytes < limitBytes / 4) {
+                        task = drainedTask;
+                        drainedTask = null;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (length > 0) {
+                    out.write(batch, 0, length);
+                    if (hasDeliveries) {
+                        lock.lock();
+                        try {
+                            writing.clear();
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+                if (task != null) {
+                    task.run();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // Conexão perdida: as entregas continuam guardadas para o abortUnsent() de quem encerrar a sessão
+            lost();
+            return;
+        }
+        abort();
+    }
+
+    private void lost() {
+        lock.lock();
+        try {
+            closed = true;
+            pending.clear();
+            pendingBytes = 0;
+            notEmpty.signal();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        closeSocket();
+    }
+
+    private void add(byte[] data) {
+        pending.add(data);
+        pendingBytes += data.length;
+        notEmpty.signal();
+    }
+
+    // Writer usado pelo PrintWriter de uma sessão: acumula caracteres e entrega os bytes a cada flush
+    static class EncodingWriter extends Writer {
+        interface Sink {
+            void accept(byte[] data) throws IOException;
+        }
+
+        private final Sink sink;
+        private final StringBuilder pending = new StringBuilder();
+
+        EncodingWriter(Sink sink) {
+            this.sink = sink;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            pending.append(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (pending.length() == 0) {
+                return;
+            }
+            byte[] data = pending.toString().getBytes(StandardCharsets.UTF_8);
+            pending.setLength(0);
+            sink.accept(data);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Presença empurrada para as sessões que enviaram SUBSCRIBE_PRESENCE, no lugar de repetir o
+LIST_USERS. Quem assina recebe uma vez quem está online:
+  PRESENCE RESET
+  PRESENCE ONLINE <usuário> <usuário> ...
+e depois só as mudanças, como PRESENCE ONLINE ... e PRESENCE OFFLINE .... Online é qualquer
+status menos Offline: sessão neste nó, em outro nó do cluster ou técnico no console.
+
+O registro avisa cada mudança de status (pelo id do usuário), que só marca o id num conjunto.
+Uma vez por FLUSH_MS as mudanças acumuladas são comparadas com o que os assinantes já sabem
+(published): um login seguido de logout no mesmo intervalo não gera nada, e uma rajada de logins
+depois de um reinício vira poucas linhas com muitos nomes, codificadas uma vez e compartilhadas
+entre os assinantes (ChatServer.Push).
+
+As linhas não são numeradas nem vão para a caixa offline. Se a fila de saída de um assinante
+não aceita uma linha, ele passa a esperar um RESET com o estado completo no próximo envio.
+A assinatura é do usuário: passa para a nova conexão num RESUME e acaba no logout.
+*/
+
+final class PresenceFeed {
+    static final long FLUSH_MS = 100;
+    private static final int NAMES_PER_LINE = 256;
+
+    private static final class Subscription {
+        ChatServer.ClientSession session;
+        boolean resync;  // Perdeu uma linha: recebe o estado completo no próximo envio
+
+        Subscription(ChatServer.ClientSession session) {
+            this.session = session;
+        }
+    }
+
+    private final UserRegistry registry;
+    private final TimingWheel timers;
+    private final ExecutorService sender;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, Subscription> subscriptions = new HashMap<>();
+    private final BitSet published = new BitSet();  // Ids online segundo o que os assinantes já receberam
+    private final BitSet dirty = new BitSet();  // Ids que mudaram desde o último envio
+    private volatile boolean active;  // Há assinantes; sem eles as mudanças nem são anotadas
+    private boolean scheduled;
+
+    PresenceFeed(UserRegistry registry, TimingWheel timers) {
+        this.registry = registry;
+        this.timers = timers;
+        // O envio não roda na thread da roda, que só deve fazer tarefas curtas
+        this.sender = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "presence-feed");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Chamado pelo registro depois de cada mudança de status
+    void changed(int id) {
+        if (!active) {
+            return;
+        }
+        lock.lock();
+        try {
+            dirty.set(id);
+            schedule();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Envia o estado atual e passa a enviar as mudanças; substitui uma assinatura anterior do usuário
+    void subscribe(String username, ChatServer.ClientSession session) {
+        lock.lock();
+        try {
+            if (!active) {
+                // Mudanças a partir daqui são anotadas; as anteriores já aparecem na leitura do registro
+                active = true;
+                registry.onlineIds(published);
+            }
+            Subscription subscription = new Subscription(session);
+            subscriptions.put(username, subscription);
+            subscription.resync = !sendAll(subscription.session, snapshot());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Retorna false se o usuário não tinha assinatura nesta sessão
+    boolean unsubscribe(String username, ChatServer.ClientSession session) {
+        lock.lock();
+        try {
+            Subscription subscription = subscriptions.get(username);
+            if (subscription == null || subscription.session != session) {
+                return false;
+            }
+            remove(username);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // RESUME: troca a sessão no registro (UserRegistry.resume) junto com a da assinatura, para um envio no meio
+    // não tomar a troca por um novo login. A nova conexão recebe o estado completo se algo se perdeu.
+    boolean resume(String username, ChatServer.ClientSession previous, ChatServer.ClientSession next) {
+        lock.lock();
+        try {
+            if (!registry.resume(username, previous, next)) {
+                return false;
+            }
+            Subscription subscription = subscriptions.get(username);
+            if (subscription != null && subscription.session == previous) {
+                subscription.session = next;
+                if (subscription.resync) {
+                    schedule();
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int subscribers() {
+        lock.lock();
+        try {
+            return subscriptions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Chamado com o lock
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            timers.schedule(() -> sender.execute(this::flush), FLUSH_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Chamado com o lock; o último assinante a sair desliga o acompanhamento
+    private void remove(String username) {
+        subscriptions.remove(username);
+        if (subscriptions.isEmpty()) {
+            active = false;
+            published.clear();
+            dirty.clear();
+        }
+    }
+
+    private void flush() {
+        lock.lock();
+        try {
+            scheduled = false;
+            List<String> online = new ArrayList<>();
+            List<String> offline = new ArrayList<>();
+            for (int id = dirty.nextSetBit(0); id >= 0; id = dirty.nextSetBit(id + 1)) {
+                boolean isOnline = registry.isOnline(id);
+                if (isOnline != published.get(id)) {
+                    published.set(id, isOnline);
+                    (isOnline ? online : offline).add(registry.username(id));
+                }
+            }
+            dirty.clear();
+            List<ChatServer.Push> delta = new ArrayList<>();
+            lines("PRESENCE ONLINE", online, delta);
+            lines("PRESENCE OFFLINE", offline, delta);
+            List<ChatServer.Push> snapshot = null;
+
+            List<String> ended = new ArrayList<>();
+            for (Map.Entry<String, Subscription> entry : subscriptions.entrySet()) {
+                Subscription subscription = entry.getValue();
+                // Logout, KILL ou um novo login do mesmo usuário encerram a assinatura
+                if (registry.session(entry.getKey()) != subscription.session) {
+                    ended.add(entry.getKey());
+                } else if (subscription.resync) {
+                    if (snapshot == null) {
+                        snapshot = snapshot();
+                    }
+                    subscription.resync = !sendAll(subscription.session, snapshot);
+                } else if (!delta.isEmpty()) {
+                    subscription.resync = !sendAll(subscription.session, delta);
+                }
+            }
+            for (String username : ended) {
+                remove(username);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Chamado com o lock
+    private List<ChatServer.Push> snapshot() {
+        List<String> names = new ArrayList<>();
+        for (int id = published.nextSetBit(0); id >= 0; id = published.nextSetBit(id + 1)) {
+            names.add(registry.username(id));
+        }
+        List<ChatServer.Push> pushes = new ArrayList<>();
+        pushes.add(new ChatServer.Push("PRESENCE RESET"));
+        lines("PRESENCE ONLINE", names, pushes);
+        return pushes;
+    }
+
+    private static void lines(String prefix, List<String> names, List<ChatServer.Push> pushes) {
+        for (int start = 0; start < names.size(); start += NAMES_PER_LINE) {
+            pushes.add(new ChatServer.Push(prefix + " " + String.join(" ", names.subList(start, Math.min(start + NAMES_PER_LINE, names.size())))));
+        }
+    }
+
+    private static boolean sendAll(ChatServer.ClientSession session, List<ChatServer.Push> pushes) {
+        for (ChatServer.Push push : pushes) {
+            if (!session.offerUntracked(push)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,185 @@
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+Controle de admissão dos comandos dos clientes, verificado antes de cada comando ser executado
+(ver ClientSession.handleCommand). Cada comando consome uma ficha do balde da conexão, do balde
+do usuário (com o limite do tipo dele) e do balde global, nessa ordem; o primeiro que recusar
+dá a resposta RATE LIMITED com o tempo até haver ficha de novo. Tentativas de LOGIN que falham
+têm baldes próprios, por conexão e por usuário, contra quem tenta adivinhar senhas.
+
+Os baldes de usuário sobrevivem à sessão, para reconectar não recarregar as fichas. Os contadores
+aparecem no comando RATE_LIMITS do console, no STATS e em /metrics.
+*/
+
+final class RateLimiter {
+    enum Scope {
+        CONNECTION("conexão"), USER("usuário"), GLOBAL("servidor"), LOGIN("falhas de login");
+
+        final String label;
+
+        Scope(String label) {
+            this.label = label;
+        }
+    }
+
+    // Fichas por segundo e tamanho da rajada; um limite nulo na configuração desativa o balde
+    static final class Limit {
+        final double perSecond;
+        final int burst;
+
+        Limit(double perSecond, int burst) {
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+
+        TokenBucket newBucket() {
+            return new TokenBucket(perSecond, burst);
+        }
+
+        @Override
+        public String toString() {
+            String rate = perSecond >= 1 ? Math.round(perSecond) + "/s" : Math.round(perSecond * 60) + "/min";
+            return rate + " (rajada " + burst + ")";
+        }
+    }
+
+    private final Map<UserType, Limit> userLimits;
+    private final Limit connectionLimit;
+    private final Limit globalLimit;
+    private final Limit loginFailureLimit;
+    private final TokenBucket global;
+    private final Map<String, TokenBucket> users = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> loginFailures = new ConcurrentHashMap<>();
+    private final Map<Scope, LongAdder> rejected = new EnumMap<>(Scope.class);
+    private final Map<String, LongAdder> rejectedByUser = new ConcurrentHashMap<>();
+
+    RateLimiter(ServerConfig config) {
+        this.userLimits = new EnumMap<>(config.userRates);
+        this.connectionLimit = config.connectionRate;
+        this.globalLimit = config.globalRate;
+        this.loginFailureLimit = config.loginFailureRate;
+        this.global = globalLimit != null ? globalLimit.newBucket() : null;
+        for (Scope scope : Scope.values()) {
+            rejected.put(scope, new LongAdder());
+        }
+    }
+
+    // Um por conexão; null sem limite
+    TokenBucket newConnectionBucket() {
+        return connectionLimit != null ? connectionLimit.newBucket() : null;
+    }
+
+    // Falhas de login de uma conexão; null sem limite
+    TokenBucket newLoginFailureBucket() {
+        return loginFailureLimit != null ? loginFailureLimit.newBucket() : null;
+    }
+
+    // Compartilhado pelas sessões do usuário; null se o tipo dele não tem limite
+    TokenBucket userBucket(String username, UserType type) {
+        Limit limit = userLimits.get(type);
+        return limit != null ? users.computeIfAbsent(username, u -> limit.newBucket()) : null;
+    }
+
+    // Retorna null se o comando pode ser executado, senão a resposta RATE LIMITED
+    String admit(TokenBucket connection, TokenBucket user, String username) {
+        long delay;
+        Scope scope;
+        if (connection != null && (delay = connection.tryAcquire()) > 0) {
+            scope = Scope.CONNECTION;
+        } else if (user != null && (delay = user.tryAcquire()) > 0) {
+            scope = Scope.USER;
+        } else if (global != null && (delay = global.tryAcquire()) > 0) {
+            scope = Scope.GLOBAL;
+        } else {
+            return null;
+        }
+        return reject(scope, username, delay);
+    }
+
+    // Antes de conferir a senha: recusa se a conexão ou o usuário já esgotaram as falhas permitidas
+    String admitLogin(TokenBucket connectionFailures, String username) {
+        if (connectionFailures == null) {
+            return null;
+        }
+        TokenBucket userFailures = loginFailures.get(username);
+        long delay = Math.max(connectionFailures.delay(), userFailures != null ? userFailures.delay() : 0);
+        return delay > 0 ? reject(Scope.LOGIN, username, delay) : null;
+    }
+
+    // Só para usuários cadastrados, para o mapa não crescer com nomes inventados
+    void loginFailed(TokenBucket connectionFailures, String username, boolean registered) {
+        if (connectionFailures == null) {
+            return;
+        }
+        connectionFailures.tryAcquire();
+        if (registered) {
+            loginFailures.computeIfAbsent(username, u -> loginFailureLimit.newBucket()).tryAcquire();
+        }
+    }
+
+    private String reject(Scope scope, String username, long delayNanos) {
+        rejected.get(scope).increment();
+        if (username != null) {
+            rejectedByUser.computeIfAbsent(username, u -> new LongAdder()).increment();
+        }
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayNanos));
+        return "RATE LIMITED: Limite de " + scope.label + " excedido. Tente novamente em " + millis + " ms.";
+    }
+
+    Map<String, Long> rejectedByScope() {
+        Map<String, Long> counts = new HashMap<>();
+        for (Map.Entry<Scope, LongAdder> entry : rejected.entrySet()) {
+            counts.put(entry.getKey().name().toLowerCase(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    Map<String, Long> rejectedByUser() {
+        Map<String, Long> counts = new HashMap<>();
+        rejectedByUser.forEach((user, count) -> counts.put(user, count.sum()));
+        return counts;
+    }
+
+    long rejectedTotal() {
+        long total = 0;
+        for (LongAdder count : rejected.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    // Relatório do comando RATE_LIMITS do console
+    String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("Por usuário:");
+        for (UserType type : UserType.values()) {
+            Limit limit = userLimits.get(type);
+            report.append(' ').append(type).append(' ').append(limit != null ? limit : "sem limite").append(';');
+        }
+        report.setLength(report.length() - 1);
+        report.append('\n');
+        report.append("Por conexão: ").append(connectionLimit != null ? connectionLimit : "sem limite").append('\n');
+        report.append("Global: ").append(globalLimit != null ? globalLimit : "sem limite").append('\n');
+        report.append("Falhas de login, por conexão e por usuário: ")
+                .append(loginFailureLimit != null ? loginFailureLimit : "sem limite").append('\n');
+        report.append("Comandos recusados:");
+        for (Scope scope : Scope.values()) {
+            report.append(' ').append(scope.label).append('=').append(rejected.get(scope).sum()).append(',');
+        }
+        report.setLength(report.length() - 1);
+        report.append('\n');
+        report.append("Usuários mais limitados:");
+        Map<String, Long> byUser = rejectedByUser();
+        byUser.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(ServerMetrics.TOP_ENTRIES)
+                .forEach(entry -> report.append(' ').append(entry.getKey()).append('=').append(entry.getValue()));
+        report.append(byUser.isEmpty() ? " nenhum\n" : "\n");
+        return report.toString();
+    }
+}
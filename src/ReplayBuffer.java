@@ -0,0 +1,101 @@
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Mensagens enviadas a uma sessão retomável (LOGIN ... RESUME) que o cliente ainda não confirmou
+com ACK. Cada mensagem recebe um número de sequência da sessão; se a conexão cair, o cliente
+reconecta com RESUME <token> <última sequência recebida> e recebe de novo só o que veio depois.
+
+O buffer é limitado: no limite as mensagens mais antigas são descartadas, e uma retomada que
+precisaria delas é recusada (o cliente faz login de novo). Todos os métodos devem ser chamados
+com o lock do buffer.
+*/
+
+final class ReplayBuffer {
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    static final class Entry {
+        final int seq;
+        final String line;
+
+        Entry(int seq, String line) {
+            this.seq = seq;
+            this.line = line;
+        }
+    }
+
+    final String token;
+    final ReentrantLock lock = new ReentrantLock();
+    private final int capacity;
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    private int lastSeq;  // Último número entregue
+    private int discardedSeq;  // Maior sequência descartada sem confirmação
+
+    boolean detached;  // Conexão perdida, aguardando RESUME
+    TimingWheel.Timeout expiry;  // Fim da espera por RESUME
+
+    ReplayBuffer(int capacity) {
+        this.token = newToken();
+        this.capacity = capacity;
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        RANDOM.nextBytes(bytes);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    int nextSeq() {
+        return ++lastSeq;
+    }
+
+    void add(int seq, String line) {
+        entries.add(new Entry(seq, line));
+        if (entries.size() > capacity) {
+            discardedSeq = entries.poll().seq;
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    // Ainda cabem n mensagens sem descartar nenhuma
+    boolean hasRoom(int n) {
+        return entries.size() + n <= capacity;
+    }
+
+    void ack(int seq) {
+        while (!entries.isEmpty() && entries.peek().seq <= seq) {
+            entries.poll();
+        }
+    }
+
+    // Mensagens depois de seq; null se alguma delas já foi descartada
+    List<Entry> after(int seq) {
+        if (seq < discardedSeq) {
+            return null;
+        }
+        List<Entry> missed = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.seq > seq) {
+                missed.add(entry);
+            }
+        }
+        return missed;
+    }
+
+    // Esvazia o buffer, devolvendo as mensagens não confirmadas em ordem
+    List<String> drain() {
+        List<String> lines = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            lines.add(entry.line);
+        }
+        entries.clear();
+        return lines;
+    }
+}
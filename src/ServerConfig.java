@@ -0,0 +1,421 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Configuração do servidor a partir da linha de comando e, com --config=<arquivo>, de um arquivo
+com uma opção por linha, sem os dois traços (ver OptionsFile); a linha de comando prevalece.
+Exemplo: java ChatServer --mode=virtual --max-sessions=5000
+Cluster: java ChatServer --port=12346 --data-dir=b --node-id=b --cluster-port=13002 --peers=a@localhost:13001
+*/
+
+public class ServerConfig {
+    static final String USAGE = "Uso: java ChatServer [--config=<arquivo>] [--host=<endereço>] [--port=<porta>]"
+            + " [--backlog=<n>] [--acceptors=<n>] [--reuse-port=true|false] [--tcp-nodelay=true|false]"
+            + " [--send-buffer=<bytes>] [--receive-buffer=<bytes>] [--keepalive-seconds=<n>] [--mode=thread|virtual|nio] [--io-threads=<n>]"
+            + " [--max-sessions=<n>] [--accept-queue=<n>] [--offline-sync=always|interval|none]"
+            + " [--offline-sync-interval-ms=<n>] [--mailbox-segment-bytes=<n>] [--mailbox-quota=<n>]"
+            + " [--mailbox-ttl-days=<n>] [--history-days=<n>] [--outbound-queue-bytes=<n>] [--slow-consumer=drop|spill|disconnect]"
+            + " [--fanout-threads=<n>] [--file-port=<porta>] [--max-file-mb=<n>] [--file-retention-days=<n>]"
+            + " [--metrics-port=<porta>] [--log-file=<arquivo>]"
+            + " [--log-level=<nível>[,<categoria>:<nível>...]] [--log-sample=<categoria>:<n>[,...]]"
+            + " [--log-max-bytes=<n>] [--log-files=<n>] [--log-buffer=<n>] [--data-dir=<diretório>]"
+            + " [--resume-grace-seconds=<n>] [--resume-buffer=<n>] [--heartbeat-seconds=<n>] [--idle-timeout-seconds=<n>]"
+            + " [--user-rate=<tipo>:<n/s>[:<rajada>][,...]] [--connection-rate=<n/s>[:<rajada>]]"
+            + " [--global-rate=<n/s>[:<rajada>]] [--login-failures=<n/min>[:<rajada>]]"
+            + " [--node-id=<id> --cluster-port=<porta> --peers=<id>@<host>:<porta>[,...]]";
+
+    enum Mode { THREAD, VIRTUAL, NIO }
+
+    // Outro nó do cluster
+    static final class PeerAddress {
+        final String id;
+        final String host;
+        final int port;
+
+        PeerAddress(String id, String host, int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    // O que fazer com uma entrega quando a fila de saída do destinatário está cheia
+    enum SlowConsumerPolicy { DROP, SPILL, DISCONNECT }
+
+    String host;  // Endereço de escuta; null aceita em todas as interfaces
+    int port = 12345;
+    int backlog = 1_024;  // Conexões completadas aguardando o accept (limitado por net.core.somaxconn)
+    int acceptors = 1;  // Threads que aceitam conexões (ver ServerListener)
+    boolean reusePort = false;  // Um socket de escuta com SO_REUSEPORT por thread de accept
+    boolean tcpNoDelay = true;
+    int sendBufferBytes = 0;  // SO_SNDBUF das conexões; 0 usa o padrão do sistema
+    int receiveBufferBytes = 0;  // SO_RCVBUF das conexões; 0 usa o padrão do sistema
+    int keepAliveSeconds = 0;  // Silêncio depois do qual o TCP testa a conexão; 0 desativa o keepalive
+    Mode mode = Mode.THREAD;
+    int ioThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    int maxSessions = 10_000;  // Sessões simultâneas nos modos thread e virtual
+    int acceptQueue = 1_000;  // Conexões aceitas aguardando uma vaga de sessão
+    OfflineMessageStore.SyncPolicy offlineSync = OfflineMessageStore.SyncPolicy.INTERVAL;
+    int offlineSyncIntervalMs = 100;
+    int mailboxSegmentBytes = 16 * 1024 * 1024;  // Tamanho a partir do qual um novo segmento é aberto
+    int mailboxQuota = 10_000;  // Mensagens offline pendentes por usuário
+    int mailboxTtlDays = 180;
+    int historyDays = 365;  // Retenção do histórico de mensagens (HISTORY e SEARCH); 0 desativa
+    int outboundQueueBytes = 1024 * 1024;  // Limite da fila de saída de cada sessão
+    SlowConsumerPolicy slowConsumer = SlowConsumerPolicy.SPILL;
+    int fanOutThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));  // Workers de entrega para grupos e broadcast
+    int resumeGraceSeconds = 60;  // Quanto uma sessão retomável espera o RESUME depois de perder a conexão
+    int resumeBuffer = 1_000;  // Mensagens não confirmadas guardadas por sessão retomável
+    int heartbeatSeconds = 30;  // Silêncio do cliente depois do qual o servidor envia PING; 0 desativa
+    int idleTimeoutSeconds = 90;  // Silêncio do cliente depois do qual a sessão é encerrada; 0 desativa
+    // Limites de taxa dos comandos (ver RateLimiter); null desativa
+    final Map<UserType, RateLimiter.Limit> userRates = new EnumMap<>(Map.of(
+            UserType.ALUNO, new RateLimiter.Limit(50, 200),
+            UserType.PROFESSOR, new RateLimiter.Limit(50, 200),
+            UserType.TECNICO, new RateLimiter.Limit(200, 1_000)));
+    RateLimiter.Limit connectionRate = new RateLimiter.Limit(200, 1_000);
+    RateLimiter.Limit globalRate = null;
+    RateLimiter.Limit loginFailureRate = new RateLimiter.Limit(10 / 60.0, 5);
+    int filePort = 0;  // Porta de dados do SEND_FILE e GET_FILE (ver FileTransfers); 0 desativa
+    int maxFileMegabytes = 100;
+    int fileRetentionDays = 30;
+    int metricsPort = 0;  // Endpoint HTTP de métricas; 0 desativa
+    final Log.Config log = new Log.Config();
+    Path dataDir = Paths.get(".");  // Arquivos de usuários, mensagens offline, grupos e, por padrão, o log
+    String nodeId;  // Só num cluster
+    int clusterPort = 0;  // Porta das conexões entre nós; 0 desativa o cluster
+    final List<PeerAddress> peers = new ArrayList<>();
+
+    static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        boolean logFileSet = false;
+        for (String arg : OptionsFile.expand(args)) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Argumento inválido: " + arg);
+            }
+            String name = arg.substring(2, eq);
+            String value = arg.substring(eq + 1);
+            switch (name) {
+                case "host":
+                    config.host = value.isEmpty() ? null : value;
+                    break;
+                case "port":
+                    config.port = parsePositive(name, value);
+                    break;
+                case "backlog":
+                    config.backlog = parsePositive(name, value);
+                    break;
+                case "acceptors":
+                    config.acceptors = parsePositive(name, value);
+                    break;
+                case "reuse-port":
+                    config.reusePort = parseBoolean(name, value);
+                    break;
+                case "tcp-nodelay":
+                    config.tcpNoDelay = parseBoolean(name, value);
+                    break;
+                case "send-buffer":
+                    config.sendBufferBytes = parseNonNegative(name, value);
+                    break;
+                case "receive-buffer":
+                    config.receiveBufferBytes = parseNonNegative(name, value);
+                    break;
+                case "keepalive-seconds":
+                    config.keepAliveSeconds = parseNonNegative(name, value);
+                    break;
+                case "mode":
+                    config.mode = parseMode(value);
+                    break;
+                case "io-threads":
+                    config.ioThreads = parsePositive(name, value);
+                    break;
+                case "max-sessions":
+                    config.maxSessions = parsePositive(name, value);
+                    break;
+                case "accept-queue":
+                    config.acceptQueue = parsePositive(name, value);
+                    break;
+                case "offline-sync":
+                    config.offlineSync = parseSyncPolicy(value);
+                    break;
+                case "offline-sync-interval-ms":
+                    config.offlineSyncIntervalMs = parsePositive(name, value);
+                    break;
+                case "mailbox-segment-bytes":
+                    config.mailboxSegmentBytes = parsePositive(name, value);
+                    break;
+                case "mailbox-quota":
+                    config.mailboxQuota = parsePositive(name, value);
+                    break;
+                case "mailbox-ttl-days":
+                    config.mailboxTtlDays = parsePositive(name, value);
+                    break;
+                case "history-days":
+                    config.historyDays = parseNonNegative(name, value);
+                    break;
+                case "outbound-queue-bytes":
+                    config.outboundQueueBytes = parsePositive(name, value);
+                    break;
+                case "slow-consumer":
+                    config.slowConsumer = parseSlowConsumerPolicy(value);
+                    break;
+                case "fanout-threads":
+                    config.fanOutThreads = parsePositive(name, value);
+                    break;
+                case "resume-grace-seconds":
+                    config.resumeGraceSeconds = parsePositive(name, value);
+                    break;
+                case "resume-buffer":
+                    config.resumeBuffer = parsePositive(name, value);
+                    break;
+                case "heartbeat-seconds":
+                    config.heartbeatSeconds = parseNonNegative(name, value);
+                    break;
+                case "idle-timeout-seconds":
+                    config.idleTimeoutSeconds = parseNonNegative(name, value);
+                    break;
+                case "user-rate":
+                    parseUserRates(value, config.userRates);
+                    break;
+                case "connection-rate":
+                    config.connectionRate = parseLimit(name, value, 1);
+                    break;
+                case "global-rate":
+                    config.globalRate = parseLimit(name, value, 1);
+                    break;
+                case "login-failures":
+                    config.loginFailureRate = parseLimit(name, value, 60);
+                    break;
+                case "file-port":
+                    config.filePort = parseNonNegative(name, value);
+                    break;
+                case "max-file-mb":
+                    config.maxFileMegabytes = parsePositive(name, value);
+                    break;
+                case "file-retention-days":
+                    config.fileRetentionDays = parsePositive(name, value);
+                    break;
+                case "metrics-port":
+                    config.metricsPort = parsePositive(name, value);
+                    break;
+                case "log-file":
+                    config.log.file = Paths.get(value);
+                    logFileSet = true;
+                    break;
+                case "log-level":
+                    parseLogLevels(value, config.log);
+                    break;
+                case "log-sample":
+                    parseLogSampling(value, config.log);
+                    break;
+                case "log-max-bytes":
+                    config.log.maxFileBytes = parsePositive(name, value);
+                    break;
+                case "log-files":
+                    config.log.maxFiles = parsePositive(name, value);
+                    break;
+                case "log-buffer":
+                    config.log.bufferEntries = parsePositive(name, value);
+                    break;
+                case "data-dir":
+                    config.dataDir = Paths.get(value);
+                    break;
+                case "node-id":
+                    config.nodeId = parseNodeId(value);
+                    break;
+                case "cluster-port":
+                    config.clusterPort = parsePositive(name, value);
+                    break;
+                case "peers":
+                    parsePeers(value, config.peers);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Opção desconhecida: --" + name);
+            }
+        }
+        if (!logFileSet) {
+            config.log.file = config.dataDir.resolve(config.log.file);
+        }
+        if ((config.clusterPort > 0 || !config.peers.isEmpty() || config.nodeId != null)
+                && (config.clusterPort == 0 || config.peers.isEmpty() || config.nodeId == null)) {
+            throw new IllegalArgumentException("Um nó do cluster precisa de --node-id, --cluster-port e --peers");
+        }
+        if (config.heartbeatSeconds > 0 && config.idleTimeoutSeconds > 0 && config.heartbeatSeconds >= config.idleTimeoutSeconds) {
+            throw new IllegalArgumentException("--heartbeat-seconds deve ser menor que --idle-timeout-seconds");
+        }
+        for (PeerAddress peer : config.peers) {
+            if (peer.id.equals(config.nodeId)) {
+                throw new IllegalArgumentException("O nó " + peer.id + " não pode estar em --peers dele mesmo");
+            }
+        }
+        return config;
+    }
+
+    // Ids entram nas mensagens do cluster, que separam campos por espaço
+    private static String parseNodeId(String value) {
+        if (value.isEmpty() || !value.chars().allMatch(c -> Character.isLetterOrDigit(c) || c == '-' || c == '_')) {
+            throw new IllegalArgumentException("Id de nó inválido: " + value + ". Use letras, números, _ ou -");
+        }
+        return value;
+    }
+
+    // Ex.: b@localhost:13002,c@10.0.0.3:13000
+    private static void parsePeers(String value, List<PeerAddress> peers) {
+        for (String part : value.split(",")) {
+            int at = part.indexOf('@');
+            int colon = part.lastIndexOf(':');
+            if (at <= 0 || colon < at + 2) {
+                throw new IllegalArgumentException("Nó inválido em --peers: " + part + ". Use <id>@<host>:<porta>");
+            }
+            String id = parseNodeId(part.substring(0, at));
+            for (PeerAddress peer : peers) {
+                if (peer.id.equals(id)) {
+                    throw new IllegalArgumentException("Nó repetido em --peers: " + id);
+                }
+            }
+            peers.add(new PeerAddress(id, part.substring(at + 1, colon), parsePositive("peers", part.substring(colon + 1))));
+        }
+    }
+
+    // Ex.: Aluno:20,Tecnico:500:2000; taxa 0 tira o limite do tipo
+    private static void parseUserRates(String value, Map<UserType, RateLimiter.Limit> rates) {
+        for (String part : value.split(",")) {
+            int colon = part.indexOf(':');
+            UserType type = colon < 0 ? null : UserType.parse(part.substring(0, colon));
+            if (type == null) {
+                throw new IllegalArgumentException("Valor inválido para --user-rate: " + part + ". Use <tipo>:<n/s>[:<rajada>]");
+            }
+            RateLimiter.Limit limit = parseLimit("user-rate", part.substring(colon + 1), 1);
+            if (limit == null) {
+                rates.remove(type);
+            } else {
+                rates.put(type, limit);
+            }
+        }
+    }
+
+    // <taxa>[:<rajada>], com a taxa por segundo (seconds = 1) ou por minuto (60); sem rajada, ela é igual à taxa
+    private static RateLimiter.Limit parseLimit(String name, String value, int seconds) {
+        int colon = value.indexOf(':');
+        int rate = parseNonNegative(name, colon < 0 ? value : value.substring(0, colon));
+        if (rate == 0) {
+            return null;
+        }
+        int burst = colon < 0 ? rate : parsePositive(name, value.substring(colon + 1));
+        return new RateLimiter.Limit(rate / (double) seconds, burst);
+    }
+
+    private static Mode parseMode(String value) {
+        switch (value) {
+            case "thread":
+                return Mode.THREAD;
+            case "virtual":
+                return Mode.VIRTUAL;
+            case "nio":
+                return Mode.NIO;
+            default:
+                throw new IllegalArgumentException("Modo inválido: " + value + ". Use: thread, virtual ou nio");
+        }
+    }
+
+    private static OfflineMessageStore.SyncPolicy parseSyncPolicy(String value) {
+        switch (value) {
+            case "always":
+                return OfflineMessageStore.SyncPolicy.ALWAYS;
+            case "interval":
+                return OfflineMessageStore.SyncPolicy.INTERVAL;
+            case "none":
+                return OfflineMessageStore.SyncPolicy.NONE;
+            default:
+                throw new IllegalArgumentException("Política de sincronização inválida: " + value + ". Use: always, interval ou none");
+        }
+    }
+
+    private static SlowConsumerPolicy parseSlowConsumerPolicy(String value) {
+        switch (value) {
+            case "drop":
+                return SlowConsumerPolicy.DROP;
+            case "spill":
+                return SlowConsumerPolicy.SPILL;
+            case "disconnect":
+                return SlowConsumerPolicy.DISCONNECT;
+            default:
+                throw new IllegalArgumentException("Política inválida: " + value + ". Use: drop, spill ou disconnect");
+        }
+    }
+
+    // Ex.: info,message:warn,command:debug; um nível sem categoria vale para as demais
+    private static void parseLogLevels(String value, Log.Config log) {
+        for (String part : value.split(",")) {
+            int colon = part.indexOf(':');
+            if (colon < 0) {
+                log.level = parseLogLevel(part);
+            } else {
+                log.categoryLevels.put(parseLogCategory(part.substring(0, colon)), parseLogLevel(part.substring(colon + 1)));
+            }
+        }
+    }
+
+    // Ex.: command:100,message:10 mantém 1 de cada 100 entradas DEBUG/INFO de comandos e 1 de cada 10 de mensagens
+    private static void parseLogSampling(String value, Log.Config log) {
+        for (String part : value.split(",")) {
+            int colon = part.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Valor inválido para --log-sample: " + value);
+            }
+            log.sampling.put(parseLogCategory(part.substring(0, colon)), parsePositive("log-sample", part.substring(colon + 1)));
+        }
+    }
+
+    private static Log.Level parseLogLevel(String value) {
+        for (Log.Level level : Log.Level.values()) {
+            if (level.name().equalsIgnoreCase(value)) {
+                return level;
+            }
+        }
+        throw new IllegalArgumentException("Nível de log inválido: " + value + ". Use: debug, info, warn ou error");
+    }
+
+    private static Log.Category parseLogCategory(String value) {
+        for (Log.Category category : Log.Category.values()) {
+            if (category.name().equalsIgnoreCase(value)) {
+                return category;
+            }
+        }
+        throw new IllegalArgumentException("Categoria de log inválida: " + value
+                + ". Use: server, connection, command, message, storage ou console");
+    }
+
+    private static boolean parseBoolean(String name, String value) {
+        switch (value) {
+            case "true":
+                return true;
+            case "false":
+                return false;
+            default:
+                throw new IllegalArgumentException("Valor inválido para --" + name + ": " + value + ". Use: true ou false");
+        }
+    }
+
+    static int parsePositive(String name, String value) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed > 0) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // tratado abaixo
+        }
+        throw new IllegalArgumentException("Valor inválido para --" + name + ": " + value);
+    }
+
+    // Para as opções em que 0 desativa
+    static int parseNonNegative(String name, String value) {
+        return value.equals("0") ? 0 : parsePositive(name, value);
+    }
+}
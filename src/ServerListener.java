@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import jdk.net.ExtendedSocketOptions;
+
+/*
+Porta do chat, usada pelos modos thread, virtual e nio. Abre o socket de escuta com a fila de
+conexões pendentes de --backlog (o padrão do Java, 50, estoura quando uma turma inteira conecta
+ao mesmo tempo) e aceita com --acceptors threads. Com --reuse-port=true cada thread tem o próprio
+socket com SO_REUSEPORT, e o kernel reparte as conexões entre as filas; sem ela, as threads
+dividem um socket só. O tamanho efetivo da fila é o menor entre --backlog e net.core.somaxconn.
+
+Cada conexão aceita recebe TCP_NODELAY, SO_SNDBUF e o keepalive configurados antes de ser
+entregue; o SO_RCVBUF é definido no socket de escuta, antes do bind, para valer também para a
+janela anunciada no handshake.
+
+Conexões que o kernel descartou com a fila cheia nunca chegam ao accept: no Linux elas são
+lidas dos contadores ListenOverflows e ListenDrops de /proc/net/netstat (de todo o sistema).
+*/
+
+final class ServerListener {
+    private static final Path NETSTAT = Paths.get("/proc/net/netstat");
+    private static final long ACCEPT_ERROR_PAUSE_MS = 100;
+
+    interface Handoff {
+        // Recebe cada conexão aceita, já configurada e em modo bloqueante
+        void accept(SocketChannel channel);
+    }
+
+    private final ServerConfig config;
+    private final List<ServerSocketChannel> channels = new ArrayList<>();
+
+    ServerListener(ServerConfig config) {
+        this.config = config;
+    }
+
+    // Abre e faz o bind dos sockets de escuta; falhas (porta em uso) aparecem aqui, antes de aceitar conexões
+    void open() throws IOException {
+        InetSocketAddress address = config.host == null
+                ? new InetSocketAddress(config.port) : new InetSocketAddress(config.host, config.port);
+        int sockets = config.reusePort ? config.acceptors : 1;
+        try {
+            for (int i = 0; i < sockets; i++) {
+                ServerSocketChannel channel = ServerSocketChannel.open();
+                channels.add(channel);
+                if (config.reusePort) {
+                    if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                        throw new IOException("SO_REUSEPORT não é suportado neste sistema; use --reuse-port=false");
+                    }
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                }
+                if (config.receiveBufferBytes > 0) {
+                    channel.setOption(StandardSocketOptions.SO_RCVBUF, config.receiveBufferBytes);
+                }
+                channel.bind(address, config.backlog);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    String describe() {
+        return config.acceptors + (config.acceptors == 1 ? " thread de accept" : " threads de accept")
+                + (config.reusePort ? " com SO_REUSEPORT" : "") + ", backlog " + config.backlog;
+    }
+
+    // Aceita conexões até os sockets serem fechados; a thread que chama é uma das que aceitam
+    void run(Handoff handoff) {
+        for (int i = 1; i < config.acceptors; i++) {
+            ServerSocketChannel channel = channels.get(config.reusePort ? i : 0);
+            Thread acceptor = new Thread(() -> accept(channel, handoff), "acceptor-" + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        accept(channels.get(0), handoff);
+    }
+
+    void close() {
+        for (ServerSocketChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // ignorado: o servidor está encerrando
+            }
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel, Handoff handoff) {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // Sem descritores livres (EMFILE) o accept falha de novo na hora; a pausa evita girar em falso
+                ChatServer.metrics.acceptErrors.increment();
+                Log.error(Log.Category.CONNECTION, "Erro ao aceitar conexão", e);
+                pause();
+                continue;
+            }
+            ChatServer.metrics.accepted.increment();
+            try {
+                configure(channel);
+            } catch (IOException e) {
+                Log.debug(Log.Category.CONNECTION, "Conexão encerrada antes de ser configurada: " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // ignorado: a conexão já falhou
+                }
+                continue;
+            }
+            handoff.accept(channel);
+        }
+    }
+
+    private void configure(SocketChannel channel) throws IOException {
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, config.tcpNoDelay);
+        if (config.sendBufferBytes > 0) {
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, config.sendBufferBytes);
+        }
+        if (config.keepAliveSeconds > 0) {
+            channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            // Sem as opções estendidas (fora do Linux e do macOS) vale o intervalo do sistema, em geral de 2 horas
+            setIfSupported(channel, ExtendedSocketOptions.TCP_KEEPIDLE, config.keepAliveSeconds);
+            setIfSupported(channel, ExtendedSocketOptions.TCP_KEEPINTERVAL, Math.max(1, config.keepAliveSeconds / 3));
+            setIfSupported(channel, ExtendedSocketOptions.TCP_KEEPCOUNT, 3);
+        }
+    }
+
+    private static <T> void setIfSupported(SocketChannel channel, SocketOption<T> option, T value) throws IOException {
+        if (channel.supportedOptions().contains(option)) {
+            channel.setOption(option, value);
+        }
+    }
+
+    private static void pause() {
+        try {
+            TimeUnit.MILLISECONDS.sleep(ACCEPT_ERROR_PAUSE_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Contador TcpExt de /proc/net/netstat (ListenOverflows, ListenDrops); -1 fora do Linux
+    static long kernelCounter(String name) {
+        try {
+            List<String> lines = Files.readAllLines(NETSTAT, StandardCharsets.US_ASCII);
+            // Pares de linhas "TcpExt: <nomes>" e "TcpExt: <valores>"
+            for (int i = 0; i + 1 < lines.size(); i += 2) {
+                String[] names = lines.get(i).split(" ");
+                String[] values = lines.get(i + 1).split(" ");
+                if (!names[0].equals("TcpExt:")) {
+                    continue;
+                }
+                for (int j = 1; j < names.length && j < values.length; j++) {
+                    if (names[j].equals(name)) {
+                        return Long.parseLong(values[j]);
+                    }
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Sem /proc: a métrica fica indisponível
+        }
+        return -1;
+    }
+}
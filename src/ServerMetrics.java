@@ -0,0 +1,217 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/*
+Métricas do servidor. Quem registra só incrementa LongAdders e histogramas (LatencyHistogram),
+sem locks, para a medição não pesar nos comandos. Valores que já existem em outros componentes
+(sessões online, backlog offline, filas de saída) são lidos apenas quando o relatório é gerado.
+Disponível pelo comando STATS no console e, com --metrics-port, em http://localhost:<porta>/metrics
+no formato de texto do Prometheus.
+*/
+
+class ServerMetrics {
+    private static final String PREFIX = "chatbara_";
+    static final int TOP_ENTRIES = 10;  // Maiores valores mostrados nas métricas por usuário
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    final LongAdder accepted = new LongAdder();
+    final LongAdder rejected = new LongAdder();  // Recusadas com SERVER BUSY
+    final LongAdder acceptErrors = new LongAdder();  // Falhas do accept, como falta de descritores
+    final LongAdder invalidCommands = new LongAdder();  // Verbo desconhecido ou sem login
+    final LongAdder idleSessions = new LongAdder();  // Encerradas por --idle-timeout-seconds
+
+    private final Map<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> flushes = new ConcurrentHashMap<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    // Taxa de conexões aceitas entre um STATS e o seguinte
+    private final ReentrantLock reportLock = new ReentrantLock();
+    private long lastReportNanos = System.nanoTime();
+    private long lastReportAccepted;
+
+    private static final class Gauge {
+        final String name;
+        final String description;
+        final String label;  // null: um valor só; senão, um valor por usuário
+        final Supplier<Map<String, Long>> values;
+
+        Gauge(String name, String description, String label, Supplier<Map<String, Long>> values) {
+            this.name = name;
+            this.description = description;
+            this.label = label;
+            this.values = values;
+        }
+    }
+
+    // Histograma de um verbo, criado quando a tabela de comandos é montada
+    LatencyHistogram command(String verb) {
+        return commands.computeIfAbsent(verb, k -> new LatencyHistogram());
+    }
+
+    // Envolve o handler medindo o tempo de cada execução no histograma do verbo
+    <C> CommandEngine.Handler<C> timed(String verb, CommandEngine.Handler<C> handler) {
+        LatencyHistogram latency = command(verb);
+        return (context, line) -> {
+            long start = System.nanoTime();
+            try {
+                return handler.handle(context, line);
+            } finally {
+                latency.record(System.nanoTime() - start);
+            }
+        };
+    }
+
+    // Tempos de gravação em disco (fsync, reescrita de arquivo) de um arquivo ou componente
+    void flush(String name, LatencyHistogram latency) {
+        flushes.put(name, latency);
+    }
+
+    LatencyHistogram flush(String name) {
+        return flushes.computeIfAbsent(name, k -> new LatencyHistogram());
+    }
+
+    void gauge(String name, String description, LongSupplier value) {
+        gauge(name, description, null, () -> Map.of("", value.getAsLong()));
+    }
+
+    // Só os TOP_ENTRIES maiores valores são exibidos; registrar de novo o mesmo nome substitui o anterior
+    void gauge(String name, String description, String label, Supplier<Map<String, Long>> values) {
+        gauges.removeIf(gauge -> gauge.name.equals(name));
+        gauges.add(new Gauge(name, description, label, values));
+    }
+
+    // Relatório do comando STATS
+    String report() {
+        long now = System.nanoTime();
+        long acceptedNow = accepted.sum();
+        double rate;
+        reportLock.lock();
+        try {
+            rate = (acceptedNow - lastReportAccepted) / ((now - lastReportNanos) / 1e9);
+            lastReportNanos = now;
+            lastReportAccepted = acceptedNow;
+        } finally {
+            reportLock.unlock();
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Conexões aceitas: %d (%.1f/s desde o último STATS), recusadas: %d, falhas no accept: %d%n",
+                acceptedNow, rate, rejected.sum(), acceptErrors.sum()));
+        for (Gauge gauge : gauges) {
+            Map<String, Long> values = gauge.values.get();
+            if (gauge.label == null) {
+                report.append(gauge.description).append(": ").append(values.get("")).append('\n');
+            } else {
+                report.append(gauge.description).append(':');
+                for (Map.Entry<String, Long> entry : top(values)) {
+                    report.append(' ').append(entry.getKey()).append('=').append(entry.getValue());
+                }
+                report.append(values.isEmpty() ? " nenhum\n" : "\n");
+            }
+        }
+        report.append(String.format("%-22s %10s %10s %10s %10s %10s%n", "Comando", "Total", "p50 ms", "p99 ms", "p999 ms", "máx. ms"));
+        appendTable(report, commands);
+        report.append(String.format("%-22s %10s %10s %10s %10s %10s%n", "Gravação em disco", "Total", "p50 ms", "p99 ms", "p999 ms", "máx. ms"));
+        appendTable(report, flushes);
+        report.append("Comandos inválidos ou sem login: ").append(invalidCommands.sum()).append('\n');
+        report.append("Sessões encerradas por inatividade: ").append(idleSessions.sum()).append('\n');
+        return report.toString();
+    }
+
+    private static void appendTable(StringBuilder report, Map<String, LatencyHistogram> histograms) {
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram latency = entry.getValue();
+            if (latency.count() == 0) {
+                continue;
+            }
+            report.append(String.format("%-22s %10d %10.3f %10.3f %10.3f %10.3f%n", entry.getKey(), latency.count(),
+                    latency.percentile(0.5) / 1e6, latency.percentile(0.99) / 1e6,
+                    latency.percentile(0.999) / 1e6, latency.max() / 1e6));
+        }
+    }
+
+    // Formato de texto do Prometheus; histogramas viram summaries com quantis em segundos
+    String prometheus() {
+        StringBuilder text = new StringBuilder();
+        counter(text, "connections_accepted_total", "Conexões aceitas", accepted.sum());
+        counter(text, "connections_rejected_total", "Conexões recusadas com SERVER BUSY", rejected.sum());
+        counter(text, "accept_errors_total", "Falhas ao aceitar conexões", acceptErrors.sum());
+        counter(text, "invalid_commands_total", "Comandos com verbo desconhecido ou sem login", invalidCommands.sum());
+        counter(text, "sessions_idle_closed_total", "Sessões encerradas por inatividade", idleSessions.sum());
+        for (Gauge gauge : gauges) {
+            text.append("# HELP ").append(PREFIX).append(gauge.name).append(' ').append(gauge.description).append('\n');
+            text.append("# TYPE ").append(PREFIX).append(gauge.name).append(" gauge\n");
+            Map<String, Long> values = gauge.values.get();
+            if (gauge.label == null) {
+                text.append(PREFIX).append(gauge.name).append(' ').append(values.get("")).append('\n');
+            } else {
+                for (Map.Entry<String, Long> entry : top(values)) {
+                    text.append(PREFIX).append(gauge.name).append('{').append(gauge.label).append("=\"")
+                            .append(escape(entry.getKey())).append("\"} ").append(entry.getValue()).append('\n');
+                }
+            }
+        }
+        summary(text, "command_duration_seconds", "Tempo de execução dos comandos", "command", commands);
+        summary(text, "flush_duration_seconds", "Tempo de gravação em disco", "file", flushes);
+        return text.toString();
+    }
+
+    private static void counter(StringBuilder text, String name, String description, long value) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(description).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(" counter\n");
+        text.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder text, String name, String description, String label,
+                                Map<String, LatencyHistogram> histograms) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(description).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(" summary\n");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(histograms).entrySet()) {
+            LatencyHistogram latency = entry.getValue();
+            String labels = label + "=\"" + escape(entry.getKey()) + "\"";
+            for (double quantile : QUANTILES) {
+                text.append(PREFIX).append(name).append('{').append(labels).append(",quantile=\"").append(quantile)
+                        .append("\"} ").append(latency.percentile(quantile) / 1e9).append('\n');
+            }
+            text.append(PREFIX).append(name).append("_sum{").append(labels).append("} ").append(latency.sum() / 1e9).append('\n');
+            text.append(PREFIX).append(name).append("_count{").append(labels).append("} ").append(latency.count()).append('\n');
+        }
+    }
+
+    private static List<Map.Entry<String, Long>> top(Map<String, Long> values) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(values.entrySet());
+        entries.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return entries.subList(0, Math.min(TOP_ENTRIES, entries.size()));
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    // Só escuta na interface local: as métricas incluem nomes de usuários
+    HttpServer serve(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Hashed timing wheel (Varghese e Lauck) para os prazos das sessões: um vetor circular de listas
+duplamente ligadas, avançado por uma única thread a cada tick. Um prazo cai na posição
+(tick atual + atraso) módulo o tamanho do vetor, com o número de voltas que ainda faltam;
+agendar e cancelar custam O(1), sem um timer por socket, e a precisão é de um tick.
+
+now() é um relógio grosso, atualizado a cada tick, que as sessões podem ler a cada comando sem
+chamar o relógio do sistema. As tarefas rodam na thread da roda e devem ser curtas: trabalho
+com disco ou locks disputados deve ir para outra thread.
+*/
+
+final class TimingWheel {
+    final class Timeout {
+        private final Runnable task;
+        private long rounds;  // Voltas completas antes de vencer
+        private int slot = -1;  // -1 fora da roda (vencido ou cancelado)
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        // Retorna false se a tarefa já venceu ou foi cancelada
+        boolean cancel() {
+            lock.lock();
+            try {
+                if (slot < 0) {
+                    return false;
+                }
+                unlink(this);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private final long tickMillis;
+    private final Timeout[] slots;
+    private final int mask;
+    private final ReentrantLock lock = new ReentrantLock();
+    private long tick;  // Ticks já processados
+    private int size;
+    private volatile long now;  // tick * tickMillis
+
+    // slots deve ser potência de 2; uma volta da roda dura slots * tickMillis
+    TimingWheel(String name, long tickMillis, int slots) {
+        if (Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("O número de posições deve ser potência de 2: " + slots);
+        }
+        this.tickMillis = tickMillis;
+        this.slots = new Timeout[slots];
+        this.mask = slots - 1;
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Milissegundos desde a criação da roda, com a precisão de um tick
+    long now() {
+        return now;
+    }
+
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long ticks = Math.max(1, (unit.toMillis(delay) + tickMillis - 1) / tickMillis);
+        Timeout timeout = new Timeout(task);
+        lock.lock();
+        try {
+            timeout.rounds = (ticks - 1) / slots.length;
+            timeout.slot = (int) ((tick + ticks) & mask);
+            Timeout head = slots[timeout.slot];
+            timeout.next = head;
+            if (head != null) {
+                head.prev = timeout;
+            }
+            slots[timeout.slot] = timeout;
+            size++;
+        } finally {
+            lock.unlock();
+        }
+        return timeout;
+    }
+
+    // Prazos agendados e ainda não vencidos
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Chamado com o lock
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            slots[timeout.slot] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.slot = -1;
+        size--;
+    }
+
+    private void run() {
+        long start = System.nanoTime();
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        List<Timeout> expired = new ArrayList<>();
+        while (true) {
+            // Atrasada (GC, máquina ocupada), a roda processa os ticks pendentes em sequência, sem dormir
+            long wait;
+            while ((wait = start + (tick + 1) * tickNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            lock.lock();
+            try {
+                tick++;
+                now = tick * tickMillis;
+                Timeout timeout = slots[(int) (tick & mask)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.rounds == 0) {
+                        unlink(timeout);
+                        expired.add(timeout);
+                    } else {
+                        timeout.rounds--;
+                    }
+                    timeout = next;
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    Log.error(Log.Category.SERVER, "Erro numa tarefa da timing wheel", e);
+                }
+            }
+            expired.clear();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Token bucket sem lock. Em vez da quantidade de fichas e da hora da última recarga, que precisariam
+mudar juntas, guarda um único instante (GCRA): quando o balde voltaria a ficar cheio se ninguém mais
+pedisse fichas. Cada ficha empurra esse instante um intervalo para a frente; o pedido é recusado se
+o instante passaria de agora + capacidade. Um compareAndSet resolve pedidos simultâneos.
+*/
+
+final class TokenBucket {
+    private final long intervalNanos;  // Tempo para recarregar uma ficha
+    private final long capacityNanos;  // Rajada em tempo: burst fichas
+    private final AtomicLong fullAt;
+
+    TokenBucket(double perSecond, int burst) {
+        this.intervalNanos = Math.max(1, (long) (1e9 / perSecond));
+        this.capacityNanos = intervalNanos * burst;
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    // Retorna 0 se a ficha foi consumida, senão quantos nanossegundos faltam para haver uma
+    long tryAcquire() {
+        long now = System.nanoTime();
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + intervalNanos;
+            if (next - now > capacityNanos) {
+                return next - now - capacityNanos;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+
+    // Como tryAcquire(), sem consumir a ficha
+    long delay() {
+        long now = System.nanoTime();
+        long next = Math.max(fullAt.get(), now) + intervalNanos;
+        return Math.max(0, next - now - capacityNanos);
+    }
+}
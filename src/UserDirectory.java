@@ -0,0 +1,275 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Diretório compacto dos usuários cadastrados: colunas de primitivos em vez de um objeto (e suas
+Strings) por usuário. Cada cadastro recebe um id denso (0, 1, 2...), que indexa:
+  types    tipo do usuário (ordinal + 1; negativo depois de remove())
+  offsets  início do registro do usuário em arena
+  arena    [short bytes][nome][short bytes][senha][short bytes][atributo] em UTF-8, um usuário após o outro
+O índice por nome é um hash aberto de ids que compara os bytes do nome na arena. Um usuário custa
+uns 20 bytes além do próprio texto, contra algumas centenas com objetos num HashMap.
+
+Os ids valem enquanto o servidor está no ar; na inicialização são atribuídos de novo, na ordem
+de carga. Só add() e remove() escrevem, com o lock, e as leituras não travam: quem escreve
+termina gravando o campo volatile count, e quem lê começa lendo ele, então enxerga tudo o que
+foi publicado até ali. Vetores que crescem são trocados juntos no campo volatile columns.
+*/
+
+final class UserDirectory {
+    static final int NO_USER = -1;
+    static final int MAX_FIELD_BYTES = 0xFFFF;
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final class Columns {
+        final byte[] types;
+        final int[] offsets;
+        final byte[] arena;
+        final int[] index;  // id + 1; 0 = posição livre
+
+        Columns(byte[] types, int[] offsets, byte[] arena, int[] index) {
+            this.types = types;
+            this.offsets = offsets;
+            this.arena = arena;
+            this.index = index;
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Columns columns = new Columns(new byte[1024], new int[1024], new byte[32 * 1024], new int[2048]);
+    private volatile int count;  // Ids já atribuídos, incluindo os removidos
+    private int arenaSize;
+    private int live;
+
+    // Retorna o id do novo usuário, ou NO_USER se o nome já existe; IllegalArgumentException com um campo grande demais
+    int add(UserRegistry.UserRecord user) {
+        byte[] name = user.username.getBytes(StandardCharsets.UTF_8);
+        byte[] password = user.password.getBytes(StandardCharsets.UTF_8);
+        byte[] attribute = user.attribute != null ? user.attribute.getBytes(StandardCharsets.UTF_8) : EMPTY;
+        if (Math.max(name.length, Math.max(password.length, attribute.length)) > MAX_FIELD_BYTES) {
+            throw new IllegalArgumentException("Campos do cadastro têm no máximo " + MAX_FIELD_BYTES + " bytes.");
+        }
+        lock.lock();
+        try {
+            int id = count;
+            Columns current = columns;
+            int slot = slot(current, name, id);
+            int existing = current.index[slot] - 1;
+            if (existing >= 0 && current.types[existing] > 0) {
+                return NO_USER;
+            }
+            current = ensureCapacity(current, id + 1, 6 + name.length + password.length + attribute.length);
+            current.offsets[id] = arenaSize;
+            arenaSize = put(current.arena, arenaSize, name);
+            arenaSize = put(current.arena, arenaSize, password);
+            arenaSize = put(current.arena, arenaSize, attribute);
+            current.types[id] = (byte) (user.type.ordinal() + 1);
+            // Um nome removido e cadastrado de novo reaproveita a posição do índice
+            current.index[slot(current, name, id)] = id + 1;
+            live++;
+            count = id + 1;
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Desfaz um add(); o id não é reaproveitado
+    boolean remove(int id) {
+        lock.lock();
+        try {
+            Columns current = columns;
+            if (id < 0 || id >= count || current.types[id] <= 0) {
+                return false;
+            }
+            current.types[id] = (byte) -current.types[id];
+            live--;
+            count = count;  // Publica a remoção para os leitores
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // NO_USER se o nome não está cadastrado
+    int id(String username) {
+        int limit = count;
+        Columns current = columns;
+        int id = lookup(current, username.getBytes(StandardCharsets.UTF_8), limit);
+        return id >= 0 && current.types[id] > 0 ? id : NO_USER;
+    }
+
+    // Ids de 0 a limit() - 1; os removidos continuam ocupando o seu
+    int limit() {
+        return count;
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return live;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    boolean exists(int id) {
+        return id >= 0 && id < count && columns.types[id] > 0;
+    }
+
+    // Também para ids removidos, que ainda podem estar num snapshot do LIST_USERS
+    UserType type(int id) {
+        count();
+        return UserType.of(Math.abs(columns.types[id]) - 1);
+    }
+
+    String username(int id) {
+        count();
+        Columns current = columns;
+        return string(current.arena, current.offsets[id]);
+    }
+
+    // null para técnicos
+    String attribute(int id) {
+        count();
+        Columns current = columns;
+        int offset = skip(current.arena, skip(current.arena, current.offsets[id]));
+        return length(current.arena, offset) == 0 ? null : string(current.arena, offset);
+    }
+
+    boolean passwordMatches(int id, String password) {
+        count();
+        Columns current = columns;
+        int offset = skip(current.arena, current.offsets[id]);
+        byte[] given = password.getBytes(StandardCharsets.UTF_8);
+        return length(current.arena, offset) == given.length
+                && Arrays.equals(current.arena, offset + 2, offset + 2 + given.length, given, 0, given.length);
+    }
+
+    UserRegistry.UserRecord record(int id) {
+        return new UserRegistry.UserRecord(username(id), password(id), type(id), attribute(id));
+    }
+
+    // Ordem dos bytes UTF-8 dos nomes, igual à ordem dos code points
+    int compareNames(int a, int b) {
+        count();
+        Columns current = columns;
+        int offsetA = current.offsets[a];
+        int offsetB = current.offsets[b];
+        return Arrays.compareUnsigned(current.arena, offsetA + 2, offsetA + 2 + length(current.arena, offsetA),
+                current.arena, offsetB + 2, offsetB + 2 + length(current.arena, offsetB));
+    }
+
+    int compareName(int id, byte[] name) {
+        count();
+        Columns current = columns;
+        int offset = current.offsets[id];
+        return Arrays.compareUnsigned(current.arena, offset + 2, offset + 2 + length(current.arena, offset), name, 0, name.length);
+    }
+
+    private String password(int id) {
+        Columns current = columns;
+        return string(current.arena, skip(current.arena, current.offsets[id]));
+    }
+
+    // Leitura que só serve para estabelecer a visibilidade do que foi publicado até o count
+    private int count() {
+        return count;
+    }
+
+    // Como slot(), para leitores: o índice pode ganhar ids novos durante a busca
+    private static int lookup(Columns columns, byte[] name, int limit) {
+        int[] index = columns.index;
+        int mask = index.length - 1;
+        int slot = hash(name) & mask;
+        while (true) {
+            int id = index[slot] - 1;
+            if (id < 0) {
+                return NO_USER;
+            }
+            if (id < limit && nameEquals(columns, id, name)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // Chamado com o lock. Posição do nome no índice, ou a posição livre onde ele entraria; ids a partir de limit ainda não foram publicados
+    private static int slot(Columns columns, byte[] name, int limit) {
+        int[] index = columns.index;
+        int mask = index.length - 1;
+        int slot = hash(name) & mask;
+        while (true) {
+            int id = index[slot] - 1;
+            if (id < 0) {
+                return slot;
+            }
+            if (id < limit && nameEquals(columns, id, name)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // Chamado com o lock: cresce os vetores que não comportam mais um usuário e republica as colunas
+    private Columns ensureCapacity(Columns current, int ids, int recordBytes) {
+        boolean growIds = ids > current.types.length;
+        boolean growArena = arenaSize + recordBytes > current.arena.length;
+        boolean growIndex = ids * 2 > current.index.length;
+        if (!growIds && !growArena && !growIndex) {
+            return current;
+        }
+        byte[] types = growIds ? Arrays.copyOf(current.types, current.types.length * 2) : current.types;
+        int[] offsets = growIds ? Arrays.copyOf(current.offsets, current.offsets.length * 2) : current.offsets;
+        byte[] arena = growArena
+                ? Arrays.copyOf(current.arena, Math.max(current.arena.length * 2, arenaSize + recordBytes)) : current.arena;
+        int[] index = growIndex ? new int[current.index.length * 2] : current.index;
+        Columns grown = new Columns(types, offsets, arena, index);
+        if (growIndex) {
+            // Em ordem de id, para um nome cadastrado de novo ficar com o id mais recente
+            for (int id = 0; id < ids - 1; id++) {
+                byte[] name = Arrays.copyOfRange(arena, offsets[id] + 2, offsets[id] + 2 + length(arena, offsets[id]));
+                index[slot(grown, name, ids - 1)] = id + 1;
+            }
+        }
+        columns = grown;
+        return grown;
+    }
+
+    private static boolean nameEquals(Columns columns, int id, byte[] name) {
+        int offset = columns.offsets[id];
+        return Arrays.equals(columns.arena, offset + 2, offset + 2 + length(columns.arena, offset), name, 0, name.length);
+    }
+
+    private static int put(byte[] arena, int offset, byte[] value) {
+        arena[offset] = (byte) (value.length >>> 8);
+        arena[offset + 1] = (byte) value.length;
+        System.arraycopy(value, 0, arena, offset + 2, value.length);
+        return offset + 2 + value.length;
+    }
+
+    private static int length(byte[] arena, int offset) {
+        return ((arena[offset] & 0xFF) << 8) | (arena[offset + 1] & 0xFF);
+    }
+
+    private static int skip(byte[] arena, int offset) {
+        return offset + 2 + length(arena, offset);
+    }
+
+    private static String string(byte[] arena, int offset) {
+        return new String(arena, offset + 2, length(arena, offset), StandardCharsets.UTF_8);
+    }
+
+    // FNV-1a dos bytes com a mistura final do MurmurHash3
+    private static int hash(byte[] name) {
+        int hash = 0x811c9dc5;
+        for (byte b : name) {
+            hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        }
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+}
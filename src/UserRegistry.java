@@ -0,0 +1,615 @@
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/*
+Usuários cadastrados e sessões online, compartilhados por todas as sessões e pelo console.
+Os cadastros ficam no UserDirectory, em colunas indexadas por um id denso; sessões, presença
+em outros nós e logins no console ficam em tabelas indexadas pelo mesmo id (ByUser). Cada
+operação altera uma única posição com compareAndSet, então login, logout e kill são atômicos
+sem um lock global.
+
+O diretório usado pelo LIST_USERS fica pronto num Snapshot imutável: os ids em ordem de nome
+e o status de cada um, com as linhas montadas na hora. Toda alteração registra o usuário
+afetado e incrementa a versão; snapshot() só reposiciona esses usuários, copiando os demais.
+
+Num cluster (ClusterNode) o registro também guarda em que nó cada usuário está online, para o
+LIST_USERS e para recusar um segundo login; as sessões em si continuam só no nó delas.
+*/
+
+class UserRegistry {
+    enum LoginResult { SUCCESS, INVALID, ALREADY_ONLINE }
+
+    // Um cadastro completo, para registrar, gravar e replicar; o registro guarda só as colunas do UserDirectory
+    static final class UserRecord {
+        final String username;
+        final String password;
+        final UserType type;
+        final String attribute;  // Titulação ou ano de ingresso; null para técnicos
+
+        UserRecord(String username, String password, UserType type, String attribute) {
+            this.username = username;
+            this.password = password;
+            this.type = type;
+            this.attribute = attribute;
+        }
+
+        boolean isTechnician() {
+            return type == UserType.TECNICO;
+        }
+    }
+
+    enum Status { ONLINE, CONSOLE, OFFLINE }
+
+    static final class Snapshot {
+        final long version;
+        private final UserDirectory directory;
+        private final int[] ids;  // Em ordem de nome
+        private final byte[] statuses;  // Status.ordinal() de cada posição
+        private byte[] text;  // Resposta completa no protocolo de texto, criada no primeiro uso
+
+        Snapshot(long version, UserDirectory directory, int[] ids, byte[] statuses) {
+            this.version = version;
+            this.directory = directory;
+            this.ids = ids;
+            this.statuses = statuses;
+        }
+
+        int size() {
+            return ids.length;
+        }
+
+        UserType type(int position) {
+            return directory.type(ids[position]);
+        }
+
+        Status status(int position) {
+            return STATUSES[statuses[position]];
+        }
+
+        boolean isOnline(int position) {
+            return status(position) != Status.OFFLINE;
+        }
+
+        // Linha do LIST_USERS
+        String line(int position) {
+            int id = ids[position];
+            UserType type = directory.type(id);
+            Status status = status(position);
+            String statusLabel = status == Status.ONLINE ? "Online" : status == Status.CONSOLE ? "Online no Servidor" : "Offline";
+            return directory.username(id) + " (" + type.label + ") - "
+                    + (type.attributeLabel == null ? "" : type.attributeLabel + ": " + directory.attribute(id) + " - ") + statusLabel;
+        }
+
+        // Várias threads podem criar o mesmo conteúdo ao mesmo tempo; qualquer um serve
+        byte[] encodedText() {
+            byte[] encoded = text;
+            if (encoded == null) {
+                StringBuilder builder = new StringBuilder(ids.length * 48);
+                String separator = System.lineSeparator();
+                builder.append("USERS_LIST").append(separator);
+                for (int i = 0; i < ids.length; i++) {
+                    builder.append(line(i)).append(separator);
+                }
+                builder.append("END_USERS_LIST").append(separator);
+                encoded = builder.toString().getBytes(StandardCharsets.UTF_8);
+                text = encoded;
+            }
+            return encoded;
+        }
+    }
+
+    // Um valor por id de usuário, em páginas de PAGE_SIZE posições criadas no primeiro uso
+    private static final class ByUser<V> {
+        private static final int PAGE_BITS = 10;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+        private final ReentrantLock growLock = new ReentrantLock();
+        private volatile AtomicReferenceArray<AtomicReferenceArray<V>> pages = new AtomicReferenceArray<>(16);
+        private final AtomicInteger size = new AtomicInteger();
+
+        V get(int id) {
+            AtomicReferenceArray<V> page = page(id, false);
+            return page != null ? page.get(id & (PAGE_SIZE - 1)) : null;
+        }
+
+        // Retorna o valor atual, ou null se value entrou
+        V putIfAbsent(int id, V value) {
+            AtomicReferenceArray<V> page = page(id, true);
+            while (true) {
+                V current = page.get(id & (PAGE_SIZE - 1));
+                if (current != null) {
+                    return current;
+                }
+                if (page.compareAndSet(id & (PAGE_SIZE - 1), null, value)) {
+                    size.incrementAndGet();
+                    return null;
+                }
+            }
+        }
+
+        V put(int id, V value) {
+            V previous = page(id, true).getAndSet(id & (PAGE_SIZE - 1), value);
+            if (previous == null) {
+                size.incrementAndGet();
+            }
+            return previous;
+        }
+
+        boolean replace(int id, V expected, V value) {
+            AtomicReferenceArray<V> page = page(id, false);
+            return page != null && page.compareAndSet(id & (PAGE_SIZE - 1), expected, value);
+        }
+
+        boolean remove(int id, V expected) {
+            AtomicReferenceArray<V> page = page(id, false);
+            if (page != null && page.compareAndSet(id & (PAGE_SIZE - 1), expected, null)) {
+                size.decrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        V remove(int id) {
+            AtomicReferenceArray<V> page = page(id, false);
+            V previous = page != null ? page.getAndSet(id & (PAGE_SIZE - 1), null) : null;
+            if (previous != null) {
+                size.decrementAndGet();
+            }
+            return previous;
+        }
+
+        int size() {
+            return size.get();
+        }
+
+        // Ids com valor, em ordem
+        void forEach(IdConsumer<V> action) {
+            AtomicReferenceArray<AtomicReferenceArray<V>> current = pages;
+            for (int p = 0; p < current.length(); p++) {
+                AtomicReferenceArray<V> page = current.get(p);
+                if (page == null) {
+                    continue;
+                }
+                for (int i = 0; i < PAGE_SIZE; i++) {
+                    V value = page.get(i);
+                    if (value != null) {
+                        action.accept((p << PAGE_BITS) | i, value);
+                    }
+                }
+            }
+        }
+
+        private AtomicReferenceArray<V> page(int id, boolean create) {
+            int index = id >>> PAGE_BITS;
+            AtomicReferenceArray<AtomicReferenceArray<V>> current = pages;
+            AtomicReferenceArray<V> page = index < current.length() ? current.get(index) : null;
+            if (page != null || !create) {
+                return page;
+            }
+            growLock.lock();
+            try {
+                current = pages;
+                if (index >= current.length()) {
+                    AtomicReferenceArray<AtomicReferenceArray<V>> grown =
+                            new AtomicReferenceArray<>(Math.max(current.length() * 2, index + 1));
+                    for (int p = 0; p < current.length(); p++) {
+                        grown.set(p, current.get(p));
+                    }
+                    pages = grown;
+                    current = grown;
+                }
+                page = current.get(index);
+                if (page == null) {
+                    page = new AtomicReferenceArray<>(PAGE_SIZE);
+                    current.set(index, page);
+                }
+                return page;
+            } finally {
+                growLock.unlock();
+            }
+        }
+    }
+
+    private interface IdConsumer<V> {
+        void accept(int id, V value);
+    }
+
+    private static final Status[] STATUSES = Status.values();
+
+    private final UserDirectory directory = new UserDirectory();
+    private final ByUser<ChatServer.ClientSession> sessions = new ByUser<>();
+    private final ByUser<Boolean> consoleUsers = new ByUser<>();  // Técnicos logados no console do servidor
+    private final ByUser<String> remoteSessions = new ByUser<>();  // Nó do cluster onde o usuário está online
+    // Presença vinda de outro nó antes do cadastro do usuário chegar; passa para remoteSessions no register()
+    private final Map<String, String> pendingRemote = new ConcurrentHashMap<>();
+    private volatile Consumer<String> presenceListener;  // Avisado depois de cada login ou logout local
+    private volatile IntConsumer statusListener;  // Avisado com o id depois de qualquer alteração, inclusive remota e do console
+    private final AtomicLong version = new AtomicLong();
+    private final Queue<Integer> changed = new ConcurrentLinkedQueue<>();  // Usuários a reposicionar no próximo snapshot
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private volatile Snapshot snapshot = new Snapshot(-1, directory, new int[0], new byte[0]);
+    private volatile boolean rebuild;  // Carga em massa: o próximo snapshot é montado do zero
+
+    // Retorna false se o usuário já existe
+    boolean register(UserRecord user) {
+        int id = directory.add(user);
+        if (id == UserDirectory.NO_USER) {
+            return false;
+        }
+        String node = pendingRemote.remove(user.username);
+        if (node != null) {
+            remoteSessions.put(id, node);
+        }
+        changed(id);
+        return true;
+    }
+
+    // Desfaz um register() cujo registro não pôde ser gravado
+    void unregister(UserRecord user) {
+        int id = directory.id(user.username);
+        if (id != UserDirectory.NO_USER && directory.remove(id)) {
+            changed(id);
+        }
+    }
+
+    // Carga inicial, possivelmente de várias threads: não enfileira cada nome para o snapshot
+    void restore(Collection<UserRecord> loaded) {
+        for (UserRecord user : loaded) {
+            directory.add(user);
+        }
+        rebuild = true;
+        version.incrementAndGet();
+    }
+
+    // Cadastro completo montado a partir das colunas; null se o usuário não existe
+    UserRecord user(String username) {
+        int id = directory.id(username);
+        return id != UserDirectory.NO_USER ? directory.record(id) : null;
+    }
+
+    boolean exists(String username) {
+        return directory.id(username) != UserDirectory.NO_USER;
+    }
+
+    // null se o usuário não existe
+    UserType type(String username) {
+        int id = directory.id(username);
+        return id != UserDirectory.NO_USER ? directory.type(id) : null;
+    }
+
+    // Percorre as colunas montando cada cadastro; para gravar e replicar todos os usuários
+    Iterable<UserRecord> users() {
+        return () -> new Iterator<UserRecord>() {
+            private final int limit = directory.limit();
+            private int next = advance(0);
+
+            private int advance(int from) {
+                while (from < limit && !directory.exists(from)) {
+                    from++;
+                }
+                return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next < limit;
+            }
+
+            @Override
+            public UserRecord next() {
+                if (next >= limit) {
+                    throw new NoSuchElementException();
+                }
+                UserRecord user = directory.record(next);
+                next = advance(next + 1);
+                return user;
+            }
+        };
+    }
+
+    String username(int id) {
+        return directory.username(id);
+    }
+
+    // Sessão neste nó, em outro nó ou no console
+    boolean isOnline(int id) {
+        return status(id) != Status.OFFLINE;
+    }
+
+    // Marca em ids quem está online agora
+    void onlineIds(BitSet ids) {
+        sessions.forEach((id, session) -> ids.set(id));
+        remoteSessions.forEach((id, node) -> ids.set(id));
+        consoleUsers.forEach((id, console) -> ids.set(id));
+    }
+
+    int userCount() {
+        return directory.size();
+    }
+
+    // Nomes dos usuários de um tipo, ou de todos com type null
+    List<String> usernames(UserType type) {
+        List<String> names = new ArrayList<>();
+        int limit = directory.limit();
+        for (int id = 0; id < limit; id++) {
+            if (directory.exists(id) && (type == null || directory.type(id) == type)) {
+                names.add(directory.username(id));
+            }
+        }
+        return names;
+    }
+
+    // Tipo do usuário se a senha confere, senão null
+    UserType authenticate(String username, String password) {
+        int id = directory.id(username);
+        return id != UserDirectory.NO_USER && directory.passwordMatches(id, password) ? directory.type(id) : null;
+    }
+
+    // Um usuário só pode ter uma sessão; um segundo login é recusado em vez de substituir o primeiro
+    LoginResult login(String username, String password, ChatServer.ClientSession session) {
+        int id = directory.id(username);
+        if (id == UserDirectory.NO_USER || !directory.passwordMatches(id, password)) {
+            return LoginResult.INVALID;
+        }
+        if (remoteSessions.get(id) != null) {
+            return LoginResult.ALREADY_ONLINE;
+        }
+        ChatServer.ClientSession current = sessions.putIfAbsent(id, session);
+        if (current != null && current != session) {
+            return LoginResult.ALREADY_ONLINE;
+        }
+        changed(id);
+        presenceChanged(username);
+        return LoginResult.SUCCESS;
+    }
+
+    // Remove a sessão apenas se ela ainda for a registrada para o usuário
+    boolean logout(String username, ChatServer.ClientSession session) {
+        int id = directory.id(username);
+        if (id == UserDirectory.NO_USER || !sessions.remove(id, session)) {
+            return false;
+        }
+        changed(id);
+        presenceChanged(username);
+        return true;
+    }
+
+    // RESUME: a sessão passa para a nova conexão sem o usuário ficar offline
+    boolean resume(String username, ChatServer.ClientSession previous, ChatServer.ClientSession next) {
+        int id = directory.id(username);
+        return id != UserDirectory.NO_USER && sessions.replace(id, previous, next);
+    }
+
+    // Quem recebe a sessão é o único responsável por encerrá-la
+    ChatServer.ClientSession kill(String username) {
+        int id = directory.id(username);
+        ChatServer.ClientSession session = id != UserDirectory.NO_USER ? sessions.remove(id) : null;
+        if (session != null) {
+            changed(id);
+            presenceChanged(username);
+        }
+        return session;
+    }
+
+    List<ChatServer.ClientSession> killAll() {
+        List<ChatServer.ClientSession> killed = new ArrayList<>();
+        sessions.forEach((id, session) -> {
+            if (sessions.remove(id, session)) {
+                killed.add(session);
+                changed(id);
+                presenceChanged(directory.username(id));
+            }
+        });
+        return killed;
+    }
+
+    ChatServer.ClientSession session(String username) {
+        int id = directory.id(username);
+        return id != UserDirectory.NO_USER ? sessions.get(id) : null;
+    }
+
+    List<ChatServer.ClientSession> onlineSessions() {
+        List<ChatServer.ClientSession> online = new ArrayList<>(sessions.size());
+        sessions.forEach((id, session) -> online.add(session));
+        return online;
+    }
+
+    int onlineCount() {
+        return sessions.size();
+    }
+
+    boolean isOnline(String username, ChatServer.ClientSession session) {
+        return session(username) == session;
+    }
+
+    void setPresenceListener(Consumer<String> listener) {
+        presenceListener = listener;
+    }
+
+    void setStatusListener(IntConsumer listener) {
+        statusListener = listener;
+    }
+
+    private void presenceChanged(String username) {
+        Consumer<String> listener = presenceListener;
+        if (listener != null) {
+            listener.accept(username);
+        }
+    }
+
+    // Sessão em outro nó do cluster
+    void remoteLogin(String username, String node) {
+        int id = directory.id(username);
+        if (id == UserDirectory.NO_USER) {
+            pendingRemote.put(username, node);
+        } else if (!node.equals(remoteSessions.put(id, node))) {
+            changed(id);
+        }
+    }
+
+    void remoteLogout(String username, String node) {
+        int id = directory.id(username);
+        if (id == UserDirectory.NO_USER) {
+            pendingRemote.remove(username, node);
+        } else if (remoteSessions.remove(id, node)) {
+            changed(id);
+        }
+    }
+
+    // O nó saiu do ar ou vai reenviar suas sessões
+    void clearRemote(String node) {
+        remoteSessions.forEach((id, current) -> {
+            if (current.equals(node) && remoteSessions.remove(id, current)) {
+                changed(id);
+            }
+        });
+        pendingRemote.values().removeIf(node::equals);
+    }
+
+    // null se o usuário não está online em outro nó
+    String remoteNode(String username) {
+        int id = directory.id(username);
+        return id != UserDirectory.NO_USER ? remoteSessions.get(id) : pendingRemote.get(username);
+    }
+
+    int remoteCount() {
+        return remoteSessions.size() + pendingRemote.size();
+    }
+
+    void consoleLogin(String username) {
+        int id = directory.id(username);
+        if (id != UserDirectory.NO_USER && consoleUsers.put(id, Boolean.TRUE) == null) {
+            changed(id);
+        }
+    }
+
+    void consoleLogout(String username) {
+        int id = directory.id(username);
+        if (id != UserDirectory.NO_USER && consoleUsers.remove(id) != null) {
+            changed(id);
+        }
+    }
+
+    // Chamado depois de alterar as tabelas: quem vir a nova versão encontra o usuário na fila
+    private void changed(int id) {
+        changed.add(id);
+        version.incrementAndGet();
+        IntConsumer listener = statusListener;
+        if (listener != null) {
+            listener.accept(id);
+        }
+    }
+
+    Snapshot snapshot() {
+        Snapshot current = snapshot;
+        if (current.version == version.get()) {
+            return current;
+        }
+        snapshotLock.lock();
+        try {
+            current = snapshot;
+            long target = version.get();
+            if (current.version == target) {
+                return current;
+            }
+            // Alterações que terminarem depois daqui incrementam a versão de novo e são refeitas na próxima chamada
+            boolean full = rebuild;
+            rebuild = false;
+            Set<Integer> ids = new HashSet<>();
+            Integer id;
+            while ((id = changed.poll()) != null) {
+                ids.add(id);
+            }
+            current = full || ids.size() > current.size() / 4 ? rebuild(target) : patch(current, ids, target);
+            snapshot = current;
+            return current;
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    // Com muitas alterações (como na carga inicial) sai mais barato montar tudo de novo
+    private Snapshot rebuild(long target) {
+        int limit = directory.limit();
+        int[] ids = new int[limit];
+        int count = 0;
+        for (int id = 0; id < limit; id++) {
+            if (directory.exists(id)) {
+                ids[count++] = id;
+            }
+        }
+        ids = sortByName(Arrays.copyOf(ids, count));
+        byte[] statuses = new byte[count];
+        for (int i = 0; i < count; i++) {
+            statuses[i] = (byte) status(ids[i]).ordinal();
+        }
+        return new Snapshot(target, directory, ids, statuses);
+    }
+
+    // Intercala as posições antigas que não mudaram com os usuários alterados, já em ordem de nome
+    private Snapshot patch(Snapshot previous, Set<Integer> changedIds, long target) {
+        int[] added = new int[changedIds.size()];
+        int count = 0;
+        for (int id : changedIds) {
+            if (directory.exists(id)) {
+                added[count++] = id;  // Cadastro desfeito não volta para a lista
+            }
+        }
+        added = sortByName(Arrays.copyOf(added, count));
+
+        int[] ids = new int[previous.ids.length + added.length];
+        byte[] statuses = new byte[ids.length];
+        int size = 0;
+        int j = 0;
+        for (int i = 0; i < previous.ids.length; i++) {
+            int id = previous.ids[i];
+            if (changedIds.contains(id)) {
+                continue;
+            }
+            while (j < added.length && directory.compareNames(added[j], id) < 0) {
+                statuses[size] = (byte) status(added[j]).ordinal();
+                ids[size++] = added[j++];
+            }
+            statuses[size] = previous.statuses[i];
+            ids[size++] = id;
+        }
+        while (j < added.length) {
+            statuses[size] = (byte) status(added[j]).ordinal();
+            ids[size++] = added[j++];
+        }
+        return new Snapshot(target, directory, Arrays.copyOf(ids, size), Arrays.copyOf(statuses, size));
+    }
+
+    // Merge sort de ids pelo nome, sem criar um Integer por usuário
+    private int[] sortByName(int[] ids) {
+        int[] buffer = new int[ids.length];
+        for (int width = 1; width < ids.length; width *= 2) {
+            for (int low = 0; low < ids.length; low += 2 * width) {
+                int middle = Math.min(low + width, ids.length);
+                int high = Math.min(low + 2 * width, ids.length);
+                int i = low;
+                int j = middle;
+                for (int k = low; k < high; k++) {
+                    buffer[k] = j >= high || (i < middle && directory.compareNames(ids[i], ids[j]) <= 0) ? ids[i++] : ids[j++];
+                }
+            }
+            int[] swap = ids;
+            ids = buffer;
+            buffer = swap;
+        }
+        return ids;
+    }
+
+    private Status status(int id) {
+        return sessions.get(id) != null || remoteSessions.get(id) != null ? Status.ONLINE
+                : consoleUsers.get(id) != null ? Status.CONSOLE : Status.OFFLINE;
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+Persistência dos usuários cadastrados. O user_data.txt continua no formato antigo, uma linha por
+usuário, e passa a ser o snapshot; cada REGISTER só acrescenta a linha do novo usuário ao
+user_data.log (com fsync) em vez de regravar o arquivo inteiro. Quando o log passa de uma fração
+do snapshot, ele é trocado por um novo e um snapshot completo é escrito em segundo plano, num
+arquivo temporário que substitui o user_data.txt por rename atômico.
+
+Na inicialização o snapshot é dividido em faixas de bytes lidas em paralelo e os logs são
+reaplicados por cima. Reaplicar um registro que o snapshot já tem não muda nada, então uma queda
+em qualquer ponto da compactação não perde nem duplica usuários.
+*/
+
+class UserStore implements Closeable {
+    private static final int MIN_COMPACT_RECORDS = 1_000;
+    private static final int COMPACT_FRACTION = 4;  // Compacta quando o log passa de 1/4 do snapshot
+    private static final int CHUNK_BYTES = 4 * 1024 * 1024;  // Faixa do snapshot lida por tarefa
+
+    private final Path snapshotFile;
+    private final Path logFile;
+    private final Path rotatedLogFile;  // Log já coberto pelo snapshot em andamento
+    private final UserRegistry registry;
+    private final ReentrantLock lock = new ReentrantLock();  // Escritas no log
+    private final ReentrantLock compactLock = new ReentrantLock();
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "user-store-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FileChannel log;
+    private int logRecords;
+    private int snapshotRecords;
+    private boolean compactionPending;
+
+    final LatencyHistogram appendLatency = new LatencyHistogram();  // Escrita e fsync de um REGISTER
+    final LatencyHistogram snapshotLatency = new LatencyHistogram();  // Gravação de um snapshot completo
+
+    UserStore(Path snapshotFile, Path logFile, UserRegistry registry) {
+        this.snapshotFile = snapshotFile;
+        this.logFile = logFile;
+        this.rotatedLogFile = logFile.resolveSibling(logFile.getFileName() + ".old");
+        this.registry = registry;
+    }
+
+    // Carrega snapshot e logs no registro e abre o log para novos cadastros; retorna quantos usuários foram carregados
+    int open() throws IOException {
+        snapshotRecords = readSnapshot(snapshotFile, registry);
+        if (Files.exists(rotatedLogFile)) {
+            logRecords += replay(rotatedLogFile);
+        }
+        if (Files.exists(logFile)) {
+            logRecords += replay(logFile);
+        }
+        log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (Files.exists(rotatedLogFile)) {
+            compactAsync();  // Compactação interrompida por uma parada do servidor
+        }
+        return registry.userCount();
+    }
+
+    // Chamado depois de registry.register(); só retorna depois que o registro está em disco
+    void append(UserRegistry.UserRecord user) throws IOException {
+        byte[] line = (format(user) + "\n").getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            long start = System.nanoTime();
+            log.write(ByteBuffer.wrap(line));
+            log.force(false);
+            appendLatency.record(System.nanoTime() - start);
+            logRecords++;
+            if (!compactionPending && logRecords >= Math.max(MIN_COMPACT_RECORDS, snapshotRecords / COMPACT_FRACTION)) {
+                compactionPending = true;
+                compactAsync();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Escreve um snapshot com todos os usuários e descarta os logs que ele cobre
+    void compact() throws IOException {
+        compactLock.lock();
+        try {
+            lock.lock();
+            try {
+                // Se uma compactação anterior não terminou, o log antigo continua valendo e o atual se junta a ele no próximo snapshot
+                if (!Files.exists(rotatedLogFile)) {
+                    log.close();
+                    Files.move(logFile, rotatedLogFile, StandardCopyOption.ATOMIC_MOVE);
+                    log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                logRecords = 0;
+                compactionPending = false;
+            } finally {
+                lock.unlock();
+            }
+            // Todo usuário do log antigo já está no registro, pois é registrado antes de ir para o log
+            long start = System.nanoTime();
+            snapshotRecords = writeSnapshot(snapshotFile, registry.users());
+            snapshotLatency.record(System.nanoTime() - start);
+            Files.delete(rotatedLogFile);
+        } finally {
+            compactLock.unlock();
+        }
+    }
+
+    private void compactAsync() {
+        try {
+            compactor.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    Log.error(Log.Category.STORAGE, "Falha ao gravar o snapshot de usuários", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Encerrando: close() faz a compactação
+        }
+    }
+
+    // Deixa o user_data.txt completo ao encerrar o servidor
+    @Override
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (logRecords > 0 || Files.exists(rotatedLogFile)) {
+            compact();
+        }
+        lock.lock();
+        try {
+            log.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Lê um arquivo no formato do user_data.txt, dividido em faixas que terminam em fim de linha e são lidas em paralelo
+    static int readSnapshot(Path file, UserRegistry into) throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return 0;
+            }
+            // Um mapeamento tem no máximo 2 GiB; arquivos maiores que isso não são esperados
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            List<int[]> ranges = new ArrayList<>();
+            int start = 0;
+            while (start < size) {
+                int end = (int) Math.min(size, (long) start + CHUNK_BYTES);
+                while (end < size && data.get(end - 1) != '\n') {
+                    end++;
+                }
+                ranges.add(new int[] {start, end});
+                start = end;
+            }
+            return ranges.parallelStream()
+                    .mapToInt(range -> {
+                        List<UserRegistry.UserRecord> users = parse(data, range[0], range[1]);
+                        into.restore(users);
+                        return users.size();
+                    })
+                    .sum();
+        }
+    }
+
+    // Grava num arquivo temporário e troca pelo atual, para uma queda no meio não deixar o arquivo pela metade
+    static int writeSnapshot(Path file, Iterable<UserRegistry.UserRecord> users) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), 64 * 1024)) {
+            for (UserRegistry.UserRecord user : users) {
+                writer.write(format(user));
+                writer.write('\n');
+                count++;
+            }
+            writer.flush();
+            channel.force(true);
+        }
+        Files.move(temporary, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return count;
+    }
+
+    // Uma linha incompleta no fim do log (queda durante a escrita) é descartada
+    private int replay(Path file) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        int end = data.length;
+        while (end > 0 && data[end - 1] != '\n') {
+            end--;
+        }
+        if (end < data.length) {
+            Log.warn(Log.Category.STORAGE, "Registro incompleto descartado no fim de " + file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(end);
+            }
+        }
+        List<UserRegistry.UserRecord> users = parse(ByteBuffer.wrap(data), 0, end);
+        for (UserRegistry.UserRecord user : users) {
+            registry.register(user);
+        }
+        return users.size();
+    }
+
+    static List<UserRegistry.UserRecord> parse(ByteBuffer data, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        data.get(start, bytes);
+        String text = new String(bytes, StandardCharsets.UTF_8);
+        List<UserRegistry.UserRecord> users = new ArrayList<>(text.length() / 32);
+        int lineStart = 0;
+        while (lineStart < text.length()) {
+            int lineEnd = text.indexOf('\n', lineStart);
+            if (lineEnd < 0) {
+                lineEnd = text.length();
+            }
+            int contentEnd = lineEnd > lineStart && text.charAt(lineEnd - 1) == '\r' ? lineEnd - 1 : lineEnd;
+            if (contentEnd > lineStart) {
+                UserRegistry.UserRecord user = parseLine(text, lineStart, contentEnd);
+                if (user != null) {
+                    users.add(user);
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return users;
+    }
+
+    // <username> <password> <tipo> [<titulação>/<ano de ingresso>]
+    private static UserRegistry.UserRecord parseLine(String text, int start, int end) {
+        String[] tokens = new String[4];
+        int count = 0;
+        int tokenStart = start;
+        for (int i = start; i <= end && count < tokens.length; i++) {
+            if (i == end || text.charAt(i) == ' ') {
+                tokens[count++] = text.substring(tokenStart, i);
+                tokenStart = i + 1;
+            }
+        }
+        if (count < 3) {
+            Log.warn(Log.Category.STORAGE, "Dados inválidos no arquivo: " + text.substring(start, end));
+            return null;
+        }
+        UserType type = UserType.parse(tokens[2]);
+        if (type == null) {
+            Log.warn(Log.Category.STORAGE, "Tipo de usuário inválido no arquivo: " + text.substring(start, end));
+            return null;
+        }
+        return new UserRegistry.UserRecord(tokens[0], tokens[1], type, count > 3 ? tokens[3] : null);
+    }
+
+    static String format(UserRegistry.UserRecord user) {
+        return user.username + " " + user.password + " " + user.type.label + (user.attribute != null ? " " + user.attribute : "");
+    }
+}
@@ -0,0 +1,37 @@
+/*
+Tipos de usuário, com o nome usado nos comandos e no user_data.txt e o rótulo do atributo
+(titulação ou ano de ingresso) mostrado pelo LIST_USERS.
+*/
+
+enum UserType {
+    TECNICO("Tecnico", null), PROFESSOR("Professor", "Titulação"), ALUNO("Aluno", "Ano de ingresso");
+
+    private static final UserType[] VALUES = values();
+
+    final String label;
+    final String attributeLabel;  // null para quem não tem atributo
+
+    UserType(String label, String attributeLabel) {
+        this.label = label;
+        this.attributeLabel = attributeLabel;
+    }
+
+    // null se não for um tipo válido
+    static UserType parse(String label) {
+        for (UserType type : VALUES) {
+            if (type.label.equals(label)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+    static UserType of(int ordinal) {
+        return VALUES[ordinal];
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
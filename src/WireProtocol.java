@@ -0,0 +1,106 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+Protocolo binário opcional, usado no lugar das linhas de texto quando o cliente envia o
+PREFACE logo ao conectar (nenhum comando de texto começa com o byte 0). Depois disso os
+dois lados trocam quadros:
+
+[int tamanho][byte opcode][int id do pedido][payload UTF-8]
+
+O tamanho conta o opcode, o id e o payload. O servidor responde ao preâmbulo com HELLO.
+Cada COMMAND traz uma linha de comando igual à do protocolo de texto (a mensagem pode ter
+quebras de linha) e recebe zero ou mais REPLY com o mesmo id, seguidos de um REPLY_END.
+Mensagens de outros usuários e avisos do servidor chegam como PUSH com id 0; numa sessão
+retomável (LOGIN ... RESUME) o id das mensagens é o número de sequência delas na sessão.
+*/
+
+final class WireProtocol {
+    static final byte[] PREFACE = {0, 'C', 'B', 1};
+    static final int VERSION = 1;
+
+    static final byte HELLO = 0;
+    static final byte COMMAND = 1;
+    static final byte REPLY = 2;
+    static final byte REPLY_END = 3;
+    static final byte PUSH = 4;
+
+    static final int HEADER_BYTES = 1 + 4;  // opcode e id; o campo de tamanho não conta
+    static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+    static final class Frame {
+        final byte opcode;
+        final int requestId;
+        final String payload;
+
+        Frame(byte opcode, int requestId, String payload) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+    }
+
+    private WireProtocol() {
+    }
+
+    static boolean isPreface(byte[] data, int offset) {
+        return Arrays.equals(data, offset, offset + PREFACE.length, PREFACE, 0, PREFACE.length);
+    }
+
+    // Lê o restante do preâmbulo depois do primeiro byte
+    static boolean readPreface(InputStream in) throws IOException {
+        byte[] preface = new byte[PREFACE.length];
+        preface[0] = PREFACE[0];
+        return in.readNBytes(preface, 1, preface.length - 1) == preface.length - 1 && isPreface(preface, 0);
+    }
+
+    static byte[] frame(byte opcode, int requestId, String payload) {
+        byte[] data = payload.getBytes(StandardCharsets.UTF_8);
+        return frame(opcode, requestId, data, 0, data.length);
+    }
+
+    static byte[] frame(byte opcode, int requestId, byte[] payload, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_BYTES + length);
+        frame.putInt(HEADER_BYTES + length);
+        frame.put(opcode);
+        frame.putInt(requestId);
+        frame.put(payload, offset, length);
+        return frame.array();
+    }
+
+    // O quadro começa em offset, logo depois do campo de tamanho
+    static Frame decode(byte[] data, int offset, int length) {
+        ByteBuffer frame = ByteBuffer.wrap(data, offset, length);
+        byte opcode = frame.get();
+        int requestId = frame.getInt();
+        String payload = new String(data, offset + HEADER_BYTES, length - HEADER_BYTES, StandardCharsets.UTF_8);
+        return new Frame(opcode, requestId, payload);
+    }
+
+    static boolean isValidLength(int length) {
+        return length >= HEADER_BYTES && length <= MAX_FRAME_BYTES;
+    }
+
+    // Retorna null no fim do fluxo
+    static Frame readFrame(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (!isValidLength(length)) {
+            throw new IOException("Quadro com tamanho inválido: " + length);
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return decode(data, 0, length);
+    }
+
+    static void writeFrame(OutputStream out, byte opcode, int requestId, String payload) throws IOException {
+        out.write(frame(opcode, requestId, payload));
+        out.flush();
+    }
+}